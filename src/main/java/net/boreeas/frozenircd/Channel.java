@@ -15,8 +15,10 @@
  */
 package net.boreeas.frozenircd;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import net.boreeas.frozenircd.command.Command;
@@ -25,11 +27,16 @@ import net.boreeas.frozenircd.command.Reply;
 import net.boreeas.frozenircd.config.ConfigData;
 import net.boreeas.frozenircd.config.ConfigKey;
 import net.boreeas.frozenircd.connection.Connection;
+import net.boreeas.frozenircd.connection.EncodedLine;
 import net.boreeas.frozenircd.utils.Filter;
+import net.boreeas.frozenircd.utils.NameKey;
 import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.connection.server.RemoteClient;
+import net.boreeas.frozenircd.connection.server.ServerLink;
 import net.boreeas.frozenircd.utils.PatternMatcher;
 import net.boreeas.frozenircd.utils.SharedData;
 import net.boreeas.frozenircd.utils.StringUtils;
+import net.boreeas.frozenircd.utils.TimingWheel;
 
 /**
  *
@@ -42,6 +49,12 @@ public class Channel implements Flagable {
     private static final char DISPLAY_VOICE  = '+';
     private static final char DISPLAY_OP     = '@';
 
+    /**
+     * Stands in for the nickname of each receiver in {@link #sendToAll(Reply, Object...)}.
+     * Can't be part of a valid line.
+     */
+    private static final String NICK_MARKER = "\u0000";
+
 
     /**
      * The name for the channel.
@@ -49,31 +62,51 @@ public class Channel implements Flagable {
     private final String name;
 
     /**
-     * The current topic for the channel.
+     * The name, folded for lookups.
+     */
+    private final NameKey key;
+
+    /**
+     * The time the channel was created.
      */
-    private String topic;
+    private final long creationTime = TimingWheel.currentTimeMillis();
+
+    /**
+     * The current topic for the channel. Changed under <code>clientLock</code>.
+     */
+    private volatile String topic;
 
     /**
      * The time the topic was set
      */
-    private long topicSetTime = System.currentTimeMillis();
+    private volatile long topicSetTime = creationTime;
 
     /**
      * The set channel modes.
      */
     private final Map<Character, String> channelmodes = new HashMap<>();
 
-    private final Set<ModeListEntry> ops = new HashSet<>();
-    private final Set<ModeListEntry> voiced = new HashSet<>();
     private final Set<ModeListEntry> muted = new HashSet<>();
     private final Set<ModeListEntry> banned = new HashSet<>();
     private final Set<ModeListEntry> invited = new HashSet<>();
     private final Set<ModeListEntry> excepted = new HashSet<>();
 
     /**
-     * The clients that have currently joined the room.
+     * Counts changes to the ban and mute masks, so that members know when to
+     * match them again. Changed under the monitor of this channel.
+     */
+    private volatile int maskVersion;
+
+    /**
+     * The clients that have currently joined the room, with their status.
+     */
+    private final Map<Client, Membership> members = new HashMap<>();
+
+    /**
+     * Whether the channel is in the indexes of the {@link ChannelPool}, which
+     * are updated with the member count and topic. Guarded by <code>clientLock</code>.
      */
-    private final Set<Client> clients = new HashSet<>();
+    private boolean indexed;
 
     // Thread locks
     private final Object clientLock = new Object();
@@ -86,19 +119,34 @@ public class Channel implements Flagable {
     public Channel(final String name) {
 
         this.name = name;
+        this.key = NameKey.of(name);
     }
 
     public void sendToAll(Reply reply, Object... args) {
 
-        // Reserver first for client's nickname
+        // Reserve first for client's nickname. The reply is formatted and
+        // encoded once around a marker, only the nickname differs per client.
         Object[] actualArgs = new Object[args.length + 1];
         System.arraycopy(args, 0, actualArgs, 1, args.length);
+        actualArgs[0] = NICK_MARKER;
+
+        String formatted = ":" + ConfigData.getFirstConfigOption(ConfigKey.HOST) + " " + reply.format(actualArgs) + "\r\n";
+        int marker = formatted.indexOf(NICK_MARKER);
+
+        byte[] prefix = formatted.substring(0, marker).getBytes(SharedData.CHARSET);
+        byte[] suffix = formatted.substring(marker + NICK_MARKER.length()).getBytes(SharedData.CHARSET);
 
         synchronized (clientLock) {
-            for (Client client: clients) {
+            for (Client client: members.keySet()) {
+
+                byte[] nick = client.getSafeNickname().getBytes(SharedData.CHARSET);
+                byte[] line = new byte[prefix.length + nick.length + suffix.length];
 
-                actualArgs[0] = client.getNickname();
-                client.sendStandardFormat(reply.format(actualArgs));
+                System.arraycopy(prefix, 0, line, 0, prefix.length);
+                System.arraycopy(nick, 0, line, prefix.length, nick.length);
+                System.arraycopy(suffix, 0, line, prefix.length + nick.length, suffix.length);
+
+                client.send(new EncodedLine(line));
             }
         }
     }
@@ -121,14 +169,37 @@ public class Channel implements Flagable {
      */
     public void sendFromClient(final Client client, final String message, final Filter<Connection> filter) {
 
-        final String actualMessage = ":" + client.getDisplayHostmask() + " " + message;
+        send(new EncodedLine(":" + client.getDisplayHostmask() + " " + message), filter);
+    }
+
+    /**
+     * Sends an encoded line to all clients. The line is shared by all
+     * receivers and not encoded again.
+     * @param line The line to send
+     */
+    public void send(final EncodedLine line) {
+
+        synchronized (clientLock) {
+            for (final Client other: members.keySet()) {
+                other.send(line);
+            }
+        }
+    }
+
+    /**
+     * Sends an encoded line to all clients passing through the filter. The line
+     * is shared by all receivers and not encoded again.
+     * @param line The line to send
+     * @param filter The filter to determine which clients receive the line
+     */
+    public void send(final EncodedLine line, final Filter<Connection> filter) {
 
         synchronized (clientLock) {
-            for (final Client other: clients) {
+            for (final Client other: members.keySet()) {
 
                 if (filter.pass(other)) {
 
-                    other.send(actualMessage);
+                    other.send(line);
                 }
             }
         }
@@ -136,12 +207,10 @@ public class Channel implements Flagable {
 
     public void joinChannel(final Client client) {
 
-        if (isEmpty()) {
-            op(client.getHostmask(), ConfigData.getFirstConfigOption(ConfigKey.HOST));
-        }
-
         synchronized (clientLock) {
-            clients.add(client);
+
+            // Whoever creates the channel is its first op
+            add(client, (members.isEmpty()) ? Membership.OP : 0);
         }
 
         sendFromClient(client, Command.JOIN.format(this.name));
@@ -153,8 +222,89 @@ public class Channel implements Flagable {
         client.sendStandardFormat(Reply.RPL_NAMREPLY.format(client.getNickname(), '=', name, names()));
     }
 
+    /**
+     * Adds a client without telling anyone, for users that joined on another server.
+     * @param client The client
+     * @return <code>false</code> if the client already is a member
+     */
+    public boolean addClient(final Client client) {
+
+        synchronized (clientLock) {
+            return add(client, 0);
+        }
+    }
+
+    /**
+     * Adds a member, and the membership to the client. Call with <code>clientLock</code> held.
+     * @return <code>false</code> if the client already is a member
+     */
+    private boolean add(Client client, int status) {
+
+        if (members.containsKey(client)) {
+            return false;
+        }
+
+        Membership membership = new Membership(this, client, status);
+
+        members.put(client, membership);
+        client.addMembership(membership);
+        resized(members.size() - 1);
+
+        return true;
+    }
+
+    /**
+     * Removes a client without telling anyone, e.g. because it quit.
+     * @param client The client
+     */
+    public void removeClient(final Client client) {
+
+        removeUser(client);
+    }
+
+    /**
+     * Returns the clients in the channel.
+     * @return A copy of the members
+     */
+    public List<Client> getClients() {
+
+        synchronized (clientLock) {
+            return new ArrayList<>(members.keySet());
+        }
+    }
+
+    /**
+     * Returns the links behind which the channel has members.
+     * @return The links
+     */
+    public Set<ServerLink> getLinks() {
+
+        Set<ServerLink> links = new HashSet<>();
+
+        synchronized (clientLock) {
+            for (Client client: members.keySet()) {
+
+                if (client instanceof RemoteClient) {
+                    links.add(((RemoteClient) client).getLink());
+                }
+            }
+        }
+
+        return links;
+    }
+
     public int size() {
-        return clients.size();
+        return members.size();
+    }
+
+    /**
+     * Returns the membership of a client in this channel.
+     * @param client The client
+     * @return The membership, or <code>null</code> if the client is not a member
+     */
+    public Membership getMembership(Client client) {
+
+        return client.getMembership(this);
     }
 
     public void partChannel(final Client client, String reason) {
@@ -174,12 +324,12 @@ public class Channel implements Flagable {
     private void removeUser(Client target) {
 
         synchronized (clientLock) {
-            clients.remove(target);
-        }
 
-        synchronized (this) {
-            deop(target.getHostmask());
-            devoice(target.getHostmask());
+            if (members.remove(target) != null) {
+
+                target.removeMembership(this);
+                resized(members.size() + 1);
+            }
         }
     }
 
@@ -189,7 +339,81 @@ public class Channel implements Flagable {
 
     public void setTopic(String topic) {
 
-        this.topic = topic;
+        synchronized (clientLock) {
+
+            long time = TimingWheel.currentTimeMillis();
+
+            if (indexed) {
+
+                if (this.topic != null) {
+                    ChannelPool.BY_TOPIC_TIME.remove(this, topicSetTime);
+                }
+
+                if (topic != null) {
+                    ChannelPool.BY_TOPIC_TIME.add(this, time);
+                }
+            }
+
+            this.topic = topic;
+            this.topicSetTime = time;
+        }
+    }
+
+    /**
+     * Returns the time the topic was last set.
+     * @return The time, in milliseconds
+     */
+    public long getTopicSetTime() {
+
+        return topicSetTime;
+    }
+
+    /**
+     * Returns the time the channel was created.
+     * @return The time, in milliseconds
+     */
+    public long getCreationTime() {
+
+        return creationTime;
+    }
+
+    /**
+     * Adds this channel to the indexes of the {@link ChannelPool}, or removes it.
+     * @param indexed <code>true</code> to add the channel
+     */
+    void setIndexed(boolean indexed) {
+
+        synchronized (clientLock) {
+
+            if (this.indexed == indexed) {
+                return;
+            }
+
+            this.indexed = indexed;
+
+            if (indexed) {
+
+                ChannelPool.BY_SIZE.add(this, members.size());
+                ChannelPool.BY_CREATION.add(this, creationTime);
+                if (topic != null) ChannelPool.BY_TOPIC_TIME.add(this, topicSetTime);
+            } else {
+
+                ChannelPool.BY_SIZE.remove(this, members.size());
+                ChannelPool.BY_CREATION.remove(this, creationTime);
+                if (topic != null) ChannelPool.BY_TOPIC_TIME.remove(this, topicSetTime);
+            }
+        }
+    }
+
+    /**
+     * Moves the channel in the member count index. Call with <code>clientLock</code> held.
+     * @param oldSize The member count before the change
+     */
+    private void resized(int oldSize) {
+
+        if (indexed) {
+            ChannelPool.BY_SIZE.update(this, oldSize, members.size());
+        }
     }
 
     public String getName() {
@@ -197,9 +421,18 @@ public class Channel implements Flagable {
         return name;
     }
 
+    /**
+     * Returns the key of this channel in the {@link ChannelPool}.
+     * @return The key
+     */
+    public NameKey getKey() {
+
+        return key;
+    }
+
     public boolean isEmpty() {
 
-        return clients.isEmpty();
+        return members.isEmpty();
     }
 
     @Override
@@ -264,14 +497,11 @@ public class Channel implements Flagable {
         StringBuilder builder = new StringBuilder();
 
         synchronized (clientLock) {
-            for (Client client: clients) {
+            for (Membership member: members.values()) {
 
                 if (builder.length() > 0) builder.append(' ');
 
-                if (isOp(client))          builder.append(DISPLAY_OP);
-                else if (isVoiced(client)) builder.append(DISPLAY_VOICE);
-
-                builder.append(client.getNickname());
+                appendName(builder, member);
             }
         }
 
@@ -287,15 +517,12 @@ public class Channel implements Flagable {
         StringBuilder builder = new StringBuilder();
 
         synchronized (clientLock) {
-            for (Client client: clients) {
-                if (!client.hasFlag(Mode.UMODE_INVISIBLE)) {
+            for (Membership member: members.values()) {
+                if (!member.getClient().hasFlag(Mode.UMODE_INVISIBLE)) {
 
                     if (builder.length() > 0) builder.append(' ');
 
-                    if (isOp(client))          builder.append(DISPLAY_OP);
-                    else if (isVoiced(client)) builder.append(DISPLAY_VOICE);
-
-                    builder.append(client.getNickname());
+                    appendName(builder, member);
                 }
             }
         }
@@ -303,18 +530,52 @@ public class Channel implements Flagable {
         return builder.toString();
     }
 
+    private static void appendName(StringBuilder builder, Membership member) {
+
+        if (member.isOp())          builder.append(DISPLAY_OP);
+        else if (member.isVoiced()) builder.append(DISPLAY_VOICE);
+
+        builder.append(member.getClient().getNickname());
+    }
+
 
 
     public boolean isOp(Client client) {
-        return checkAccess(ops, client.getHostmask());
+
+        Membership membership = client.getMembership(this);
+        return membership != null && membership.isOp();
     }
 
     public boolean isVoiced(Client client) {
-        return checkAccess(voiced, client.getHostmask()) || isOp(client); // Op implies voice
+
+        Membership membership = client.getMembership(this);
+        return membership != null && membership.isVoiced();
     }
 
     public boolean isMuted(Client client) {
-        return checkAccess(muted, client.getHostmask()) || isBanned(client); // Ban implies mute
+
+        Membership membership = client.getMembership(this);
+        return (membership != null) ? membership.isMuted() : matchesMuteMasks(client);
+    }
+
+    /**
+     * Matches the hostmask of a client against the mute and ban masks.
+     * @param client The client
+     * @return <code>true</code> if a mask matches
+     */
+    synchronized boolean matchesMuteMasks(Client client) {
+
+        String hostmask = client.getHostmask();
+        return checkAccess(muted, hostmask) || checkAccess(banned, hostmask); // Ban implies mute
+    }
+
+    /**
+     * Returns the number of changes to the ban and mute masks so far.
+     * @return The version of the masks
+     */
+    int getMaskVersion() {
+
+        return maskVersion;
     }
 
     public boolean isBanned(Client client) {
@@ -340,36 +601,55 @@ public class Channel implements Flagable {
         return false;
     }
 
-    public synchronized void op(String mask, String issuerMask) {
-        ops.add(new ModeListEntry(mask, issuerMask));
+    public void op(Client client) {
+        setStatus(client, Membership.OP, true);
     }
 
-    public synchronized void deop(String mask) {
-        ops.remove(new ModeListEntry(mask, mask));
+    public void deop(Client client) {
+        setStatus(client, Membership.OP, false);
     }
 
-    public synchronized void voice(String mask, String issuerMask) {
-        voiced.add(new ModeListEntry(mask, issuerMask));
+    public void voice(Client client) {
+        setStatus(client, Membership.VOICE, true);
     }
 
-    public synchronized void devoice(String mask) {
-        voiced.remove(new ModeListEntry(mask, mask));
+    public void devoice(Client client) {
+        setStatus(client, Membership.VOICE, false);
+    }
+
+    private void setStatus(Client client, int bits, boolean adding) {
+
+        Membership membership = client.getMembership(this);
+
+        if (membership == null) {
+            return;     // Not a member
+        }
+
+        if (adding) {
+            membership.addStatus(bits);
+        } else {
+            membership.removeStatus(bits);
+        }
     }
 
     public synchronized void mute(String mask, String issuerMask) {
         muted.add(new ModeListEntry(mask, issuerMask));
+        maskVersion++;
     }
 
     public synchronized void unmute(String mask) {
         muted.remove(new ModeListEntry(mask, mask));
+        maskVersion++;
     }
 
     public synchronized void ban(String mask, String issuerMask) {
         banned.add(new ModeListEntry(mask, issuerMask));
+        maskVersion++;
     }
 
     public synchronized void unban(String mask) {
         banned.remove(new ModeListEntry(mask, mask));
+        maskVersion++;
     }
 
     public synchronized void invite(String nick, String issuerMask) {
@@ -388,14 +668,6 @@ public class Channel implements Flagable {
         invited.remove(new ModeListEntry(mask, mask));
     }
 
-    public Set<String> operList() {
-        return list(ops);
-    }
-
-    public Set<String> voiceList() {
-        return list(voiced);
-    }
-
     public Set<String> inviteList() {
         return list(invited);
     }
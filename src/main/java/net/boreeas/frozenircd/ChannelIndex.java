@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd;
+
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Channels sorted by a number, e.g. their member count, kept up to date by
+ * the channels as the number changes. Channels with the same number are
+ * sorted by name, so every channel has a fixed position that a listing can
+ * resume from.
+ * <p>
+ * The index may be changed and read from any thread at the same time. Ranges
+ * are views, not copies, and are weakly consistent: a channel whose number
+ * changes while a range is iterated may be seen twice, or not at all.
+ * @author Boreeas
+ */
+final class ChannelIndex {
+
+    /**
+     * A channel at its position in the index.
+     */
+    static final class Entry implements Comparable<Entry> {
+
+        final long value;
+        final String folded;
+        final Channel channel;
+
+        private Entry(long value, String folded, Channel channel) {
+
+            this.value = value;
+            this.folded = folded;
+            this.channel = channel;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+
+            if (value != other.value) {
+                return (value < other.value) ? -1 : 1;
+            }
+
+            return folded.compareTo(other.folded);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            return o instanceof Entry && compareTo((Entry) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+
+            return (int) (value ^ (value >>> 32)) * 31 + folded.hashCode();
+        }
+    }
+
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>();
+
+    private static Entry entry(Channel channel, long value) {
+
+        return new Entry(value, channel.getKey().getFolded(), channel);
+    }
+
+    /**
+     * Adds a channel. Callers must serialize changes for the same channel.
+     * @param channel The channel
+     * @param value The number of the channel
+     */
+    void add(Channel channel, long value) {
+
+        entries.add(entry(channel, value));
+    }
+
+    /**
+     * Removes a channel.
+     * @param channel The channel
+     * @param value The number the channel was added or last updated with
+     */
+    void remove(Channel channel, long value) {
+
+        entries.remove(entry(channel, value));
+    }
+
+    /**
+     * Moves a channel to its new position.
+     * @param channel The channel
+     * @param oldValue The number the channel was added or last updated with
+     * @param newValue The new number
+     */
+    void update(Channel channel, long oldValue, long newValue) {
+
+        if (oldValue != newValue) {
+
+            entries.remove(entry(channel, oldValue));
+            entries.add(entry(channel, newValue));
+        }
+    }
+
+    /**
+     * Returns the channels whose number is in a range, in order.
+     * @param min The smallest number, inclusive
+     * @param max The largest number, inclusive
+     * @param after The entry to resume after, or <code>null</code> to start at <code>min</code>
+     * @return A view of the range
+     */
+    NavigableSet<Entry> range(long min, long max, Entry after) {
+
+        if (max < min) {
+            return new TreeSet<>();
+        }
+
+        NavigableSet<Entry> range = (after != null && after.value >= min)
+                                        ? entries.tailSet(after, false)
+                                        : entries.tailSet(new Entry(min, "", null), true);
+
+        if (max < Long.MAX_VALUE) {
+            range = range.headSet(new Entry(max + 1, "", null), false);
+        }
+
+        return range;
+    }
+
+    /**
+     * Returns the number of channels in the index.
+     * @return The number of channels, counted
+     */
+    int size() {
+
+        return entries.size();
+    }
+}
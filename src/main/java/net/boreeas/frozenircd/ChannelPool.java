@@ -15,38 +15,89 @@
  */
 package net.boreeas.frozenircd;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import net.boreeas.frozenircd.utils.Filter;
-import net.boreeas.frozenircd.utils.SharedData;
+import net.boreeas.frozenircd.utils.NameKey;
 
 /**
- *
+ * The channels of the network, by name. Lookups and iteration take no lock
+ * and copy nothing, adding and removing channels is serialized.
+ * <p>
+ * Besides the name, channels are indexed by member count, creation time and
+ * the time their topic was set (channels with a topic only). The channels
+ * keep their entries up to date, {@link ChannelQuery} reads them to answer
+ * <code>LIST</code> without looking at every channel.
  * @author Boreeas
  */
 public class ChannelPool {
 
-    private static final Map<String, Channel> channels = new HashMap<>();
+    private static final ConcurrentMap<NameKey, Channel> channels = new ConcurrentHashMap<>();
+
+    static final ChannelIndex BY_SIZE = new ChannelIndex();
+    static final ChannelIndex BY_CREATION = new ChannelIndex();
+    static final ChannelIndex BY_TOPIC_TIME = new ChannelIndex();
 
     public static Channel getChannel(String name) {
 
-        return channels.get(SharedData.toLowerCase(name));
+        return getChannel(NameKey.of(name));
+    }
+
+    public static Channel getChannel(NameKey key) {
+
+        return channels.get(key);
     }
 
-    public synchronized static void addChannel(Channel channel) {
+    /**
+     * Adds a channel, unless there already is a channel with the name.
+     * @param channel The channel
+     * @return The channel in the pool: <code>channel</code>, or the one that was there before
+     */
+    public synchronized static Channel addChannel(Channel channel) {
+
+        Channel existing = channels.putIfAbsent(channel.getKey(), channel);
+
+        if (existing != null) {
+            return existing;
+        }
 
-        channels.put(SharedData.toLowerCase(channel.getName()), channel);
+        channel.setIndexed(true);
+        return channel;
     }
 
     public synchronized static void removeChannel(String name) {
 
-        channels.remove(SharedData.toLowerCase(name));
+        Channel channel = channels.remove(NameKey.of(name));
+
+        if (channel != null) {
+            channel.setIndexed(false);
+        }
     }
 
+    /**
+     * Returns the channels. The view is not a copy and can be iterated while
+     * channels are added and removed.
+     * @return A live, unmodifiable view of the channels
+     */
+    public static Collection<Channel> getChannels() {
+
+        return Collections.unmodifiableCollection(channels.values());
+    }
+
+    /**
+     * Returns the number of channels.
+     * @return The number of channels
+     */
+    public static int size() {
+
+        return channels.size();
+    }
 
-    public synchronized static Set<Channel> getChannels(Filter<Channel> filter) {
+    public static Set<Channel> getChannels(Filter<Channel> filter) {
 
         Set<Channel> results = new HashSet<>();
 
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.boreeas.frozenircd.utils.PatternMatcher;
+
+/**
+ * A <code>LIST</code> query with ELIST conditions, read page by page. The
+ * conditions are separated by commas:
+ * <ul>
+ * <li><code>&gt;n</code>, <code>&lt;n</code> - more or less than n users</li>
+ * <li><code>C&gt;n</code>, <code>C&lt;n</code> - created more or less than n minutes ago</li>
+ * <li><code>T&gt;n</code>, <code>T&lt;n</code> - topic set more or less than n minutes ago</li>
+ * <li><code>!mask</code> - channels whose name does not match the mask</li>
+ * <li>anything else - channels whose name matches the mask</li>
+ * </ul>
+ * The channels are read from the index of the {@link ChannelPool} that fits
+ * the conditions best, in its order, so only the channels in the range of
+ * that index are looked at. Masks without wildcards are looked up by name.
+ * Each page continues where the last one ended, so the whole reply is never
+ * built at once.
+ * @author Boreeas
+ */
+public final class ChannelQuery {
+
+    private final List<String> masks = new ArrayList<>();
+    private final List<String> excludedMasks = new ArrayList<>();
+
+    private long minUsers = 0;
+    private long maxUsers = Long.MAX_VALUE;
+    private long minCreated = Long.MIN_VALUE;
+    private long maxCreated = Long.MAX_VALUE;
+    private long minTopicSet = Long.MIN_VALUE;
+    private long maxTopicSet = Long.MAX_VALUE;
+
+    private boolean usersCondition;
+    private boolean createdCondition;
+    private boolean topicCondition;
+
+    /**
+     * Where the next page starts, in the index the query reads.
+     */
+    private ChannelIndex.Entry position;
+    private boolean exhausted;
+
+    private ChannelQuery() {}
+
+    /**
+     * Parses the conditions of a <code>LIST</code> command.
+     * @param conditions The conditions, separated by commas, may be empty
+     * @param now The current time, in milliseconds
+     * @return The query
+     */
+    public static ChannelQuery parse(String conditions, long now) {
+
+        ChannelQuery query = new ChannelQuery();
+
+        for (String condition: conditions.split(",")) {
+
+            if (condition.isEmpty()) {
+                continue;
+            }
+
+            char first = condition.charAt(0);
+
+            if ((first == '>' || first == '<') && query.parseUsers(first, condition.substring(1))) {
+                continue;
+            }
+
+            if ((first == 'C' || first == 'T') && condition.length() > 1
+                    && query.parseTime(first, condition.charAt(1), condition.substring(2), now)) {
+                continue;
+            }
+
+            if (first == '!' && condition.length() > 1) {
+                query.excludedMasks.add(condition.substring(1));
+            } else {
+                query.masks.add(condition);
+            }
+        }
+
+        return query;
+    }
+
+    private boolean parseUsers(char comparison, String number) {
+
+        long users = parseNumber(number);
+
+        if (users < 0) {
+            return false;
+        }
+
+        if (comparison == '>') {
+            minUsers = Math.max(minUsers, users + 1);
+        } else {
+            maxUsers = Math.min(maxUsers, users - 1);
+        }
+
+        usersCondition = true;
+        return true;
+    }
+
+    private boolean parseTime(char field, char comparison, String number, long now) {
+
+        long minutes = parseNumber(number);
+
+        if (minutes < 0 || (comparison != '>' && comparison != '<')) {
+            return false;
+        }
+
+        long time = now - TimeUnit.MINUTES.toMillis(minutes);
+
+        // More than n minutes ago is before the time, less is after it
+        if (field == 'C') {
+
+            if (comparison == '>') {
+                maxCreated = Math.min(maxCreated, time - 1);
+            } else {
+                minCreated = Math.max(minCreated, time + 1);
+            }
+
+            createdCondition = true;
+        } else {
+
+            if (comparison == '>') {
+                maxTopicSet = Math.min(maxTopicSet, time - 1);
+            } else {
+                minTopicSet = Math.max(minTopicSet, time + 1);
+            }
+
+            topicCondition = true;
+        }
+
+        return true;
+    }
+
+    private static long parseNumber(String number) {
+
+        if (number.isEmpty() || number.length() > 9) {
+            return -1;
+        }
+
+        for (int i = 0; i < number.length(); i++) {
+
+            if (number.charAt(i) < '0' || number.charAt(i) > '9') {
+                return -1;
+            }
+        }
+
+        return Long.parseLong(number);
+    }
+
+    /**
+     * Returns the next channels that match the query.
+     * @param max The most channels to return
+     * @return The channels, or an empty list if there are no more
+     */
+    public List<Channel> next(int max) {
+
+        List<Channel> page = new ArrayList<>();
+
+        if (exhausted) {
+            return page;
+        }
+
+        if (!masks.isEmpty() && !hasWildcards(masks)) {
+
+            // Only named channels, few enough for one page
+            for (String name: masks) {
+
+                Channel channel = ChannelPool.getChannel(name);
+
+                if (channel != null && matchesConditions(channel)) {
+                    page.add(channel);
+                }
+            }
+
+            exhausted = true;
+            return page;
+        }
+
+        for (ChannelIndex.Entry entry: range()) {
+
+            position = entry;
+
+            if (matches(entry.channel)) {
+
+                page.add(entry.channel);
+
+                if (page.size() >= max) {
+                    return page;
+                }
+            }
+        }
+
+        exhausted = true;
+        return page;
+    }
+
+    /**
+     * Returns the rest of the index range that fits the conditions.
+     * @return A view of the range, after the current position
+     */
+    private Iterable<ChannelIndex.Entry> range() {
+
+        if (usersCondition) {
+            return ChannelPool.BY_SIZE.range(minUsers, maxUsers, position);
+        } else if (createdCondition) {
+            return ChannelPool.BY_CREATION.range(minCreated, maxCreated, position);
+        } else if (topicCondition) {
+            return ChannelPool.BY_TOPIC_TIME.range(minTopicSet, maxTopicSet, position);
+        }
+
+        return ChannelPool.BY_CREATION.range(Long.MIN_VALUE, Long.MAX_VALUE, position);
+    }
+
+    /**
+     * Tells whether a channel matches all conditions and masks, as it is now.
+     * @param channel The channel
+     * @return <code>true</code> if the channel matches
+     */
+    boolean matches(Channel channel) {
+
+        if (!matchesConditions(channel)) {
+            return false;
+        }
+
+        if (masks.isEmpty()) {
+            return true;
+        }
+
+        for (String mask: masks) {
+
+            if (PatternMatcher.matchGlob(mask, channel.getName())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean matchesConditions(Channel channel) {
+
+        int users = channel.size();
+
+        if (users < minUsers || users > maxUsers) {
+            return false;
+        }
+
+        if (channel.getCreationTime() < minCreated || channel.getCreationTime() > maxCreated) {
+            return false;
+        }
+
+        if (topicCondition && (channel.getTopic() == null
+                               || channel.getTopicSetTime() < minTopicSet || channel.getTopicSetTime() > maxTopicSet)) {
+            return false;
+        }
+
+        for (String mask: excludedMasks) {
+
+            if (PatternMatcher.matchGlob(mask, channel.getName())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean hasWildcards(List<String> masks) {
+
+        for (String mask: masks) {
+
+            if (mask.indexOf('*') >= 0 || mask.indexOf('?') >= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
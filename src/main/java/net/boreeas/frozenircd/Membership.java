@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd;
+
+import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.utils.TimingWheel;
+
+/**
+ * A client in a channel, with its status there. Held by both the channel and
+ * the client, so that either finds the other without a lookup by name, and
+ * status checks are a read of a field.
+ * @author Boreeas
+ */
+public final class Membership {
+
+    /**
+     * The member is a channel operator.
+     */
+    public static final int OP      = 1;
+
+    /**
+     * The member may speak in a moderated channel.
+     */
+    public static final int VOICE   = 1 << 1;
+
+    /**
+     * Marks that the mute check below needs to be done again.
+     */
+    private static final long UNCHECKED = -1;
+
+    private final Channel channel;
+    private final Client client;
+    private final long joinTime = TimingWheel.currentTimeMillis();
+
+    /**
+     * The status bits. Changed under the monitor of this membership.
+     */
+    private volatile int status;
+
+    /**
+     * Whether the hostmask of the member matches a ban or mute mask: the mask
+     * version of the channel the check was done for, shifted left by one, with
+     * the result in the lowest bit. <code>UNCHECKED</code> if the hostmask has
+     * changed since.
+     */
+    private volatile long muted = UNCHECKED;
+
+    Membership(Channel channel, Client client, int status) {
+
+        this.channel = channel;
+        this.client = client;
+        this.status = status;
+    }
+
+    public Channel getChannel() {
+
+        return channel;
+    }
+
+    public Client getClient() {
+
+        return client;
+    }
+
+    /**
+     * Returns the time the client joined the channel.
+     * @return The time, in milliseconds
+     */
+    public long getJoinTime() {
+
+        return joinTime;
+    }
+
+    /**
+     * Tells whether the member has all of the given status bits.
+     * @param bits The status bits, e.g. {@link #OP}
+     * @return <code>true</code> if all of them are set
+     */
+    public boolean hasStatus(int bits) {
+
+        return (status & bits) == bits;
+    }
+
+    public boolean isOp() {
+
+        return (status & OP) != 0;
+    }
+
+    public boolean isVoiced() {
+
+        return (status & (OP | VOICE)) != 0;  // Op implies voice
+    }
+
+    /**
+     * Tells whether the member may not speak because a ban or mute mask matches
+     * it. The masks are only matched again after they or the hostmask of the
+     * member have changed.
+     * @return <code>true</code> if the member is muted
+     */
+    public boolean isMuted() {
+
+        long checked = muted;
+        int version = channel.getMaskVersion();
+
+        if (checked != UNCHECKED && (checked >>> 1) == (version & 0xFFFFFFFFL)) {
+            return (checked & 1) != 0;
+        }
+
+        // A change to the masks during the check changes the version, so the
+        // result is stored for a version that is already outdated
+        boolean result = channel.matchesMuteMasks(client);
+        muted = ((version & 0xFFFFFFFFL) << 1) | (result ? 1 : 0);
+
+        return result;
+    }
+
+    synchronized void addStatus(int bits) {
+
+        status |= bits;
+    }
+
+    synchronized void removeStatus(int bits) {
+
+        status &= ~bits;
+    }
+
+    /**
+     * Makes the next mute check match the masks again, after the hostmask of
+     * the member has changed.
+     */
+    public void hostmaskChanged() {
+
+        muted = UNCHECKED;
+    }
+}
@@ -17,6 +17,7 @@ package net.boreeas.frozenircd;
 
 import java.util.Objects;
 import net.boreeas.frozenircd.utils.SharedData;
+import net.boreeas.frozenircd.utils.TimingWheel;
 
 /**
  *
@@ -30,8 +31,8 @@ public class ModeListEntry {
 
     public ModeListEntry(String entry, String issuerMask) {
         this.entry = SharedData.toLowerCase(entry);
-        this.issuerMask = SharedData.toLowerCase(entry);
-        this.time = System.currentTimeMillis();
+        this.issuerMask = SharedData.toLowerCase(issuerMask);
+        this.time = TimingWheel.currentTimeMillis();
     }
 
     public String format() {
@@ -25,6 +25,7 @@ import java.util.Set;
 import net.boreeas.frozenircd.config.ConfigData;
 import net.boreeas.frozenircd.config.ConfigKey;
 import net.boreeas.frozenircd.connection.ConnectionPool;
+import net.boreeas.frozenircd.connection.EventLoopGroup;
 
 /**
  * Represents the Server.
@@ -50,44 +51,82 @@ public enum Server {
 
     public void start() {
 
+        if (SharedData.nonBlockingIO) {
+            EventLoopGroup.INSTANCE.start();
+        }
+
         linkServers();
         startListeners();
-        startPingDaemon();
     }
 
     public void startListeners() {
 
         SharedData.logger.info("Starting listeners:");
         String host = ConfigData.getFirstConfigOption(ConfigKey.HOST);
+        int acceptors = Math.max(1, Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.LISTEN_ACCEPTORS)));
 
         for (String port: ConfigData.getConfigOption(ConfigKey.PORTS)) {
+            listen(host, port, false, acceptors);
+        }
 
-            boolean useSSL = false;
-
-            if (port.startsWith("+")) {
+        for (String port: ConfigData.getConfigOption(ConfigKey.LINK_PORTS)) {
 
-                // +[port] indicates an SSL port
-                useSSL = true;
-                port = port.substring(1);
+            if (!port.isEmpty()) {
+                listen(host, port, true, 1);
             }
+        }
 
-            if (!port.matches("[0-9]+")) {
+        for (ConnectionListener listener: connectionListeners) {
+            listener.start();
+        }
+    }
 
-                SharedData.logger.error(String.format("Invalid port entry: Not an integer: %s (Skipping)", port));
-                continue;
-            }
+    /**
+     * Creates the listeners for a port entry.
+     * @param host The address to bind to
+     * @param port The port entry, <code>+[port]</code> for SSL ports
+     * @param links Whether the port accepts links from other servers instead of clients
+     * @param acceptors The number of listeners to accept connections on the port
+     */
+    private void listen(String host, String port, boolean links, int acceptors) {
 
-            try {
+        boolean useSSL = false;
 
-                SharedData.logger.info(String.format("Binding to %s:%s (%s)", host, port, (useSSL) ? "ssl" : "no ssl"));
+        if (port.startsWith("+")) {
 
-                ConnectionListener connListener = new ConnectionListener(host, Integer.parseInt(port), useSSL);
-                connListener.start();
+            // +[port] indicates an SSL port
+            useSSL = true;
+            port = port.substring(1);
+        }
 
-                connectionListeners.add(connListener);
-            } catch (IOException ex) {
-                SharedData.logger.error(String.format("Unable to listen on port %s", port), ex);
+        if (!port.matches("[0-9]+")) {
+
+            SharedData.logger.error(String.format("Invalid port entry: Not an integer: %s (Skipping)", port));
+            return;
+        }
+
+        if (useSSL && links) {
+
+            SharedData.logger.error(String.format("Invalid port entry: Links don't support SSL: +%s (Skipping)", port));
+            return;
+        }
+
+        try {
+
+            SharedData.logger.info(String.format("Binding to %s:%s (%s%s)", host, port, (useSSL) ? "ssl" : "no ssl",
+                                                 (links) ? ", server links" : ""));
+
+            ConnectionListener first = new ConnectionListener(host, Integer.parseInt(port), useSSL, links, 0);
+            connectionListeners.add(first);
+
+            for (int i = 1; i < acceptors; i++) {
+
+                connectionListeners.add((first.usesReusePort())
+                                            ? new ConnectionListener(host, Integer.parseInt(port), useSSL, links, i)
+                                            : new ConnectionListener(first, i));
             }
+        } catch (IOException ex) {
+            SharedData.logger.error(String.format("Unable to listen on port %s", port), ex);
         }
     }
 
@@ -105,15 +144,11 @@ public enum Server {
         SharedData.logger.info("Disconnecting connected clients");
         SharedData.logger.info("Delinking servers");
         ConnectionPool.ALL.disconnectAll();
+        EventLoopGroup.INSTANCE.shutdown();
 
         SharedData.logger.info("Spinning down");
     }
 
-    private void startPingDaemon() {
-
-        new PingDaemon().start();
-    }
-
     /**
      * Establishes a link connection to all servers specified in the config
      */
@@ -129,8 +164,8 @@ public enum Server {
                 String password = data[2];
 
                 ServerLink newLink = new ServerLink(host, port, password);
-                ConnectionPool.ALL.addConnection(newLink.getUUID(), newLink);
-                ConnectionPool.LINKS.addConnection(newLink.getUUID(), newLink);
+                ConnectionPool.register(newLink);
+                newLink.start();
             } catch (ArrayIndexOutOfBoundsException oobe) {
 
                 // We did not get enough arguments to complete the connection
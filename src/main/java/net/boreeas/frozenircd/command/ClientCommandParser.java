@@ -16,21 +16,28 @@
 package net.boreeas.frozenircd.command;
 
 import java.security.NoSuchAlgorithmException;
-import java.util.Set;
+import java.util.List;
 import net.boreeas.frozenircd.Channel;
 import net.boreeas.frozenircd.ChannelPool;
+import net.boreeas.frozenircd.ChannelQuery;
 import net.boreeas.frozenircd.Flagable;
+import net.boreeas.frozenircd.Membership;
 import net.boreeas.frozenircd.Server;
 import net.boreeas.frozenircd.config.IncompleteConfigurationException;
 import net.boreeas.frozenircd.connection.Connection;
 import net.boreeas.frozenircd.connection.ConnectionPool;
+import net.boreeas.frozenircd.connection.ReplyStream;
 import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.connection.server.ServerLink;
+import net.boreeas.frozenircd.connection.server.ServerProtocol;
 import net.boreeas.frozenircd.utils.Filter;
 import net.boreeas.frozenircd.utils.HashUtils;
+import net.boreeas.frozenircd.utils.Metrics;
 import net.boreeas.frozenircd.utils.PatternMatcher;
 import net.boreeas.frozenircd.utils.SharedData;
 import net.boreeas.frozenircd.utils.Stats;
 import net.boreeas.frozenircd.utils.StringUtils;
+import net.boreeas.frozenircd.utils.TimingWheel;
 
 import static net.boreeas.frozenircd.command.Reply.*;
 import static net.boreeas.frozenircd.config.ConfigData.*;
@@ -59,6 +66,7 @@ public class ClientCommandParser {
     private static final String LIST = "LIST";
     private static final String KICK = "KICK";
     private static final String MOTD = "MOTD";
+    private static final String STATS = "STATS";
     private static final String TOPIC = "TOPIC";
     private static final String NAMES = "NAMES";
     private static final String LUSERS = "LUSERS";
@@ -66,84 +74,102 @@ public class ClientCommandParser {
     private static final String NOTICE = "NOTICE";
     private static final String PRIVMSG = "PRIVMSG";
 
+    /**
+     * Every command the parser knows, roughly by frequency. Incoming commands are
+     * matched against these without decoding them.
+     */
+    private static final String[] COMMANDS = { PRIVMSG, PING, PONG, NOTICE, JOIN, PART, MODE, NICK, USER, PASS,
+                                               QUIT, TOPIC, NAMES, LIST, INVITE, KICK, MOTD, LUSERS, STATS,
+                                               OPER, DIE, STOP };
 
-    public static void parseClientCommand(String command, Client client, String[] args) {
+    /**
+     * The number of channels <code>LIST</code> reads and sends at a time.
+     */
+    private static final int LIST_PAGE_SIZE = 100;
 
-        command = command.toUpperCase();
+    /**
+     * The number of channels <code>NAMES</code> without arguments sends at a time.
+     */
+    private static final int NAMES_PAGE_SIZE = 20;
+
+
+    public static void parseClientCommand(Client client, ParsedMessage message) {
+
+        String command = lookupCommand(message);
 
         switch (command) {
 
             case PING:
-                onPingCommand(client, args);
+                onPingCommand(client, message);
                 break;
 
             case PONG:
-                onPongCommand(client, args);
+                onPongCommand(client, message);
                 break;
 
             case MODE:
-                onModeCommand(client, args);
+                onModeCommand(client, message.params());
                 break;
 
             case NICK:
-                onNickCommand(client, args);
+                onNickCommand(client, message.params());
                 break;
 
             case OPER:
-                onOperCommand(client, args);
+                onOperCommand(client, message.params());
                 break;
 
             case PASS:
-                onPassCommand(client, args);
+                onPassCommand(client, message.params());
                 break;
 
             case QUIT:
-                onQuitCommand(client, args);
+                onQuitCommand(client, message.params());
                 break;
 
             case DIE:
             case STOP:
-                onStopCommand(client, args);
+                onStopCommand(client, message.params());
                 break;
 
             case USER:
-                onUserCommand(client, args);
+                onUserCommand(client, message.params());
                 break;
 
             case JOIN:
-                onJoinCommand(client, args);
+                onJoinCommand(client, message);
                 break;
 
             case PART:
-                onPartCommand(client, args);
+                onPartCommand(client, message.params());
                 break;
 
             case TOPIC:
-                onTopicCommand(client, args);
+                onTopicCommand(client, message.params());
                 break;
 
             case PRIVMSG:
-                onMessageCommand(client, args, Command.PRIVMSG);
+                onMessageCommand(client, message, Command.PRIVMSG);
                 break;
 
             case NOTICE:
-                onMessageCommand(client, args, Command.NOTICE);
+                onMessageCommand(client, message, Command.NOTICE);
                 break;
 
             case NAMES:
-                onNamesCommand(client, args);
+                onNamesCommand(client, message.params());
                 break;
 
             case LIST:
-                onListCommand(client, args);
+                onListCommand(client, message.params());
                 break;
 
             case INVITE:
-                onInviteCommand(client, args);
+                onInviteCommand(client, message.params());
                 break;
 
             case KICK:
-                onKickCommand(client, args);
+                onKickCommand(client, message.params());
                 break;
 
             case MOTD:
@@ -154,42 +180,62 @@ public class ClientCommandParser {
                 onLusersCommand(client);
                 break;
 
+            case STATS:
+                onStatsCommand(client, message.params());
+                break;
+
             default:
                 onUnknownCommand(client, command);
                 break;
         }
     }
 
+    /**
+     * Returns the constant for the command of a message.
+     * @param message The message
+     * @return The known command, or the upper case command if it is unknown
+     */
+    private static String lookupCommand(ParsedMessage message) {
 
+        for (String command: COMMANDS) {
 
-    private static void onPingCommand(Client client, String[] args) {
+            if (message.commandEquals(command)) {
+                return command;
+            }
+        }
 
-        if (args.length < 1) {
+        return message.command();
+    }
+
+
+
+    private static void onPingCommand(Client client, ParsedMessage message) {
+
+        if (message.paramCount() < 1) {
 
             client.sendStandardFormat(ERR_NEEDMOREPARAMS.format(client.getSafeNickname(), PING, "<message>"));
             return;
         }
 
-        client.sendStandardFormat("PONG :" + args[0]);
+        client.sendStandardFormat("PONG :" + message.param(0));
     }
 
-    private static void onPongCommand(Client client, String[] args) {
+    private static void onPongCommand(Client client, ParsedMessage message) {
 
-        if (args.length == 0) {
+        if (message.paramCount() == 0) {
 
             client.send(ERR_NEEDMOREPARAMS.format(client.getSafeNickname(), PONG, "<key>"));
             return;
         }
 
-        client.updatePing(args[0]);
+        client.updatePing(message.param(0));
     }
 
     private static void onQuitCommand(Client client, String[] args) {
 
         String quitMessage = ( args.length == 0 ) ? client.getSafeNickname() : StringUtils.joinArray(args);
 
-        client.broadcastToChannels(Command.QUIT.format(quitMessage));
-
+        // The channels and linked servers are told when the client is gone
         client.disconnect(quitMessage);
     }
 
@@ -220,18 +266,13 @@ public class ClientCommandParser {
                 args[0] = args[0].substring(0, SharedData.maxNickLength);
             }
 
-            if (!client.receivedIdentResponse()) {
-                client.setUsername(args[0]);
-            }
+            client.setUsername(args[0]);
 
             client.setRealname(StringUtils.joinArray(args, 3));
         }
 
 
-        if (!client.rplWelcomeSent() && client.registrationCompleted()) {
-
-            client.onRegistrationComplete();
-        }
+        client.completeRegistration();
     }
 
     private static void onNickCommand(Client client, String[] args) {
@@ -255,26 +296,29 @@ public class ClientCommandParser {
 
             client.sendStandardFormat(ERR_ERRONEUSNICKNAME.format(nickname, args[0], "Illegal nickname"));
 
-        } else if (isNameInUse(client, args[0])) {
-
-            client.sendStandardFormat(Reply.ERR_NICKNAMEINUSE.format(nickname, args[0]));
-
         } else {
 
             if (!isNameLengthOK(args[0])) {
                 args[0] = args[0].substring(0, SharedData.maxNickLength);
             }
 
+            // Checking and taking the nickname is one step, two users can't get the same one
+            if (!ConnectionPool.reserveNickname(client, args[0])) {
 
-            client.broadcastToChannels(Command.NICK.format(args[0]));
-            client.setNickname(args[0]);
-        }
-
+                client.sendStandardFormat(Reply.ERR_NICKNAMEINUSE.format(nickname, args[0]));
+            } else {
 
-        if (!client.rplWelcomeSent() && client.registrationCompleted()) {
+                client.broadcastToChannels(Command.NICK.format(args[0]));
+                client.setNickname(args[0]);
 
-            client.onRegistrationComplete();
+                if (client.rplWelcomeSent()) {
+                    ServerProtocol.relay(client, Command.NICK.format(args[0]));
+                }
+            }
         }
+
+
+        client.completeRegistration();
     }
 
     private static void onPassCommand(Client client, String[] args) {
@@ -356,6 +400,7 @@ public class ClientCommandParser {
 
         client.sendStandardFormat(Reply.RPL_YOUREOPER.format(client.getSafeNickname()));
         client.addFlag(Mode.UMODE_OPER, null);
+        ServerProtocol.relay(client, "MODE " + client.getId() + " +" + Mode.UMODE_OPER);
     }
 
     private static void onModeCommand(Client client, String[] args) {
@@ -418,7 +463,7 @@ public class ClientCommandParser {
 
             String stop = "Server shutting down (" + STOP + " command invoked by " + client.getNickname()
                         + "(" + client.getHostmask() + ") (Reason: " + reason + ")";
-            ConnectionPool.ALL.notifyClients(stop);
+            ConnectionPool.CLIENTS.notifyClients(stop);
 
             Server.INSTANCE.close();
         } else {
@@ -428,13 +473,13 @@ public class ClientCommandParser {
     }
 
     @SuppressWarnings("unchecked")
-    private static void onJoinCommand(Client client, String[] args) {
+    private static void onJoinCommand(Client client, ParsedMessage message) {
 
         if (!client.registrationCompleted()) {
             return;
         }    // Drop
 
-        if (args.length < 1) {
+        if (message.paramCount() < 1) {
             client.sendStandardFormat(ERR_NEEDMOREPARAMS.format(client.getNickname(),
                                                                 JOIN, "<channel> [password]"));
             return;
@@ -442,7 +487,7 @@ public class ClientCommandParser {
 
         boolean partAll = false;
 
-        for (String chan: args[0].split(",")) {
+        for (String chan: message.param(0).split(",")) {
 
             if (chan.equals("0")) {
                 partAll = true;
@@ -520,29 +565,33 @@ public class ClientCommandParser {
 
             chan.setTopic(topic);
             chan.sendFromClient(client, TOPIC + " " + args[0] + " :" + args[1]);
+
+            ServerProtocol.relay(client, TOPIC + " " + chan.getName() + " :" + args[1]);
         }
     }
 
-    private static void onMessageCommand(Client client, final String[] args, Command cmd) {
+    private static void onMessageCommand(Client client, ParsedMessage message, Command cmd) {
 
         if (!client.registrationCompleted()) {
             return;
         }
 
-        if (args.length < 2 || args[1].isEmpty()) {
+        if (message.paramCount() < 2 || message.param(1).isEmpty()) {
             client.sendStandardFormat(Reply.ERR_NEEDMOREPARAMS.format(client.getNickname(),
                                                                       cmd, "<target> <message>"));
             return;
         }
 
-        if (Channel.isChanTypeSupported(args[0].charAt(0))) {
-            messageChannel(client, args[0], args[1], cmd);
+        String target = message.param(0);
+
+        if (Channel.isChanTypeSupported(target.charAt(0))) {
+            messageChannel(client, target, message.param(1), cmd);
         } else {
-            messageConnections(client, args[0], args[1], cmd);
+            messageConnections(client, target, message.param(1), cmd);
         }
     }
 
-    private static void onNamesCommand(Client client, String[] args) {
+    private static void onNamesCommand(final Client client, String[] args) {
 
         if (!client.registrationCompleted()) {
             return;
@@ -550,15 +599,33 @@ public class ClientCommandParser {
 
         if (args.length == 0) {
 
-            @SuppressWarnings("unchecked")
-            Set<Channel> results = ChannelPool.getChannels(SharedData.passAllFilter);
-            for (Channel chan: results) {
+            // All channels, sent as the client reads them
+            final ChannelQuery query = ChannelQuery.parse("", TimingWheel.currentTimeMillis());
 
-                String names = (client.isInChannel(chan.getName())) ? chan.names() : chan.visibleNames();
-                if (names.isEmpty()) continue;
+            client.stream(new ReplyStream() {
 
-                client.sendStandardFormat(Reply.RPL_NAMREPLY.format(client.getNickname(), '=', chan.getName(), names));
-            }
+                @Override
+                public boolean sendNext() {
+
+                    List<Channel> page = query.next(NAMES_PAGE_SIZE);
+
+                    if (page.isEmpty()) {
+
+                        client.sendStandardFormat(Reply.RPL_ENDOFNAMES.format(client.getNickname(), "*"));
+                        return false;
+                    }
+
+                    for (Channel chan: page) {
+
+                        String names = (client.getMembership(chan) != null) ? chan.names() : chan.visibleNames();
+                        if (names.isEmpty()) continue;
+
+                        client.sendStandardFormat(Reply.RPL_NAMREPLY.format(client.getNickname(), '=', chan.getName(), names));
+                    }
+
+                    return true;
+                }
+            });
 
         } else {
 
@@ -581,50 +648,38 @@ public class ClientCommandParser {
             return;
         }
 
-        Filter<Channel> chanFilter;
-
-        if (args.length == 0) {
-
-            chanFilter = new Filter<Channel>() {
+        final ChannelQuery query = ChannelQuery.parse((args.length == 0) ? "" : args[0], TimingWheel.currentTimeMillis());
 
-                @Override
-                public boolean pass(Channel chan) {
-                    return !chan.hasFlag(Mode.CMODE_SECRET) || client.isInChannel(chan.getName());
-                }
-            };
-        } else {
-
-            final String[] channels = args[0].split(",");
+        client.sendStandardFormat(Reply.RPL_LISTSTART.format(client.getNickname()));
 
-            chanFilter = new Filter<Channel>() {
+        // Page by page as the client reads them, so that a large network never
+        // has its whole list in memory or in the send queue
+        client.stream(new ReplyStream() {
 
-                @Override
-                public boolean pass(Channel chan) {
+            @Override
+            public boolean sendNext() {
 
-                    if (chan.hasFlag(Mode.CMODE_SECRET) && !client.isInChannel(chan.getName())) {
-                        return false;
-                    }
+                List<Channel> page = query.next(LIST_PAGE_SIZE);
 
-                    for (String name: channels) {
-                        if (PatternMatcher.matchGlob(name, chan.getName())) {
-                            return true;
-                        }
-                    }
+                if (page.isEmpty()) {
 
+                    client.sendStandardFormat(Reply.RPL_LISTEND.format(client.getNickname()));
                     return false;
                 }
-            };
-        }
 
-        client.sendStandardFormat(Reply.RPL_LISTSTART.format(client.getNickname()));
+                for (Channel chan: page) {
 
-        for (Channel chan: ChannelPool.getChannels(chanFilter)) {
+                    if (chan.hasFlag(Mode.CMODE_SECRET) && client.getMembership(chan) == null) {
+                        continue;
+                    }
 
-            String reply = Reply.RPL_LIST.format(client.getNickname(), chan.getName(), chan.size(), chan.getTopic());
-            client.sendStandardFormat(reply);
-        }
+                    String reply = Reply.RPL_LIST.format(client.getNickname(), chan.getName(), chan.size(), chan.getTopic());
+                    client.sendStandardFormat(reply);
+                }
 
-        client.sendStandardFormat(Reply.RPL_LISTEND.format(client.getNickname()));
+                return true;
+            }
+        });
     }
 
     private static void onInviteCommand(Client client, final String[] args) {
@@ -643,21 +698,13 @@ public class ClientCommandParser {
         final String nick = args[0];
 
         Channel chan = ChannelPool.getChannel(channel);
-        Set<Connection> targets = ConnectionPool.ALL.getConnections(new Filter<Connection>() {
+        Client target = findClient(nick);
 
-            @Override
-            public boolean pass(Connection instance) {
-                return SharedData.stringsEqual(nick, instance.getCommonName());
-            }
-        });
-
-        if (targets.isEmpty() || !(targets.toArray()[0] instanceof Client)) {
+        if (target == null) {
             client.sendStandardFormat(ERR_NOSUCHNICK.format(client.getNickname(), nick));
             return;
         }
 
-        Client target = (Client) targets.toArray()[0];
-
         if (chan != null) {
 
             if (chan.hasFlag(Mode.CMODE_INVITEONLY) && !chan.isOp(client)) {
@@ -665,7 +712,7 @@ public class ClientCommandParser {
                 return;
             }
 
-            if (!client.isInChannel(chan.getName())) {
+            if (client.getMembership(chan) == null) {
                 client.sendStandardFormat(ERR_NOTONCHANNEL.format(client.getNickname(), channel));
                 return;
             }
@@ -759,6 +806,56 @@ public class ClientCommandParser {
 
 
 
+    private static void onStatsCommand(Client client, String[] args) {
+
+        if (!client.registrationCompleted()) {
+            return;
+        }
+
+        String query = (args.length == 0) ? "*" : args[0];
+
+        if (query.equals("z") || query.equals("l") || query.equals("?")) {
+
+            if (!client.hasFlag(Mode.UMODE_OPER)) {
+                client.sendStandardFormat(Reply.ERR_NOPRIVILEGES.format(client.getSafeNickname()));
+                return;
+            }
+        }
+
+        if (query.equals("z")) {
+
+            for (Metrics metric: Metrics.values()) {
+                client.sendStandardFormat(RPL_STATSDEBUG.format(client.getNickname(), query, metric.summary()));
+            }
+        } else if (query.equals("l")) {
+
+            for (Connection conn: ConnectionPool.ALL.getConnections()) {
+                client.sendStandardFormat(RPL_STATSLINKINFO.format(client.getNickname(),
+                                                                   conn.getCommonName() + "[" + conn + "]",
+                                                                   conn.getSendQueueBytes(),
+                                                                   conn.getPeakSendQueueBytes(),
+                                                                   conn.getSendQueueLines(),
+                                                                   conn.getFlushCount(),
+                                                                   conn.getBytesPerFlush()));
+            }
+        } else if (query.equals("?")) {
+
+            // Server links, with how well they compress
+            for (ServerLink link: ConnectionPool.LINKS.getConnections()) {
+
+                String compression = link.getCompressionSummary();
+                client.sendStandardFormat(RPL_STATSDEBUG.format(client.getNickname(), query,
+                                                                link.getCommonName() + " " + link.getFlushCount()
+                                                                + " flushes, " + link.getBytesPerFlush() + " bytes/flush, "
+                                                                + ((compression == null) ? "not compressed" : compression)));
+            }
+        }
+
+        client.sendStandardFormat(RPL_ENDOFSTATS.format(client.getNickname(), query));
+    }
+
+
+
     private static void onUnknownCommand(Client client, String command) {
 
         client.sendStandardFormat(Reply.ERR_UNKNOWNCOMMAND.format(client.getSafeNickname(), command));
@@ -778,17 +875,14 @@ public class ClientCommandParser {
         return false;
     }
 
-    @SuppressWarnings("unchecked")
-    private static boolean isNameInUse(Client client, String name) {
-
-        for (Connection conn : ConnectionPool.ALL.getConnections(SharedData.passAllFilter)) {
+    /**
+     * Finds a user on this or another server.
+     * @param nick The nickname of the user
+     * @return The user, or <code>null</code> if there is no such user
+     */
+    private static Client findClient(String nick) {
 
-            if (conn != client && SharedData.stringsEqual(name, conn.getCommonName())) {
-                return true;
-            }
-        }
-
-        return false;
+        return ConnectionPool.findByNickname(nick);
     }
 
     private static boolean isNameLegal(String name) {
@@ -808,8 +902,7 @@ public class ClientCommandParser {
         Channel channel = ChannelPool.getChannel(chanName);
 
         if (channel == null) {
-            channel = new Channel(SharedData.toLowerCase(chanName));
-            ChannelPool.addChannel(channel);
+            channel = ChannelPool.addChannel(new Channel(SharedData.toLowerCase(chanName)));
         }
 
         if (channel.isBanned(client)) {
@@ -823,32 +916,29 @@ public class ClientCommandParser {
         }
 
         channel.joinChannel(client);
-        client.addChannel(channel.getName());
+
+        ServerProtocol.relayJoin(channel, client);
     }
 
     private static void partSingleChannel(Client client, String chanName, String reason) {
 
-        if (!client.isInChannel(chanName)) {
+        Channel chan = ChannelPool.getChannel(chanName);
+
+        if (chan == null || !client.isInChannel(chan.getName())) {
 
             client.sendStandardFormat(Reply.ERR_NOTONCHANNEL.format(client.getNickname(), chanName));
             return;
         }
 
-        client.removeChannel(chanName);
-        ChannelPool.getChannel(chanName).partChannel(client, reason);
+        chan.partChannel(client, reason);
+
+        ServerProtocol.relay(client, Command.PART.format(chan.getName(), reason));
     }
 
     private static void kickSingleUser(Client client, final String nick, String channel, String reason) {
 
         Channel chan = ChannelPool.getChannel(channel);
-
-        Set<Connection> targets = ConnectionPool.ALL.getConnections(new Filter<Connection>() {
-
-            @Override
-            public boolean pass(Connection instance) {
-                return SharedData.stringsEqual(nick, instance.getCommonName());
-            }
-        });
+        Client target = findClient(nick);
 
 
         if (chan == null) {
@@ -856,14 +946,12 @@ public class ClientCommandParser {
             return;
         }
 
-        if (targets.isEmpty() || !(targets.toArray()[0] instanceof Client)) {
+        if (target == null) {
             // RFC2812 demands this instead of ERR_NOSUCHNICKNAME
             client.sendStandardFormat(ERR_USERNOTINCHANNEL.format(client.getNickname(), nick, channel));
             return;
         }
 
-        Client target = (Client) targets.toArray()[0];
-
         if (!client.isInChannel(channel)) {
             client.sendStandardFormat(ERR_NOTONCHANNEL.format(client.getNickname(), channel));
             return;
@@ -880,7 +968,8 @@ public class ClientCommandParser {
         }
 
         chan.kick(client, target, reason);
-        target.removeChannel(channel);
+
+        ServerProtocol.relay(client, Command.KICK.format(chan.getName(), target.getId(), reason));
     }
 
     private static void messageChannel(final Client client, String chanName, String message, Command command) {
@@ -892,9 +981,10 @@ public class ClientCommandParser {
             return;
         }
 
-        if (!client.isInChannel(chanName)
-            || (target.hasFlag(Mode.CMODE_MODERATED) && !target.isVoiced(client))
-            || (target.isMuted(client) && !target.isVoiced(client))) {
+        Membership membership = client.getMembership(target);
+
+        if (membership == null
+            || (!membership.isVoiced() && (target.hasFlag(Mode.CMODE_MODERATED) || membership.isMuted()))) {
 
             client.sendStandardFormat(ERR_CANNOTSENDTOCHANNEL.format(client.getNickname(), chanName));
             return;
@@ -907,36 +997,43 @@ public class ClientCommandParser {
                 return instance != client;
             }
         });
+
+        ServerProtocol.relayToChannel(client, target, command.format(target.getName(), message));
     }
 
     private static void messageConnections(Client client, final String targetName, String message, Command command) {
 
-        Set<Connection> targets = ConnectionPool.ALL.getConnections(new Filter<Connection>() {
+        Client target;
 
-            @Override
-            public boolean pass(Connection instance) {
-                return PatternMatcher.matchGlob(targetName, instance.getCommonName());
-            }
-        });
+        if (targetName.indexOf('*') >= 0 || targetName.indexOf('?') >= 0) {
 
-        if (targets.size() > 1) {
-            client.sendStandardFormat(ERR_TOOMANYTARGETS.format(client.getNickname(), targetName));
-            return;
-        }
+            // A mask has to be matched against every local user
+            target = null;
+
+            for (Client candidate: ConnectionPool.CLIENTS.getConnections()) {
 
-        boolean foundMatch = false;
-        for (Connection conn: targets) {
+                if (PatternMatcher.matchGlob(targetName, candidate.getCommonName())) {
 
-            if (conn instanceof Client) {
+                    if (target != null) {
+                        client.sendStandardFormat(ERR_TOOMANYTARGETS.format(client.getNickname(), targetName));
+                        return;
+                    }
 
-                foundMatch = true;
-                ((Client) conn).sendStandardFormat(command.format(targetName, message));
+                    target = candidate;
+                }
             }
+        } else {
+
+            target = ConnectionPool.findByNickname(targetName);
         }
 
-        if (!foundMatch) {
+        if (target == null) {
+
             client.sendStandardFormat(ERR_NOSUCHNICK.format(client.getNickname(), targetName));
+            return;
         }
+
+        target.sendFromUser(client, command.format(target.getNickname(), message));
     }
 
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.command;
+
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * The share of the input budget each client command takes, set by
+ * <code>input.costs</code>. Commands that are not listed cost one line.
+ * @author Boreeas
+ */
+public final class CommandCosts {
+
+    // Utility class private constructor
+    private CommandCosts() {}
+
+    private static final String[] COMMANDS;
+    private static final int[] COSTS;
+
+    static {
+
+        String[] entries = ConfigData.getConfigOption(ConfigKey.INPUT_COSTS);
+
+        String[] commands = new String[entries.length];
+        int[] costs = new int[entries.length];
+        int count = 0;
+
+        for (String entry: entries) {
+
+            String[] parts = entry.trim().split(":");
+
+            try {
+                if (parts.length == 2) {
+
+                    commands[count] = parts[0].trim().toUpperCase();
+                    costs[count] = Math.max(0, Integer.parseInt(parts[1].trim()));
+                    count++;
+                    continue;
+                }
+            } catch (NumberFormatException ex) {
+                // Reported below
+            }
+
+            SharedData.logger.warn(String.format("Ignoring malformed input.costs entry \"%s\"", entry));
+        }
+
+        COMMANDS = new String[count];
+        COSTS = new int[count];
+        System.arraycopy(commands, 0, COMMANDS, 0, count);
+        System.arraycopy(costs, 0, COSTS, 0, count);
+    }
+
+    /**
+     * Returns the cost of a command.
+     * @param message The parsed command
+     * @return The number of lines of input budget the command takes
+     */
+    public static int cost(ParsedMessage message) {
+
+        for (int i = 0; i < COMMANDS.length; i++) {
+
+            if (message.commandEquals(COMMANDS[i])) {
+                return COSTS[i];
+            }
+        }
+
+        return 1;
+    }
+}
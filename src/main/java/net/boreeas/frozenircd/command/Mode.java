@@ -15,9 +15,12 @@
  */
 package net.boreeas.frozenircd.command;
 
+import java.util.Iterator;
 import net.boreeas.frozenircd.Channel;
 import net.boreeas.frozenircd.Flagable;
+import net.boreeas.frozenircd.connection.ReplyStream;
 import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.connection.server.ServerProtocol;
 import net.boreeas.frozenircd.utils.SharedData;
 
 /**
@@ -51,6 +54,11 @@ public class Mode {
     public static final char CMODE_SECRET     = 's';
     //</editor-fold>
 
+    /**
+     * The number of ban list entries sent at a time.
+     */
+    private static final int BAN_LIST_PAGE_SIZE = 50;
+
 
     public static int handleModeChange(char mode, Client user, Flagable target, boolean adding, String[] args, int argIndex) {
 
@@ -113,6 +121,9 @@ public class Mode {
             } else if (mode == CMODE_INVITEONLY) {
 
                 processCmodeInviteOnly(user, chan, adding);
+            } else if (mode == CMODE_BANNED) {
+
+                argmod = processCmodeBanned(user, chan, adding, args, argIndex);
             } else if (mode == NO_FLAG) {
 
                 String reply = Reply.RPL_CHANNELMODEIS.format(user.getNickname(), chan.getName(),
@@ -142,6 +153,7 @@ public class Mode {
         }
 
         target.removeFlag(UMODE_OPER);
+        relayUmode(target, UMODE_OPER, false);
     }
 
 
@@ -152,6 +164,7 @@ public class Mode {
             return;
         } else {
             target.removeFlag(UMODE_REGISTERED);
+            relayUmode(target, UMODE_REGISTERED, false);
         }
     }
 
@@ -173,17 +186,32 @@ public class Mode {
         defaultAddCmode(user, target, CMODE_INVITEONLY, null, adding);
     }
 
-    private static int processCmodeBanned(Client user, Channel target, boolean adding, String[] args, int argIndex) {
+    private static int processCmodeBanned(final Client user, final Channel target, boolean adding, String[] args, int argIndex) {
 
-        // TODO implementation of +b
         if (argIndex >= args.length) {
 
-            for (String banListEntry: target.banList()) {
-                String reply = Reply.RPL_BANLIST.format(user.getNickname(), target.getName(), banListEntry);
-                user.sendStandardFormat(reply);
-            }
+            // A copy of the list, sent as the client reads it
+            final Iterator<String> banList = target.banList().iterator();
+
+            user.stream(new ReplyStream() {
+
+                @Override
+                public boolean sendNext() {
+
+                    for (int i = 0; i < BAN_LIST_PAGE_SIZE && banList.hasNext(); i++) {
+                        String reply = Reply.RPL_BANLIST.format(user.getNickname(), target.getName(), banList.next());
+                        user.sendStandardFormat(reply);
+                    }
+
+                    if (banList.hasNext()) {
+                        return true;
+                    }
+
+                    user.sendStandardFormat(Reply.RPL_ENDOFBANLIST.format(user.getNickname(), target.getName()));
+                    return false;
+                }
+            });
 
-            user.sendStandardFormat(Reply.RPL_ENDOFBANLIST.format(user.getNickname(), target.getName()));
             return 0;
         }
 
@@ -200,6 +228,7 @@ public class Mode {
 
             char marker = (adding) ? '+' : '-';
             target.sendFromClient(user, Command.MODE.format(target.getName(), marker, CMODE_BANNED, args[argIndex]));
+            ServerProtocol.relay(user, Command.MODE.format(target.getName(), marker, CMODE_BANNED, args[argIndex]));
         }
 
         return 1;
@@ -213,6 +242,17 @@ public class Mode {
         } else {
             target.removeFlag(flag);
         }
+
+        relayUmode(target, flag, adding);
+    }
+
+    /**
+     * Tells the linked servers about a user mode that changed.
+     */
+    private static void relayUmode(Flagable target, char flag, boolean adding) {
+
+        Client client = (Client) target;
+        ServerProtocol.relay(client, "MODE " + client.getId() + " " + ((adding) ? '+' : '-') + flag);
     }
 
     private static void defaultAddCmode(Client user, Channel target, char flag, String param, boolean adding) {
@@ -240,6 +280,7 @@ public class Mode {
         char marker = (adding) ? '+' : '-';
         String broadcastParam = (param == null) ? "" : param;
         target.sendFromClient(user, Command.MODE.format(target.getName(), marker, flag, broadcastParam));
+        ServerProtocol.relay(user, Command.MODE.format(target.getName(), marker, flag, broadcastParam));
     }
 
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.command;
+
+import java.util.Arrays;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * A view of a single IRC message. Parsing only records the offsets of the
+ * prefix, the command and the parameters in the raw line; parameters are
+ * decoded to Strings when they are first asked for.
+ * <p>
+ * A message is reused for every line of a connection, and is only valid
+ * until the next call to {@link #parse(byte[], int, int)} - handlers must
+ * not keep a reference to it.
+ * @author Boreeas
+ */
+public final class ParsedMessage {
+
+    /**
+     * The maximum number of parameters. If there are more, the last one
+     * holds the rest of the line.
+     */
+    public static final int MAX_PARAMS = 15;
+
+    private byte[] buffer;
+    private int lineStart;
+    private int lineEnd;
+
+    private int prefixStart;
+    private int prefixLength;
+
+    private int commandStart;
+    private int commandLength;
+
+    private final int[] paramStart = new int[MAX_PARAMS];
+    private final int[] paramLength = new int[MAX_PARAMS];
+    private final String[] decoded = new String[MAX_PARAMS];
+    private int paramCount;
+
+    /**
+     * Parses a line. A leading tag section is skipped.
+     * @param buffer The buffer holding the line, without line terminator
+     * @param offset The start of the line
+     * @param length The length of the line
+     * @return <code>true</code> if the line contains a command, <code>false</code> if it is empty
+     */
+    public boolean parse(byte[] buffer, int offset, int length) {
+
+        Arrays.fill(decoded, 0, paramCount, null);
+
+        this.buffer = buffer;
+        this.lineStart = offset;
+        this.lineEnd = offset + length;
+        this.prefixStart = -1;
+        this.prefixLength = 0;
+        this.paramCount = 0;
+
+        int pos = skipSpaces(offset);
+
+        if (pos < lineEnd && buffer[pos] == '@') {
+            pos = skipSpaces(skipWord(pos));
+        }
+
+        if (pos < lineEnd && buffer[pos] == ':') {
+
+            prefixStart = pos + 1;
+            pos = skipWord(pos);
+            prefixLength = pos - prefixStart;
+            pos = skipSpaces(pos);
+        }
+
+        commandStart = pos;
+        pos = skipWord(pos);
+        commandLength = pos - commandStart;
+
+        if (commandLength == 0) {
+            return false;
+        }
+
+        while ((pos = skipSpaces(pos)) < lineEnd) {
+
+            if (buffer[pos] == ':' || paramCount == MAX_PARAMS - 1) {
+
+                // Trailing parameter - the rest of the line
+                int start = (buffer[pos] == ':') ? pos + 1 : pos;
+                addParam(start, lineEnd - start);
+                break;
+            }
+
+            int start = pos;
+            pos = skipWord(pos);
+            addParam(start, pos - start);
+        }
+
+        return true;
+    }
+
+    /**
+     * Tells whether the command matches the given name, ignoring ASCII case.
+     * @param name The upper case command name
+     * @return <code>true</code> if the command matches
+     */
+    public boolean commandEquals(String name) {
+
+        if (name.length() != commandLength) {
+            return false;
+        }
+
+        for (int i = 0; i < commandLength; i++) {
+
+            int b = buffer[commandStart + i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+
+            if (b != name.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the command in upper case. Allocates, prefer {@link #commandEquals(String)}.
+     * @return The command
+     */
+    public String command() {
+
+        return decode(commandStart, commandLength).toUpperCase();
+    }
+
+    /**
+     * Returns the prefix of the message.
+     * @return The prefix without the leading <code>:</code>, or <code>null</code> if there is none
+     */
+    public String prefix() {
+
+        return (prefixStart < 0) ? null : decode(prefixStart, prefixLength);
+    }
+
+    public int paramCount() {
+
+        return paramCount;
+    }
+
+    /**
+     * Returns a parameter, decoding it on first access.
+     * @param index The index of the parameter
+     * @return The parameter
+     * @throws IndexOutOfBoundsException If there is no such parameter
+     */
+    public String param(int index) {
+
+        if (index >= paramCount) {
+            throw new IndexOutOfBoundsException("Parameter " + index + " of " + paramCount);
+        }
+
+        String param = decoded[index];
+
+        if (param == null) {
+
+            param = decode(paramStart[index], paramLength[index]);
+            decoded[index] = param;
+        }
+
+        return param;
+    }
+
+    /**
+     * Decodes all parameters.
+     * @return The parameters
+     */
+    public String[] params() {
+
+        String[] params = new String[paramCount];
+
+        for (int i = 0; i < paramCount; i++) {
+            params[i] = param(i);
+        }
+
+        return params;
+    }
+
+    /**
+     * Returns the whole line, e.g. for logging.
+     * @return The line
+     */
+    @Override
+    public String toString() {
+
+        return decode(lineStart, lineEnd - lineStart);
+    }
+
+    private void addParam(int start, int length) {
+
+        paramStart[paramCount] = start;
+        paramLength[paramCount] = length;
+        paramCount++;
+    }
+
+    private int skipWord(int pos) {
+
+        while (pos < lineEnd && buffer[pos] != ' ') {
+            pos++;
+        }
+
+        return pos;
+    }
+
+    private int skipSpaces(int pos) {
+
+        while (pos < lineEnd && buffer[pos] == ' ') {
+            pos++;
+        }
+
+        return pos;
+    }
+
+    private String decode(int start, int length) {
+
+        return new String(buffer, start, length, SharedData.CHARSET);
+    }
+}
@@ -56,9 +56,21 @@ public enum Reply {
 
     /**
      * Sent when a client finished registration to give them further information about the server.<br />
-     * Parameters: nick
+     * Parameters: nick, casemapping
+     */
+    RPL_ISUPPORT            ("005 %s CASEMAPPING=%s ELIST=CMNTU :are supported by this server", 2),
+
+    /**
+     * Output queue statistics of a single connection in a STATS l report.<br />
+     * Parameters: nick, connection name, queued bytes, peak queued bytes, queued lines, flushes, average bytes per flush
+     */
+    RPL_STATSLINKINFO       ("211 %s %s %s %s %s %s %s", 7),
+
+    /**
+     * Sent to indicate the end of a STATS report.<br />
+     * Parameters: nick, query
      */
-    RPL_ISUPPORT            ("005 %s", 1),
+    RPL_ENDOFSTATS          ("219 %s %s :End of STATS report", 2),
 
     /**
      * Sent to indicate a successful umode change.<br />
@@ -66,6 +78,12 @@ public enum Reply {
      */
     RPL_UMODEIS             ("221 %s :+%s", 2),
 
+    /**
+     * A single line of server internals in a STATS report.<br />
+     * Parameters: nick, query, information
+     */
+    RPL_STATSDEBUG          ("249 %s %s :%s", 3),
+
     /**
      * Information about the number of clients attached to the network.<br />
      * Parameters: nick, num users, num invisible, num servers
@@ -226,6 +244,12 @@ public enum Reply {
      */
     ERR_TOOMANYTARGETS      ("407 %s %s :Too many targets", 2),
 
+    /**
+     * Sent when a client sent a line longer than allowed. The line has been dropped.<br />
+     * Parameters: nick
+     */
+    ERR_INPUTTOOLONG        ("417 %s :Input line was too long", 1),
+
     /**
      * Sent if a command by a client was not recognized.<br />
      * Parameters: nick, command
@@ -0,0 +1,657 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.command;
+
+import net.boreeas.frozenircd.Channel;
+import net.boreeas.frozenircd.ChannelPool;
+import net.boreeas.frozenircd.connection.ConnectionPool;
+import net.boreeas.frozenircd.connection.EncodedLine;
+import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.connection.server.RemoteClient;
+import net.boreeas.frozenircd.connection.server.ServerLink;
+import net.boreeas.frozenircd.connection.server.ServerProtocol;
+import net.boreeas.frozenircd.utils.SharedData;
+
+import static net.boreeas.frozenircd.config.ConfigData.*;
+import static net.boreeas.frozenircd.config.ConfigKey.*;
+
+/**
+ * Handles the lines a linked server sends after the handshake (see
+ * {@link ServerProtocol}). Every change is applied, shown to the local users
+ * it concerns and relayed to the other links. Users are addressed by ID and
+ * only shown by nickname to local users. Lines from users that are not
+ * behind the link they came from are dropped.
+ * @author Boreeas
+ */
+public class ServerCommandParser {
+
+    private ServerCommandParser() {}
+
+    private static final String UID = "UID";
+    private static final String NICK = "NICK";
+    private static final String MODE = "MODE";
+    private static final String QUIT = "QUIT";
+    private static final String KILL = "KILL";
+    private static final String PART = "PART";
+    private static final String KICK = "KICK";
+    private static final String NJOIN = "NJOIN";
+    private static final String SQUIT = "SQUIT";
+    private static final String TOPIC = "TOPIC";
+    private static final String INVITE = "INVITE";
+    private static final String NOTICE = "NOTICE";
+    private static final String PRIVMSG = "PRIVMSG";
+
+    /**
+     * Every command the parser knows, roughly by frequency. Incoming commands are
+     * matched against these without decoding them.
+     */
+    private static final String[] COMMANDS = { PRIVMSG, NOTICE, UID, NICK, NJOIN, PART, QUIT, MODE, TOPIC, KICK,
+                                               INVITE, KILL, SQUIT };
+
+    public static void parseServerCommand(ServerLink link, ParsedMessage message) {
+
+        String command = lookupCommand(message);
+
+        switch (command) {
+
+            case PRIVMSG:
+                onMessageCommand(link, message, Command.PRIVMSG);
+                break;
+
+            case NOTICE:
+                onMessageCommand(link, message, Command.NOTICE);
+                break;
+
+            case UID:
+                onUidCommand(link, message);
+                break;
+
+            case NICK:
+                onNickCommand(link, message);
+                break;
+
+            case NJOIN:
+                onNJoinCommand(link, message);
+                break;
+
+            case PART:
+                onPartCommand(link, message);
+                break;
+
+            case QUIT:
+                onQuitCommand(link, message);
+                break;
+
+            case MODE:
+                onModeCommand(link, message);
+                break;
+
+            case TOPIC:
+                onTopicCommand(link, message);
+                break;
+
+            case KICK:
+                onKickCommand(link, message);
+                break;
+
+            case INVITE:
+                onInviteCommand(link, message);
+                break;
+
+            case KILL:
+                onKillCommand(link, message);
+                break;
+
+            case SQUIT:
+                onSquitCommand(link, message);
+                break;
+
+            default:
+                if (isNumeric(command)) {
+                    onNumericReply(link, message);
+                } else {
+                    SharedData.logger.debug(String.format("Ignoring %s from %s", command, link));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns the constant for the command of a message.
+     * @param message The message
+     * @return The known command, or the upper case command if it is unknown
+     */
+    private static String lookupCommand(ParsedMessage message) {
+
+        for (String command: COMMANDS) {
+
+            if (message.commandEquals(command)) {
+                return command;
+            }
+        }
+
+        return message.command();
+    }
+
+
+
+    private static void onNickCommand(ServerLink link, ParsedMessage message) {
+
+        RemoteClient user = source(link, message);
+
+        if (user == null || message.paramCount() < 1) {
+            return;
+        }
+
+        String nick = message.param(0);
+
+        if (!ConnectionPool.reserveNickname(user, nick)) {
+
+            nickCollision(ConnectionPool.findByNickname(nick), user);
+            return;
+        }
+
+        user.broadcastToChannels(Command.NICK.format(nick));
+        user.setNickname(nick);
+
+        ServerProtocol.relay(message.toString(), link);
+    }
+
+    /**
+     * Adds a user from <code>UID nick hops user host server +umodes id :realname</code>.
+     */
+    private static void onUidCommand(ServerLink link, ParsedMessage message) {
+
+        if (message.paramCount() < 8) {
+            return;
+        }
+
+        int hops;
+        try {
+            hops = Integer.parseInt(message.param(1));
+        } catch (NumberFormatException ex) {
+            hops = 1;
+        }
+
+        RemoteClient user = new RemoteClient(link, message.param(4), hops, message.param(0),
+                                             message.param(2), message.param(3), message.param(7), message.param(6));
+
+        for (char flag: message.param(5).toCharArray()) {
+
+            if (flag != '+') {
+                user.addFlag(flag, null);
+            }
+        }
+
+        if (!ServerProtocol.addUser(user)) {
+
+            RemoteClient known = ServerProtocol.findRemoteById(user.getId());
+
+            if (known != null && known.getLink() == link) {
+
+                // Sent twice: with the burst of the other server, and held back
+                // as a relay while the burst was being sent. IDs are unique per
+                // server, so this is the same user, maybe under an older nick
+                // that the NICK lines held back with it will change again.
+                return;
+            }
+
+            Client existing = ConnectionPool.findByNickname(user.getNickname());
+            if (existing == null) {
+                existing = ServerProtocol.findRemoteById(user.getId());
+            }
+
+            // The newcomer was never added, only the link it came from knows it
+            SharedData.logger.info(String.format("Nick or ID collision between %s and %s", existing, user));
+            link.relay(KILL + " " + user.getId() + " :Nick collision");
+
+            if (existing != null) {
+                existing.kill("Nick collision");
+            }
+
+            return;
+        }
+
+        ServerProtocol.relay(ServerProtocol.introduction(user), link);
+    }
+
+    /**
+     * Kills both users that want the same nickname.
+     */
+    private static void nickCollision(Client existing, RemoteClient user) {
+
+        SharedData.logger.info(String.format("Nick collision between %s and %s", existing, user));
+
+        user.kill("Nick collision");
+
+        if (existing != null) {
+            existing.kill("Nick collision");
+        }
+    }
+
+    /**
+     * Adds the members of <code>:server NJOIN #channel :@id,+id,id</code> to the channel.
+     */
+    private static void onNJoinCommand(ServerLink link, ParsedMessage message) {
+
+        if (message.paramCount() < 2 || !Channel.isChanTypeSupported(message.param(0).charAt(0))) {
+            return;
+        }
+
+        String chanName = message.param(0);
+        String server = origin(link, message);
+
+        Channel channel = ChannelPool.getChannel(chanName);
+
+        if (channel == null) {
+            channel = ChannelPool.addChannel(new Channel(SharedData.toLowerCase(chanName)));
+        }
+
+        StringBuilder members = new StringBuilder();
+
+        for (String entry: message.param(1).split(",")) {
+
+            int status = 0;
+            while (status < entry.length() && (entry.charAt(status) == '@' || entry.charAt(status) == '+')) {
+                status++;
+            }
+
+            RemoteClient user = ServerProtocol.findRemoteById(entry.substring(status));
+
+            if (user == null || user.getLink() != link) {
+                continue;
+            }
+
+            if (members.length() > 0) {
+                members.append(',');
+            }
+
+            members.append(entry);
+
+            if (!channel.addClient(user)) {
+                continue;   // Already known
+            }
+
+            channel.sendFromClient(user, Command.JOIN.format(channel.getName()));
+
+            String prefixes = entry.substring(0, status);
+
+            if (prefixes.indexOf('@') >= 0) {
+
+                channel.op(user);
+                channel.send(new EncodedLine(":" + server + " " + Command.MODE.format(channel.getName(), '+', 'o', user.getNickname())));
+            } else if (prefixes.indexOf('+') >= 0) {
+
+                channel.voice(user);
+                channel.send(new EncodedLine(":" + server + " " + Command.MODE.format(channel.getName(), '+', 'v', user.getNickname())));
+            }
+        }
+
+        if (members.length() > 0) {
+            ServerProtocol.relay(":" + server + " " + NJOIN + " " + channel.getName() + " :" + members, link);
+        }
+    }
+
+    private static void onPartCommand(ServerLink link, ParsedMessage message) {
+
+        RemoteClient user = source(link, message);
+
+        if (user == null || message.paramCount() < 1) {
+            return;
+        }
+
+        String reason = (message.paramCount() > 1) ? message.param(1) : user.getNickname();
+
+        for (String chanName: message.param(0).split(",")) {
+
+            Channel channel = ChannelPool.getChannel(chanName);
+
+            if (channel != null && user.isInChannel(chanName)) {
+                channel.partChannel(user, reason);
+            }
+        }
+
+        ServerProtocol.relay(message.toString(), link);
+    }
+
+    private static void onQuitCommand(ServerLink link, ParsedMessage message) {
+
+        RemoteClient user = source(link, message);
+
+        if (user != null) {
+            ServerProtocol.removeUser(user, (message.paramCount() > 0) ? message.param(0) : user.getNickname(), link);
+        }
+    }
+
+    private static void onKillCommand(ServerLink link, ParsedMessage message) {
+
+        if (message.paramCount() < 1) {
+            return;
+        }
+
+        Client target = ServerProtocol.findById(message.param(0));
+        String reason = (message.paramCount() > 1) ? message.param(1) : origin(link, message);
+
+        if (target instanceof RemoteClient) {
+
+            RemoteClient user = (RemoteClient) target;
+
+            if (user.getLink() == link) {
+                ServerProtocol.removeUser(user, "Killed: " + reason, link);
+            } else {
+                ServerProtocol.kill(user, reason, link);
+            }
+        } else if (target != null) {
+
+            target.kill(reason);
+        }
+    }
+
+    private static void onModeCommand(ServerLink link, ParsedMessage message) {
+
+        if (message.paramCount() < 2) {
+            return;
+        }
+
+        RemoteClient user = source(link, message);
+        String target = message.param(0);
+
+        if (Channel.isChanTypeSupported(target.charAt(0))) {
+
+            Channel channel = ChannelPool.getChannel(target);
+
+            if (channel == null) {
+                return;
+            }
+
+            String origin = (user == null) ? origin(link, message) : user.getDisplayHostmask();
+
+            StringBuilder line = new StringBuilder(":").append(origin).append(' ').append(MODE)
+                                                       .append(' ').append(channel.getName());
+            applyChannelModes(channel, origin, message, line);
+
+            channel.send(new EncodedLine(line.toString()));
+        } else {
+
+            if (user == null || !target.equals(user.getId())) {
+                return;
+            }
+
+            boolean adding = true;
+
+            for (char c: message.param(1).toCharArray()) {
+
+                if (c == '+' || c == '-') {
+                    adding = (c == '+');
+                } else if (adding) {
+                    user.addFlag(c, null);
+                } else {
+                    user.removeFlag(c);
+                }
+            }
+        }
+
+        ServerProtocol.relay(message.toString(), link);
+    }
+
+    /**
+     * Applies the modes of a channel <code>MODE</code>. The other server already checked that the change is allowed.
+     * The modes are appended to the line for the local members, with the IDs of members replaced by nicknames.
+     */
+    private static void applyChannelModes(Channel channel, String origin, ParsedMessage message, StringBuilder line) {
+
+        boolean adding = true;
+        int argIndex = 2;
+
+        line.append(' ').append(message.param(1));
+
+        for (char c: message.param(1).toCharArray()) {
+
+            if (c == '+' || c == '-') {
+
+                adding = (c == '+');
+            } else if (c == Mode.CMODE_BANNED || c == 'o' || c == 'v') {
+
+                if (argIndex >= message.paramCount()) {
+                    continue;
+                }
+
+                String arg = message.param(argIndex++);
+
+                if (c == Mode.CMODE_BANNED) {
+
+                    line.append(' ').append(arg);
+
+                    if (adding) {
+                        channel.ban(arg, origin);
+                    } else {
+                        channel.unban(arg);
+                    }
+                } else {
+
+                    Client member = ServerProtocol.findById(arg);
+                    if (member == null) {
+                        continue;
+                    }
+
+                    line.append(' ').append(member.getNickname());
+
+                    if (c == 'o' && adding) {
+                        channel.op(member);
+                    } else if (c == 'o') {
+                        channel.deop(member);
+                    } else if (adding) {
+                        channel.voice(member);
+                    } else {
+                        channel.devoice(member);
+                    }
+                }
+            } else if (adding) {
+
+                channel.addFlag(c, null);
+            } else {
+
+                channel.removeFlag(c);
+            }
+        }
+    }
+
+    private static void onTopicCommand(ServerLink link, ParsedMessage message) {
+
+        if (message.paramCount() < 2) {
+            return;
+        }
+
+        Channel channel = ChannelPool.getChannel(message.param(0));
+
+        if (channel == null) {
+            return;
+        }
+
+        RemoteClient user = source(link, message);
+
+        String topic = message.param(1).trim();
+        if (topic.isEmpty()) {
+            topic = null;
+        }
+
+        String oldTopic = channel.getTopic();
+        channel.setTopic(topic);
+
+        // A burst repeats the topic the channel already has on a net merge
+        boolean changed = (topic == null) ? oldTopic != null : !topic.equals(oldTopic);
+
+        if (user != null || changed) {
+
+            String origin = (user == null) ? origin(link, message) : user.getDisplayHostmask();
+            channel.send(new EncodedLine(":" + origin + " " + TOPIC + " " + channel.getName() + " :" + message.param(1)));
+        }
+
+        ServerProtocol.relay(message.toString(), link);
+    }
+
+    private static void onKickCommand(ServerLink link, ParsedMessage message) {
+
+        RemoteClient user = source(link, message);
+
+        if (user == null || message.paramCount() < 2) {
+            return;
+        }
+
+        Channel channel = ChannelPool.getChannel(message.param(0));
+        Client target = ServerProtocol.findById(message.param(1));
+
+        if (channel == null || target == null || !target.isInChannel(channel.getName())) {
+            return;
+        }
+
+        String reason = (message.paramCount() > 2) ? message.param(2) : target.getNickname();
+
+        channel.kick(user, target, reason);
+
+        ServerProtocol.relay(message.toString(), link);
+    }
+
+    private static void onInviteCommand(ServerLink link, ParsedMessage message) {
+
+        RemoteClient user = source(link, message);
+
+        if (user == null || message.paramCount() < 2) {
+            return;
+        }
+
+        Client target = ServerProtocol.findById(message.param(0));
+
+        if (target instanceof RemoteClient) {
+
+            forward((RemoteClient) target, link, message);
+        } else if (target != null) {
+
+            Channel channel = ChannelPool.getChannel(message.param(1));
+            if (channel != null) {
+                channel.invite(target.getNickname(), user.getDisplayHostmask());
+            }
+
+            target.sendFromUser(user, Command.INVITE.format(target.getNickname(), message.param(1)));
+        }
+    }
+
+    private static void onMessageCommand(ServerLink link, ParsedMessage message, Command cmd) {
+
+        RemoteClient user = source(link, message);
+
+        if (user == null || message.paramCount() < 2) {
+            return;
+        }
+
+        String target = message.param(0);
+
+        if (Channel.isChanTypeSupported(target.charAt(0))) {
+
+            Channel channel = ChannelPool.getChannel(target);
+
+            if (channel != null) {
+
+                channel.sendFromClient(user, cmd.format(channel.getName(), message.param(1)));
+                ServerProtocol.relayToChannel(channel, message.toString(), link);
+            }
+        } else {
+
+            Client recipient = ServerProtocol.findById(target);
+
+            if (recipient instanceof RemoteClient) {
+                forward((RemoteClient) recipient, link, message);
+            } else if (recipient != null) {
+                recipient.sendFromUser(user, cmd.format(recipient.getNickname(), message.param(1)));
+            }
+        }
+    }
+
+    private static void onSquitCommand(ServerLink link, ParsedMessage message) {
+
+        if (message.paramCount() < 1) {
+            return;
+        }
+
+        String server = message.param(0);
+
+        if (server.equalsIgnoreCase(link.getCommonName()) || server.equalsIgnoreCase(getFirstConfigOption(HOST))) {
+            link.disconnect((message.paramCount() > 1) ? message.param(1) : "SQUIT");
+        }
+    }
+
+    /**
+     * Passes a reply of another server on to the user it is for.
+     */
+    private static void onNumericReply(ServerLink link, ParsedMessage message) {
+
+        if (message.paramCount() < 1) {
+            return;
+        }
+
+        Client recipient = ServerProtocol.findById(message.param(0));
+
+        if (recipient instanceof RemoteClient) {
+            forward((RemoteClient) recipient, link, message);
+        } else if (recipient != null) {
+            recipient.send(ServerProtocol.readdress(message.toString(), recipient.getNickname()));
+        }
+    }
+
+
+
+    /**
+     * Passes a line on towards a remote user, unless it would go back where it came from.
+     */
+    private static void forward(RemoteClient recipient, ServerLink link, ParsedMessage message) {
+
+        if (recipient.getLink() != link) {
+            recipient.getLink().relay(message.toString());
+        }
+    }
+
+    /**
+     * Returns the user that sent a line.
+     * @return The user, or <code>null</code> if the line doesn't come from a user behind the link
+     */
+    private static RemoteClient source(ServerLink link, ParsedMessage message) {
+
+        String prefix = message.prefix();
+
+        if (prefix == null) {
+            return null;
+        }
+
+        RemoteClient user = ServerProtocol.findRemoteById(prefix);
+
+        return (user != null && user.getLink() == link) ? user : null;
+    }
+
+    /**
+     * Returns the prefix of a line, or the name of the link if it has none.
+     */
+    private static String origin(ServerLink link, ParsedMessage message) {
+
+        String prefix = message.prefix();
+        return (prefix == null) ? link.getCommonName() : prefix;
+    }
+
+    private static boolean isNumeric(String command) {
+
+        return command.length() == 3 && Character.isDigit(command.charAt(0))
+            && Character.isDigit(command.charAt(1)) && Character.isDigit(command.charAt(2));
+    }
+}
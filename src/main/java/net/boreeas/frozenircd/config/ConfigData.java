@@ -27,6 +27,7 @@ import java.util.Set;
 import net.boreeas.frozenircd.utils.GenericSoftReference;
 import net.boreeas.frozenircd.utils.HashUtils;
 import net.boreeas.frozenircd.utils.PatternMatcher;
+import net.boreeas.frozenircd.utils.StringUtils;
 
 /**
  *
@@ -79,6 +80,7 @@ public class ConfigData {
                             new String[]{"8"});
         defaultOptions.put(ConfigKey.MIN_NICK_LENGTH.getKey(), 
                             new String[]{"0"});
+        putSingleDefaultOption(ConfigKey.CASEMAPPING, "rfc1459");
         
         // The pattern nicks must adhere to
         putSingleDefaultOption(ConfigKey.NICK_PATTERN, 
@@ -116,6 +118,55 @@ public class ConfigData {
         
         putSingleDefaultOption(ConfigKey.PORTS, "6667");
         
+        putSingleDefaultOption(ConfigKey.IO_MODE, "nio");
+        putSingleDefaultOption(ConfigKey.IO_THREADS, "0");
+        putSingleDefaultOption(ConfigKey.VIRTUAL_THREADS, "false");
+        putSingleDefaultOption(ConfigKey.TLS_HANDSHAKE_THREADS, "2");
+        putSingleDefaultOption(ConfigKey.TLS_HANDSHAKE_QUEUE, "256");
+        putSingleDefaultOption(ConfigKey.LISTEN_ACCEPTORS, "1");
+        putSingleDefaultOption(ConfigKey.LISTEN_REUSEPORT, "false");
+        putSingleDefaultOption(ConfigKey.LISTEN_BACKLOG, "1024");
+
+        putSingleDefaultOption(ConfigKey.ADMISSION_RATE, "20");
+        putSingleDefaultOption(ConfigKey.ADMISSION_BURST, "5");
+        putSingleDefaultOption(ConfigKey.ADMISSION_PER_SOURCE, "10");
+        putSingleDefaultOption(ConfigKey.ADMISSION_CLIENTS, "10000");
+        putSingleDefaultOption(ConfigKey.ADMISSION_PREFIX_V4, "32");
+        putSingleDefaultOption(ConfigKey.ADMISSION_PREFIX_V6, "64");
+        putSingleDefaultOption(ConfigKey.ADMISSION_TABLE_SIZE, "65536");
+        
+        putSingleDefaultOption(ConfigKey.DNS_THREADS, "4");
+        putSingleDefaultOption(ConfigKey.DNS_TIMEOUT, "5");
+        putSingleDefaultOption(ConfigKey.DNS_CACHE_SIZE, "8192");
+        putSingleDefaultOption(ConfigKey.DNS_CACHE_TTL, "3600");
+        putSingleDefaultOption(ConfigKey.DNS_CACHE_NEGATIVE_TTL, "300");
+        putSingleDefaultOption(ConfigKey.IDENT_TIMEOUT, "5");
+        
+        putSingleDefaultOption(ConfigKey.INPUT_BURST, "20");
+        putSingleDefaultOption(ConfigKey.INPUT_RATE, "5");
+        putSingleDefaultOption(ConfigKey.INPUT_LINE_MAX, "512");
+        putSingleDefaultOption(ConfigKey.INPUT_TAGS_MAX, "0");
+        putSingleDefaultOption(ConfigKey.INPUT_RECVQ, "8192");
+        defaultOptions.put(ConfigKey.INPUT_COSTS.getKey(),
+                           new String[] { "NAMES:5", "LIST:10", "MOTD:3", "LUSERS:2", "STATS:5", "JOIN:2" });
+
+        putSingleDefaultOption(ConfigKey.CLASS_CLIENT, "users");
+        putSingleDefaultOption(ConfigKey.CLASS_OPER, "opers");
+        putSingleDefaultOption(ConfigKey.CLASS_SERVICE, "services");
+        putSingleDefaultOption("class.opers.throttle", "false");
+        putSingleDefaultOption("class.services.throttle", "false");
+        
+        putSingleDefaultOption(ConfigKey.LINK_PORTS, "");
+        putSingleDefaultOption(ConfigKey.LINK_ZIP, "true");
+        putSingleDefaultOption(ConfigKey.LINK_ZIP_LEVEL, "6");
+        
+        putSingleDefaultOption(ConfigKey.SENDQ_CLIENT, "262144");
+        putSingleDefaultOption(ConfigKey.SENDQ_SERVER, "4194304");
+        putSingleDefaultOption(ConfigKey.SENDQ_SERVICE, "1048576");
+        putSingleDefaultOption(ConfigKey.OUTPUT_FLUSH_BYTES, "16384");
+        putSingleDefaultOption(ConfigKey.OUTPUT_FLUSH_MILLIS, "20");
+        putSingleDefaultOption(ConfigKey.OUTPUT_STREAM_BYTES, "32768");
+        
         putSingleDefaultOption(ConfigKey.PING_FREQUENCY, "600");
         putSingleDefaultOption(ConfigKey.PING_TIMEOUT, "180");
         putSingleDefaultOption(ConfigKey.CONNECT_TIMEOUT, "60");
@@ -128,7 +179,12 @@ public class ConfigData {
      */
     private static void putSingleDefaultOption(ConfigKey key, String value) {
         
-        defaultOptions.put(key.getKey(), new String[]{value});
+        putSingleDefaultOption(key.getKey(), value);
+    }
+    
+    private static void putSingleDefaultOption(String key, String value) {
+        
+        defaultOptions.put(key, new String[]{value});
     }
     
     private static Config loadFile(String name) {
@@ -202,7 +258,14 @@ public class ConfigData {
                     SharedData.logger.info("Rewriting lines to disk");
 
                     linesRef.get().set(O_LINES, olinesSet.toArray());
-                    linesRef.get().set(U_LINES, ulinesSet.toArray());
+
+                    String[] ulines = new String[ulinesSet.size()];
+                    int index = 0;
+                    for (String[] uline: ulinesSet) {
+                        ulines[index++] = StringUtils.joinArray(uline, ":");
+                    }
+
+                    linesRef.get().set(U_LINES, (Object[]) ulines);
                     // TODO Add all the lines
 
 
@@ -294,6 +357,29 @@ public class ConfigData {
         return getConfigOption(key)[0];
     }
     
+    /**
+     * Returns the first value associated with an optional key, from the
+     * configuration or the default options.
+     * @param key The key of the option
+     * @param fallback The value to return if there is none
+     * @return The value, or <code>fallback</code>
+     */
+    public static String getFirstConfigOption(String key, String fallback) {
+        
+        if (config == null) {
+            
+            loadConfigFile();
+        }
+        
+        String[] values = config.get(key);
+        
+        if (values == null) {
+            values = defaultOptions.get(key);
+        }
+        
+        return (values == null || values.length == 0) ? fallback : values[0];
+    }
+    
     
     public static String getFirstConfigOption(ConfigKey key) {
         
@@ -357,6 +443,8 @@ public class ConfigData {
                         SharedData.logger.warn(String.format("Found link entry format <host>::<pass> in entry %s, expanding to \"%s:6667:%s\"", 
                                                              uline, options[0], options[2]));
                     }
+
+                    ulinesSet.add((options.length < 3) ? new String[] { options[0], "", options[1] } : options);
                 }
             }
         }
@@ -29,11 +29,60 @@ public enum ConfigKey {
     USING_PASS          ("using.pass"),     // Using a password for user connections?
     PORTS               ("ports"),          // The open ports
     
+    // I/O engine
+    IO_MODE             ("io.mode"),        // "nio" for event loops, "blocking" for a thread per connection
+    IO_THREADS          ("io.threads"),     // Number of event loops, 0 for one per processor
+    VIRTUAL_THREADS     ("threads.virtual"),// Run per-connection threads as virtual threads
+    TLS_HANDSHAKE_THREADS ("tls.handshake.threads"), // Workers for the CPU heavy parts of TLS handshakes
+    TLS_HANDSHAKE_QUEUE ("tls.handshake.queue"),     // Handshake steps that may wait for a worker
+    LISTEN_ACCEPTORS    ("listen.acceptors"),   // Accepting threads per port
+    LISTEN_REUSEPORT    ("listen.reuseport"),   // Give each accepting thread a socket of its own (SO_REUSEPORT)
+    LISTEN_BACKLOG      ("listen.backlog"),     // Connections the kernel queues for each listening socket
+    
+    // Admission control
+    ADMISSION_RATE      ("admission.rate"),     // Connections per minute a source may make on average
+    ADMISSION_BURST     ("admission.burst"),    // Connections a source may make at once
+    ADMISSION_PER_SOURCE ("admission.source.max"), // Connections a source may have open at once
+    ADMISSION_CLIENTS   ("admission.clients.max"), // Client connections the server accepts at once
+    ADMISSION_PREFIX_V4 ("admission.prefix.ipv4"), // Prefix length of the network an IPv4 source stands for
+    ADMISSION_PREFIX_V6 ("admission.prefix.ipv6"), // Prefix length of the network an IPv6 source stands for
+    ADMISSION_TABLE_SIZE ("admission.table.size"), // Sources tracked at once
+    
+    // Host name lookups
+    DNS_THREADS         ("dns.threads"),    // Lookups that may run at once
+    DNS_TIMEOUT         ("dns.timeout"),    // Seconds a client waits for its host name
+    DNS_CACHE_SIZE      ("dns.cache.size"), // Found names, and failed lookups, to cache
+    DNS_CACHE_TTL       ("dns.cache.ttl"),  // Seconds a found name is cached
+    DNS_CACHE_NEGATIVE_TTL ("dns.cache.negative.ttl"), // Seconds a failed lookup is cached
+    IDENT_TIMEOUT       ("ident.timeout"),  // Seconds a client waits for its ident response
+    
+    // Input flood protection
+    INPUT_BURST         ("input.burst"),    // Lines a connection may send at once
+    INPUT_RATE          ("input.rate"),     // Lines per second a connection may send on average
+    INPUT_LINE_MAX      ("input.line.max"), // Maximum length of an input line in bytes, including CR LF
+    INPUT_TAGS_MAX      ("input.tags.max"), // Bytes a leading tag section may add to the maximum line length
+    INPUT_RECVQ         ("input.recvq"),    // Bytes of input that may wait while a connection is lagged
+    INPUT_COSTS         ("input.costs"),    // Budget a command takes, as <command>:<lines>
+    
+    // Connection classes
+    CLASS_CLIENT        ("class.client"),   // The class of clients
+    CLASS_OPER          ("class.oper"),     // The class of clients that are opers
+    CLASS_SERVICE       ("class.service"),  // The class of services
+    
+    // Output queue
+    SENDQ_CLIENT        ("sendq.client"),   // Bytes that may wait for output on a client before it is dropped
+    SENDQ_SERVER        ("sendq.server"),   // Bytes that may wait for output on a server link before it is dropped
+    SENDQ_SERVICE       ("sendq.service"),  // Bytes that may wait for output on a service before it is dropped
+    OUTPUT_FLUSH_BYTES  ("output.flush.bytes"),  // Queued bytes that force a flush before the command is done
+    OUTPUT_FLUSH_MILLIS ("output.flush.millis"), // Command time in ms after which output is flushed right away
+    OUTPUT_STREAM_BYTES ("output.stream.bytes"), // Queued bytes above which long replies wait for the output to drain
+    
     // Nick configuration
     MIN_NICK_LENGTH     ("nick.length.min"),
     MAX_NICK_LENGTH     ("nick.length.max"),
     NICK_PATTERN        ("nick.pattern"),
     BLACKLISTED_NICKS   ("nick.blacklist"),
+    CASEMAPPING         ("casemapping"),    // ascii, rfc1459 or strict-rfc1459
     
     // Pings and keep-alives
     PING_FREQUENCY      ("ping.frequency"),
@@ -43,6 +92,11 @@ public enum ConfigKey {
     // (Unique) connection token
     TOKEN               ("token"),
     
+    // Server links
+    LINK_PORTS          ("link.ports"),     // The ports other servers link to
+    LINK_ZIP            ("link.zip"),       // Offer compression (ziplinks) to linked servers
+    LINK_ZIP_LEVEL      ("link.zip.level"), // DEFLATE level of compressed links, 1 (fastest) to 9 (best)
+    
     // Passwords for connections
     LINK_PASS           ("password.server"),
     SERVICE_PASS        ("password.service"),
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.net.InetAddress;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.utils.TimingWheel;
+
+/**
+ * Decides whether an accepted connection may stay, before anything is
+ * allocated for it. Connections are limited
+ * <ul>
+ * <li>in rate, by a token bucket per source,</li>
+ * <li>in number, per source, and</li>
+ * <li>in number, for the whole server.</li>
+ * </ul>
+ * A source is an IPv4 or IPv6 network of a configurable prefix length, so
+ * that a host can't get around the limits by hopping between the addresses
+ * of its network.
+ * <p>
+ * The state of the sources lives in a fixed-size table of primitive arrays,
+ * split into buckets of a few slots. A source without connections whose
+ * token bucket has filled up again holds no information and its slot is
+ * reused, so the table never grows, no matter how many sources show up.
+ * @author Boreeas
+ */
+public class AdmissionControl {
+
+    /**
+     * The admission control used for client ports, configured by the <code>admission.*</code> keys.
+     */
+    public static final AdmissionControl DEFAULT = new AdmissionControl(
+            Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.ADMISSION_RATE)),
+            Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.ADMISSION_BURST)),
+            Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.ADMISSION_PER_SOURCE)),
+            Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.ADMISSION_CLIENTS)),
+            Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.ADMISSION_PREFIX_V4)),
+            Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.ADMISSION_PREFIX_V6)),
+            Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.ADMISSION_TABLE_SIZE)));
+
+    /**
+     * The outcome of an admission check.
+     */
+    public enum Verdict {
+
+        ADMITTED            (null),
+        THROTTLED           ("Connecting too fast, try again later"),
+        TOO_MANY_FROM_HOST  ("Too many connections from your host"),
+        SERVER_FULL         ("Server is full"),
+        TABLE_FULL          ("Server is busy, try again later");
+
+        private final String reason;
+
+        private Verdict(String reason) {
+
+            this.reason = reason;
+        }
+
+        /**
+         * Returns the reason given to rejected connections.
+         * @return The reason, or <code>null</code> for admitted connections
+         */
+        public String getReason() {
+
+            return reason;
+        }
+    }
+
+    /**
+     * Slots per bucket. A new source can only go into its own bucket.
+     */
+    private static final int WAYS = 8;
+
+    /**
+     * Tokens are counted in sixty-thousandths, so a rate per minute refills
+     * a whole number of units every millisecond.
+     */
+    private static final long TOKEN = 60000;
+
+    /**
+     * Marks IPv4 keys. IPv6 keys are the leading 64 bits of the network,
+     * which never look like this outside of the reserved ::/8.
+     */
+    private static final long V4_KEY = 0x0000FFFF00000000L;
+
+    private final long ratePerMinute;
+    private final long capacity;
+    private final int maxPerSource;
+    private final int maxClients;
+    private final int v4Prefix;
+    private final int v6Prefix;
+
+    private final int bucketMask;
+
+    // The table: one entry per slot, a slot is empty while refilled is 0
+    private final long[] keys;
+    private final long[] tokens;
+    private final long[] refilled;
+    private final int[] active;
+
+    private int clients = 0;
+
+    /**
+     * Creates a new admission control.
+     * @param ratePerMinute The connections per minute a source may make on average
+     * @param burst The connections a source may make at once
+     * @param maxPerSource The connections a source may have open at the same time
+     * @param maxClients The connections the server may have open at the same time
+     * @param v4Prefix The prefix length of IPv4 sources, 32 for single addresses
+     * @param v6Prefix The prefix length of IPv6 sources, at most 64
+     * @param tableSize The number of sources to track, rounded up to a power of two
+     */
+    public AdmissionControl(int ratePerMinute, int burst, int maxPerSource, int maxClients, int v4Prefix,
+                            int v6Prefix, int tableSize) {
+
+        this.ratePerMinute = ratePerMinute;
+        this.capacity = Math.max(1, burst) * TOKEN;
+        this.maxPerSource = maxPerSource;
+        this.maxClients = maxClients;
+        this.v4Prefix = Math.max(0, Math.min(32, v4Prefix));
+        this.v6Prefix = Math.max(0, Math.min(64, v6Prefix));
+
+        int wanted = Math.max(1, (tableSize + WAYS - 1) / WAYS);
+        int buckets = (wanted == 1) ? 1 : Integer.highestOneBit(wanted - 1) << 1;
+        this.bucketMask = buckets - 1;
+
+        keys = new long[buckets * WAYS];
+        tokens = new long[buckets * WAYS];
+        refilled = new long[buckets * WAYS];
+        active = new int[buckets * WAYS];
+    }
+
+    /**
+     * Checks whether a connection from the given address may stay, and counts it if so.
+     * Every admitted connection must be released once it is closed.
+     * @param address The address of the connection
+     * @return The verdict
+     */
+    public Verdict admit(InetAddress address) {
+
+        return admit(address, TimingWheel.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether a connection from the given address may stay, and counts it if so.
+     * @param address The address of the connection
+     * @param now The current time in milliseconds
+     * @return The verdict
+     */
+    public synchronized Verdict admit(InetAddress address, long now) {
+
+        if (clients >= maxClients) {
+            return Verdict.SERVER_FULL;
+        }
+
+        long key = key(address);
+        int slot = find(key);
+
+        if (slot < 0) {
+
+            slot = claim(key, now);
+
+            if (slot < 0) {
+                return Verdict.TABLE_FULL;
+            }
+        }
+
+        refill(slot, now);
+
+        if (active[slot] >= maxPerSource) {
+            return Verdict.TOO_MANY_FROM_HOST;
+        }
+
+        if (tokens[slot] < TOKEN) {
+            return Verdict.THROTTLED;
+        }
+
+        tokens[slot] -= TOKEN;
+        active[slot]++;
+        clients++;
+
+        return Verdict.ADMITTED;
+    }
+
+    /**
+     * Releases an admitted connection that has been closed.
+     * @param address The address of the connection
+     */
+    public synchronized void release(InetAddress address) {
+
+        int slot = find(key(address));
+
+        if (slot >= 0 && active[slot] > 0) {
+            active[slot]--;
+        }
+
+        if (clients > 0) {
+            clients--;
+        }
+    }
+
+    /**
+     * Returns the number of admitted connections that are still open.
+     * @return The number of connections
+     */
+    public synchronized int clients() {
+
+        return clients;
+    }
+
+    /**
+     * Returns the number of connections open from the source of the given address.
+     * @param address The address
+     * @return The number of connections
+     */
+    public synchronized int connectionsFrom(InetAddress address) {
+
+        int slot = find(key(address));
+        return (slot < 0) ? 0 : active[slot];
+    }
+
+    private int find(long key) {
+
+        int base = bucket(key);
+
+        for (int slot = base; slot < base + WAYS; slot++) {
+            if (refilled[slot] != 0 && keys[slot] == key) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Takes a slot for a new source: an empty one, one whose source has
+     * nothing left to remember, or the one whose source without connections
+     * was seen longest ago.
+     * @return The slot, or -1 if every source in the bucket has connections
+     */
+    private int claim(long key, long now) {
+
+        int base = bucket(key);
+        int oldest = -1;
+
+        for (int slot = base; slot < base + WAYS; slot++) {
+
+            if (refilled[slot] == 0 || (active[slot] == 0 && isRefilled(slot, now))) {
+
+                oldest = slot;
+                break;
+            }
+
+            if (active[slot] == 0 && (oldest < 0 || refilled[slot] < refilled[oldest])) {
+                oldest = slot;
+            }
+        }
+
+        if (oldest >= 0) {
+
+            keys[oldest] = key;
+            tokens[oldest] = capacity;
+            refilled[oldest] = Math.max(1, now);
+            active[oldest] = 0;
+        }
+
+        return oldest;
+    }
+
+    private boolean isRefilled(int slot, long now) {
+
+        return tokens[slot] + (now - refilled[slot]) * ratePerMinute >= capacity;
+    }
+
+    private void refill(int slot, long now) {
+
+        long elapsed = now - refilled[slot];
+        if (elapsed <= 0) {
+            return;
+        }
+
+        refilled[slot] = now;
+        tokens[slot] = Math.min(capacity, tokens[slot] + elapsed * ratePerMinute);
+    }
+
+    private int bucket(long key) {
+
+        // Finalizer of MurmurHash3, so that neighbouring networks spread over the table
+        long hash = key;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return ((int) hash & bucketMask) * WAYS;
+    }
+
+    /**
+     * Returns the key of the source network of an address.
+     */
+    private long key(InetAddress address) {
+
+        byte[] bytes = address.getAddress();
+
+        if (bytes.length == 4) {
+
+            long ip = ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16) | ((bytes[2] & 0xFFL) << 8)
+                      | (bytes[3] & 0xFFL);
+            long mask = (v4Prefix == 0) ? 0 : (0xFFFFFFFFL << (32 - v4Prefix)) & 0xFFFFFFFFL;
+
+            return V4_KEY | (ip & mask);
+        }
+
+        long high = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (bytes[i] & 0xFFL);
+        }
+
+        return (v6Prefix == 0) ? 0 : high & (-1L << (64 - v6Prefix));
+    }
+}
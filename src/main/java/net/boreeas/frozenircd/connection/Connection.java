@@ -15,88 +15,1490 @@
  */
 package net.boreeas.frozenircd.connection;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import net.boreeas.frozenircd.Interruptable;
 import net.boreeas.frozenircd.command.Command;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.utils.Metrics;
 import net.boreeas.frozenircd.utils.SharedData;
+import net.boreeas.frozenircd.utils.Threads;
+import net.boreeas.frozenircd.utils.TimingWheel;
+import net.boreeas.frozenircd.utils.TokenBucket;
 
 /**
  *
  * @author Boreeas
  */
-public abstract class Connection extends Thread implements Interruptable {
+public abstract class Connection implements Runnable, Interruptable {
 
-    protected boolean closed = false;
-    private boolean interrupted = false;
+    private static final int MAX_LINE = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.INPUT_LINE_MAX));
+    private static final int MAX_TAGS = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.INPUT_TAGS_MAX));
+
+    /**
+     * The size of the read buffer, in maximum line lengths.
+     */
+    private static final int READ_BUFFER_LINES = 4;
+    private static final int READ_BUFFER_SIZE = READ_BUFFER_LINES * (MAX_LINE + MAX_TAGS);
+
+
+    /**
+     * The size of the output buffer for blocking connections.
+     */
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    private static final int ZIP_LEVEL = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.LINK_ZIP_LEVEL));
+
+    private static final int FLUSH_BYTES = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.OUTPUT_FLUSH_BYTES));
+    private static final int FLUSH_MILLIS = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.OUTPUT_FLUSH_MILLIS));
+    private static final int STREAM_BYTES = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.OUTPUT_STREAM_BYTES));
+
+    /**
+     * The most parts of streamed replies sent in one go. More are sent in a
+     * later task, so that other connections get their turn.
+     */
+    private static final int STREAM_PARTS_PER_TURN = 16;
+
+    private static final long PING_FREQUENCY_MILLIS
+            = TimeUnit.SECONDS.toMillis(Long.parseLong(ConfigData.getFirstConfigOption(ConfigKey.PING_FREQUENCY)));
+    private static final long PING_TIMEOUT_MILLIS
+            = TimeUnit.SECONDS.toMillis(Long.parseLong(ConfigData.getFirstConfigOption(ConfigKey.PING_TIMEOUT)));
+
+    /**
+     * Writes the output of blocking connections, so that a slow reader only
+     * ever blocks a writer thread and never the thread that produced the output.
+     */
+    private static final ExecutorService BLOCKING_WRITERS = Executors.newCachedThreadPool(Threads.factory("OutputWriter", true));
+
+    protected volatile boolean closed = false;
+
+    /**
+     * Whether this connection has been admitted by the admission control,
+     * and has to be released when it terminates.
+     */
+    volatile boolean admitted = false;
+    private volatile boolean interrupted = false;
 
     protected Socket socket;
     protected BufferedReader reader;
+    protected InputStream input;
     protected BufferedWriter writer;
+    protected OutputStream output;
+
+    /**
+     * The channel of this connection if it is driven by an event loop, or
+     * <code>null</code> if the connection uses blocking streams.
+     */
+    protected SocketChannel channel;
+
+    /**
+     * The TLS session on top of the channel, or <code>null</code> for plain connections.
+     */
+    private TlsSession tls;
+
+    /**
+     * Compression on top of the channel or streams, or <code>null</code> while neither direction is compressed.
+     */
+    private volatile ZipChannel zip;
+
+    private volatile EventLoop eventLoop;
+    private SelectionKey selectionKey;
+
+    /**
+     * Splits the input into lines. Created when the connection is attached, users on other servers never read anything.
+     */
+    private LineFramer framer;
+
+    private volatile boolean terminated = false;
+
+    /**
+     * Output waiting to be written. Producers on any thread only add to the
+     * queue, the event loop (or a writer thread for blocking connections)
+     * drains it.
+     */
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedLines = new AtomicInteger();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final AtomicInteger peakQueuedBytes = new AtomicInteger();
+    private final AtomicBoolean sendQueueExceeded = new AtomicBoolean(false);
+
+    /**
+     * Long replies that are sent as the output queue drains, oldest first.
+     * One thread at a time sends them, the one that set <code>streaming</code>.
+     */
+    private final Queue<ReplyStream> streams = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean streaming = new AtomicBoolean(false);
+
+    /**
+     * Queued in place of a line: all output after it is compressed.
+     */
+    private static final ByteBuffer START_COMPRESSION = ByteBuffer.allocate(0);
+
+    /**
+     * Whether the head of the outbound queue has been partially written.
+     * Only touched by the event loop.
+     */
+    private boolean headPartiallyWritten = false;
+
+    /**
+     * Held while the output of a blocking connection is written.
+     */
+    private final ReentrantLock outputLock = new ReentrantLock();
+    private byte[] writeScratch;
+
+    /**
+     * The class that sets the input limits of this connection.
+     */
+    private volatile ConnectionClass connectionClass = defaultConnectionClass();
+
+    /**
+     * The lines this connection may send before it is throttled, or
+     * <code>null</code> if the connection is not throttled. Commands may
+     * cost more than one line, see {@link #inputCost(byte[], int, int)}.
+     */
+    private volatile TokenBucket inputBudget = newInputBudget();
+
+    /**
+     * Set while the input of the connection is held back for exceeding its
+     * budget. Input is still read, up to the receive queue limit of the class,
+     * but not processed.
+     */
+    private boolean inputLagged = false;
+
+    /**
+     * Resumes processing input after the input budget has been refilled.
+     */
+    private final Runnable resumeInputTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            if (terminated) {
+                return;
+            }
+
+            inputLagged = false;
+            processInput();
+
+            if (!inputLagged && selectionKey.isValid()) {
+
+                if (hasBufferedInput()) {
+
+                    // Decrypted input doesn't make the channel readable again
+                    try {
+                        readFromChannel();
+                    } catch (IOException ex) {
+                        onChannelError(ex);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Writes the outbound queue. Runs on the event loop, or on a writer thread
+     * for blocking connections, whenever queued output is flushed.
+     */
+    private final Runnable flushTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            flushScheduled.set(false);
+
+            if (terminated) {
+                return;
+            }
+
+            try {
+                if (channel == null) {
+                    writeToStream();
+                } else if (selectionKey != null) {
+                    writeToChannel();
+                }   // else: Not registered yet - registration picks up the pending output
+            } catch (IOException ex) {
+                onChannelError(ex);
+            }
+        }
+    };
+
+    /**
+     * Sends more of the streamed replies, once the output queue has drained.
+     */
+    private final Runnable streamTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            sendStreams();
+        }
+    };
+
+    /**
+     * Continues the TLS handshake after a delegated task has finished.
+     */
+    private final Runnable resumeHandshakeTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            if (terminated) {
+                return;
+            }
+
+            try {
+                continueHandshake();
+            } catch (IOException ex) {
+                onChannelError(ex);
+            }
+        }
+    };
+
+    /**
+     * Closes the connection without waiting for pending output.
+     */
+    private final Runnable closeNowTask = new Runnable() {
+
+        @Override
+        public void run() {
+            closeNow();
+        }
+    };
+
+    /**
+     * The number of this connection on this server, see {@link ConnectionIds}.
+     */
+    private final long number = ConnectionIds.nextNumber();
+
+    /**
+     * The ID linked servers know this connection by, formatted on first use.
+     */
+    private String id;
+
+    private String connectPassword;
+
+    private volatile long lastPingReplyTime = TimingWheel.currentTimeMillis();
+    private volatile String lastPingText = null;
+
+    /**
+     * The next ping, and the deadline for the answer to the oldest unanswered
+     * ping. Guarded by <code>pingLock</code>.
+     */
+    private final Object pingLock = new Object();
+    private TimingWheel.Timeout pingTimer;
+    private TimingWheel.Timeout pongTimer;
+
+    /**
+     * Pings the connection and schedules the next ping.
+     */
+    private final Runnable pingTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            synchronized (pingLock) {
+
+                if (terminated) {
+                    return;     // Timers are already stopped
+                }
+
+                // Before the ping is sent, so that the answer finds the deadline to cancel
+                if (pongTimer == null) {
+                    pongTimer = TimingWheel.INSTANCE.schedule(pongOverdueTask, PING_TIMEOUT_MILLIS);
+                }
+
+                pingTimer = TimingWheel.INSTANCE.schedule(this, PING_FREQUENCY_MILLIS);
+            }
+
+            // Not under the lock: a full send queue terminates the connection right here
+            sendPingRequest(ConfigData.getFirstConfigOption(ConfigKey.HOST));
+        }
+    };
+
+    /**
+     * Drops the connection if a ping has not been answered in time.
+     */
+    private final Runnable pongOverdueTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            long seconds = TimeUnit.MILLISECONDS.toSeconds(TimingWheel.currentTimeMillis() - lastPingReplyTime);
+            disconnect("Ping Timeout: " + seconds + " seconds");
+        }
+    };
+
+    /**
+     * Attaches this connection to a blocking socket. The connection will be
+     * served by its own thread once it is started.
+     * @param socket The socket to attach to
+     * @throws IOException If the streams of the socket could not be opened
+     */
+    protected void attach(Socket socket) throws IOException {
+
+        this.socket = socket;
+        this.framer = newFramer();
+
+        input = socket.getInputStream();
+        output = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+    }
+
+    /**
+     * Attaches this connection to a socket channel. The channel is switched to
+     * non-blocking mode and will be served by an event loop once the connection
+     * is started.
+     * @param channel The channel to attach to
+     * @throws IOException If the channel could not be switched to non-blocking mode
+     */
+    protected void attach(SocketChannel channel) throws IOException {
+
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.framer = newFramer();
+
+        channel.configureBlocking(false);
+    }
+
+    private static LineFramer newFramer() {
+
+        return new LineFramer(MAX_LINE, MAX_TAGS, READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Attaches this connection to a socket channel, optionally running TLS on
+     * top of it. The TLS handshake is done by the event loop.
+     * @param channel The channel to attach to
+     * @param useTls Whether the connection uses TLS
+     * @throws IOException If the channel could not be switched to non-blocking mode, or TLS is not available
+     */
+    protected void attach(SocketChannel channel, boolean useTls) throws IOException {
+
+        attach(channel);
+
+        if (useTls) {
+            tls = new TlsSession(channel);
+        }
+    }
+
+    /**
+     * Starts serving this connection. Connections attached to a channel are
+     * handed to an event loop, blocking connections get a thread of their own
+     * (a virtual thread if <code>threads.virtual</code> is set).
+     */
+    public void start() {
+
+        startPingTimer();
+
+        if (channel != null) {
+
+            EventLoopGroup.INSTANCE.register(this);
+        } else {
+
+            Threads.start("Connection[" + this + "]", this, false);
+        }
+    }
+
+    @Override
+    public void run() {
+
+        while (!interrupted) {
+            try {
+
+                if (input == null) {
+                    input = socket.getInputStream();
+                }
+
+                int read = (zip != null && zip.isInflating()) ? framer.readFrom(zip) : framer.readFrom(input);
+
+                if (read < 0) {
+
+                    break;  // Connection closed
+                }
+
+                // Handle everything that is already buffered before blocking again
+                int lines = 0;
+                LineFramer.Result result;
+
+                while (!interrupted && (result = framer.next()) != LineFramer.Result.NEED_INPUT) {
+
+                    if (result == LineFramer.Result.OVERSIZE) {
+
+                        rejectOversizeLine();
+                        continue;
+                    }
+
+                    awaitInputBudget(inputBudget);
+                    handleInput();
+                    lines++;
+                }
+
+                if (lines > 0) {
+                    Metrics.INPUT_LINES_PER_WAKEUP.record(lines);
+                }
+
+            }  catch (SocketTimeoutException ex) {
+                continue;   //Prevent endless blocks
+            } catch (IOException ex) {
+
+                if (!closed) {
+                    // Ignore IOExceptions on closed connections
+                    SharedData.logger.error(String.format("IOException while reading data from %s, closing connection.", socket.getInetAddress().getHostName()), ex);
+                }
+
+                break;
+            } catch (InterruptedException ex) {
+                requestInterrupt();
+            }
+        }
+
+        terminate();
+    }
+
+
+    private void rejectOversizeLine() {
+
+        Metrics.INPUT_OVERSIZE_LINES.inc();
+        onOversizeInput();
+    }
+
+    /**
+     * Called when the connection sent a line longer than allowed. The line
+     * has been dropped. Does nothing by default.
+     */
+    protected void onOversizeInput() {
+    }
+
+    /**
+     * Passes the current line of the framer to {@link #onInput(byte[], int, int)},
+     * collecting all output caused by it into one flush per receiving connection.
+     */
+    private void handleInput() {
+
+        OutputBatch.begin();
+        try {
+            onInput(framer.array(), framer.lineStart(), framer.lineLength());
+        } finally {
+            OutputBatch.end();
+        }
+    }
+
+    /**
+     * Called for every line received from the connection, with the raw bytes
+     * of the line. The bytes are only valid during the call. By default the
+     * line is decoded and passed to {@link #onInput(String)}.
+     * @param line The buffer holding the line
+     * @param offset The start of the line
+     * @param length The length of the line, without line terminator
+     */
+    protected void onInput(byte[] line, int offset, int length) {
+
+        onInput(new String(line, offset, length, SharedData.CHARSET));
+    }
+
+    /**
+     * Returns the connection class this connection starts out in. Clients
+     * are in the class set by <code>class.client</code>.
+     * @return The connection class
+     */
+    protected ConnectionClass defaultConnectionClass() {
+
+        return ConnectionClass.forClients();
+    }
+
+    /**
+     * Creates the input budget for this connection. Connections that should
+     * not be throttled return <code>null</code>.
+     * @return The input budget
+     */
+    protected TokenBucket newInputBudget() {
+
+        return connectionClass.newInputBudget();
+    }
+
+    /**
+     * Moves this connection to another connection class. The input budget
+     * starts out full in the new class.
+     * @param connectionClass The new class
+     */
+    public void setConnectionClass(ConnectionClass connectionClass) {
+
+        this.connectionClass = connectionClass;
+        this.inputBudget = newInputBudget();
+    }
+
+    public ConnectionClass getConnectionClass() {
+        return connectionClass;
+    }
+
+    /**
+     * Returns how much of the input budget a line takes. Called before the line
+     * is passed to {@link #onInput(byte[], int, int)}, and only if the
+     * connection is throttled. The bytes are only valid during the call.
+     * Every line costs one by default.
+     * @param line The buffer holding the line
+     * @param offset The start of the line
+     * @param length The length of the line, without line terminator
+     * @return The cost of the line
+     */
+    protected int inputCost(byte[] line, int offset, int length) {
+
+        return 1;
+    }
+
+    /**
+     * Returns the cost of the current line of the framer, limited to what a full budget holds.
+     */
+    private int lineCost() {
+
+        return connectionClass.limitCost(inputCost(framer.array(), framer.lineStart(), framer.lineLength()));
+    }
+
+    /**
+     * Blocks until the input budget allows the current line to be processed.
+     * Blocking connections are not lagged: while the thread waits, the socket
+     * buffers fill up and the kernel holds back the sender.
+     * @param budget The input budget
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    private void awaitInputBudget(TokenBucket budget) throws InterruptedException {
+
+        if (budget == null) {
+            return;
+        }
+
+        int cost = lineCost();
+
+        if (cost <= 0 || budget.tryTake(cost)) {
+            return;
+        }
+
+        Metrics.INPUT_THROTTLED.inc();
+
+        do {
+            Thread.sleep(budget.millisUntil(cost));
+        } while (!budget.tryTake(cost));
+    }
+
+    /**
+     * Closes the streams of this connection and removes it from the pool.
+     */
+    private synchronized void terminate() {
+
+        if (terminated) {
+            return;
+        }
+
+        if (channel == null) {
+            flushBeforeClose();
+        }
+
+        terminated = true;
+        stopPingTimer();
+        streams.clear();
+
+        if (tls != null) {
+            tls.close();
+        }
+
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+
+            if (writer != null) {
+                writer.close();
+            }
+
+            if (output != null) {
+                output.close();
+            }
+
+            socket.close();
+        } catch (IOException ioe) {
+            // Not much we can do here anyways
+            if (!closed) {
+                // Ignore IOExceptions on closed connections
+                SharedData.logger.info(String.format("IOException while closing streams to %s", socket.getInetAddress().getHostName()), ioe);
+            }
+        }
+
+        Metrics.SENDQ_PEAK.record(peakQueuedBytes.get());
+
+        if (admitted) {
+            AdmissionControl.DEFAULT.release(socket.getInetAddress());
+        }
+
+        // Also if the other side closed the connection, so that late lookups
+        // don't register it
+        closed = true;
+
+        ConnectionPool.unregister(this);
+        onDisconnect();
+    }
+
+    /**
+     * Queues a single line for output, appending the line terminator.
+     * @param line The line to write
+     */
+    protected void write(String line) {
+
+        enqueue(ByteBuffer.wrap((line + "\r\n").getBytes(SharedData.CHARSET)));
+    }
+
+    /**
+     * Sends a line that has already been encoded. Used to send the same line
+     * to many connections without encoding it for each of them.
+     * @param line The line to send
+     */
+    public void send(EncodedLine line) {
+
+        enqueue(line.view());
+    }
+
+    /**
+     * Sends a long reply piece by piece. Parts are sent while the output queue
+     * holds less than <code>output.stream.bytes</code>; when it holds more, the
+     * reply waits until the queue has been written out. Streamed replies are
+     * sent in the order they were started, other output is not held back.
+     * @param reply The reply
+     */
+    public void stream(ReplyStream reply) {
+
+        streams.add(reply);
+        sendStreams();
+    }
+
+    /**
+     * Sends parts of the streamed replies until the output queue passes the
+     * watermark, all replies are complete, or this thread has had its turn.
+     */
+    private void sendStreams() {
+
+        if (!streaming.compareAndSet(false, true)) {
+            return;     // Another thread is sending them
+        }
+
+        int parts = 0;
+
+        OutputBatch.begin();
+        try {
+            ReplyStream reply;
+
+            while ((reply = streams.peek()) != null && !closed
+                   && queuedBytes.get() < STREAM_BYTES && parts++ < STREAM_PARTS_PER_TURN) {
+
+                if (!reply.sendNext()) {
+                    streams.poll();
+                }
+            }
+        } finally {
+            OutputBatch.end();
+            streaming.set(false);
+        }
+
+        // Also if the output was written while the flag was still set
+        resumeStreams();
+    }
+
+    /**
+     * Schedules more parts of the streamed replies, if the output queue has room.
+     */
+    private void resumeStreams() {
+
+        if (streams.isEmpty() || closed || streaming.get() || queuedBytes.get() >= STREAM_BYTES) {
+            return;
+        }
+
+        if (channel == null) {
+
+            BLOCKING_WRITERS.execute(streamTask);
+            return;
+        }
+
+        EventLoop loop = eventLoop;
+        if (loop != null) {
+            loop.execute(streamTask);
+        }
+    }
+
+    /**
+     * Queues a buffer for output. The buffer must not be modified afterwards.
+     * Output is flushed at the end of the command that is being handled by the
+     * current thread, or right away if there is none or if the size or time
+     * threshold for a flush has been reached.
+     * @param buffer The buffer to queue
+     */
+    protected void enqueue(ByteBuffer buffer) {
+
+        if (terminated || sendQueueExceeded.get()) {
+            return;
+        }
+
+        int size = buffer.remaining();
+        int queued = queuedBytes.addAndGet(size);
+
+        if (queued > getSendQueueLimit()) {
+
+            queuedBytes.addAndGet(-size);
+            onSendQueueExceeded(queued);
+            return;
+        }
+
+        int peak;
+        while (queued > (peak = peakQueuedBytes.get())) {
+            if (peakQueuedBytes.compareAndSet(peak, queued)) {
+                break;
+            }
+        }
+
+        outbound.add(buffer);
+        queuedLines.incrementAndGet();
+
+        OutputBatch batch = OutputBatch.current();
+
+        if (batch == null || queued >= FLUSH_BYTES || batch.age() >= FLUSH_MILLIS) {
+            flush();
+        } else {
+            batch.add(this);
+        }
+    }
+
+    /**
+     * Returns the number of bytes that may wait for output on this connection
+     * before it is dropped.
+     * @return The send queue limit in bytes
+     */
+    protected abstract int getSendQueueLimit();
+
+    /**
+     * Compresses all output queued after this call. The peer has to be told
+     * where compression starts, by the line queued right before this call.
+     */
+    protected void startOutputCompression() {
+
+        enqueue(START_COMPRESSION);
+        flush();
+    }
+
+    /**
+     * Decompresses all input after the line that is being handled. Must be
+     * called from {@link #onInput(byte[], int, int)}.
+     */
+    protected void startInputCompression() {
+
+        zip().startInflating(framer.drain());
+    }
+
+    /**
+     * Describes how well the compressed directions of this connection compress.
+     * @return The description, or <code>null</code> if the connection is not compressed
+     */
+    public String getCompressionSummary() {
+
+        ZipChannel current = zip;
+        return (current == null) ? null : current.summary();
+    }
+
+    private synchronized ZipChannel zip() {
+
+        if (zip == null) {
+
+            zip = (channel != null)
+                    ? new ZipChannel(inputChannel(), outputChannel())
+                    : new ZipChannel(Channels.newChannel(input), Channels.newChannel(output));
+        }
+
+        return zip;
+    }
+
+    /**
+     * Drops this connection because the receiver doesn't keep up with its
+     * output. Output that hasn't been started yet is discarded and replaced by
+     * an <code>ERROR</code>, which is written if the socket still takes it.
+     * The thread that produced the output never waits for any of this.
+     * @param queued The size the send queue would have had
+     */
+    private void onSendQueueExceeded(int queued) {
+
+        if (!sendQueueExceeded.compareAndSet(false, true)) {
+            return;
+        }
+
+        SharedData.logger.info(String.format("Dropping connection to %s (SendQ exceeded: %s of %s bytes)",
+                                             this, queued, getSendQueueLimit()));
+        Metrics.SENDQ_EVICTIONS.inc();
+
+        closed = true;
+        interrupted = true;
+
+        Runnable evictTask = new Runnable() {
+
+            @Override
+            public void run() {
+
+                discardQueuedOutput();
+
+                outbound.add(ByteBuffer.wrap("ERROR :SendQ exceeded\r\n".getBytes(SharedData.CHARSET)));
+                queuedLines.incrementAndGet();
+
+                if (channel == null) {
+
+                    flushBeforeClose();
+
+                    try {
+                        socket.close();     // Also unblocks the reading thread
+                    } catch (IOException ex) {
+                        // Closing anyways
+                    }
+                } else {
+
+                    if (selectionKey != null) {
+                        try {
+                            writeToChannel();
+                        } catch (IOException ex) {
+                            // Closing anyways
+                        }
+                    }
+
+                    terminate();
+                }
+            }
+        };
+
+        if (channel == null) {
+
+            BLOCKING_WRITERS.execute(evictTask);
+        } else {
+
+            EventLoop loop = eventLoop;
+            if (loop != null) {
+                loop.execute(evictTask);
+            }   // else: registration sees the interrupt
+        }
+    }
+
+    /**
+     * Removes all output from the queue that has not been started yet.
+     */
+    private void discardQueuedOutput() {
+
+        Iterator<ByteBuffer> queued = outbound.iterator();
+
+        if (headPartiallyWritten && queued.hasNext()) {
+            queued.next();  // Cutting a line in half would garble the ERROR
+        }
+
+        while (queued.hasNext()) {
+
+            ByteBuffer buffer = queued.next();
+            queued.remove();
+
+            queuedLines.decrementAndGet();
+            queuedBytes.addAndGet(-buffer.remaining());
+        }
+    }
+
+    /**
+     * Writes out all queued output. This only schedules the write, the calling
+     * thread never waits for the receiver.
+     */
+    void flush() {
+
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;     // The pending flush will pick up the new output
+        }
+
+        if (channel == null) {
+
+            BLOCKING_WRITERS.execute(flushTask);
+            return;
+        }
+
+        EventLoop loop = eventLoop;
+        if (loop != null) {
+            loop.execute(flushTask);
+        } else {
+            flushScheduled.set(false);  // Registration picks up the pending output
+        }
+    }
+
+    /**
+     * Drains the outbound queue into the output stream of a blocking connection.
+     * @throws IOException If writing to the stream failed
+     */
+    private void writeToStream() throws IOException {
+
+        outputLock.lock();
+        try {
+            if (output == null) {
+                output = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+            }
+
+            int depth = queuedLines.get();
+            long bytes = 0;
+
+            ByteBuffer buffer;
+            while ((buffer = outbound.poll()) != null) {
+
+                int size = buffer.remaining();
+
+                if (buffer == START_COMPRESSION) {
+                    zip().startDeflating(ZIP_LEVEL);
+                } else if (zip != null && zip.isDeflating()) {
+
+                    zip.compress(buffer);
+                } else if (buffer.hasArray()) {
+                    output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), size);
+                } else {
+
+                    // Shared read-only views don't expose their array
+                    if (writeScratch == null) {
+                        writeScratch = new byte[WRITE_BUFFER_SIZE];
+                    }
+
+                    while (buffer.hasRemaining()) {
+
+                        int chunk = Math.min(buffer.remaining(), writeScratch.length);
+                        buffer.get(writeScratch, 0, chunk);
+                        output.write(writeScratch, 0, chunk);
+                    }
+                }
+
+                queuedLines.decrementAndGet();
+                queuedBytes.addAndGet(-size);
+                bytes += size;
+            }
+
+            if (bytes > 0) {
+
+                if (zip != null && zip.isDeflating()) {
+                    zip.flush();
+                }
+
+                output.flush();
+                recordFlush(depth, bytes);
+            }
+        } finally {
+            outputLock.unlock();
+        }
+
+        resumeStreams();
+    }
+
+    /**
+     * Gives the output of a blocking connection a last chance before it is closed.
+     * Does not wait long for a receiver that doesn't read.
+     */
+    private void flushBeforeClose() {
+
+        try {
+            if (!outputLock.tryLock(1, TimeUnit.SECONDS)) {
+                return;
+            }
+
+            try {
+                writeToStream();
+            } finally {
+                outputLock.unlock();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            // The connection is closed anyway
+        }
+    }
+
+    private void recordFlush(int depth, long bytes) {
+
+        flushes.incrementAndGet();
+        flushedBytes.addAndGet(bytes);
+
+        Metrics.OUTPUT_QUEUE_DEPTH.record(depth);
+        Metrics.OUTPUT_BYTES_PER_FLUSH.record(bytes);
+    }
+
+    /**
+     * Returns the number of lines waiting to be written.
+     * @return The queue depth
+     */
+    public int getSendQueueLines() {
 
-    protected UUID uuid = UUID.randomUUID();
+        return queuedLines.get();
+    }
 
-    private String connectPassword;
+    /**
+     * Returns the number of bytes waiting to be written.
+     * @return The queue size in bytes
+     */
+    public int getSendQueueBytes() {
 
-    private long lastPingReplyTime = System.currentTimeMillis();
-    private String lastPingText = null;
+        return queuedBytes.get();
+    }
 
-    public Connection() {
+    /**
+     * Returns the largest number of bytes that have been waiting for output at once.
+     * @return The peak queue size in bytes
+     */
+    public int getPeakSendQueueBytes() {
 
-        super("Connection[]");
+        return peakQueuedBytes.get();
     }
 
-    @Override
-    public void run() {
+    /**
+     * Returns the number of times output has been written to this connection.
+     * @return The number of flushes
+     */
+    public long getFlushCount() {
 
-        while (!interrupted) {
-            try {
+        return flushes.get();
+    }
 
-                String input = reader.readLine();
-                if (input == null) {
+    /**
+     * Returns the average number of bytes written per flush.
+     * @return The bytes per flush, or <code>0</code> if nothing has been written yet
+     */
+    public long getBytesPerFlush() {
 
-                    break;  // Connection closed
-                }
+        long count = flushes.get();
+        return (count == 0) ? 0 : flushedBytes.get() / count;
+    }
 
-                onInput(input);
 
-            }  catch (SocketTimeoutException ex) {
-                continue;   //Prevent endless blocks
-            } catch (IOException ex) {
+    // Event loop hooks
 
-                if (!closed) {
-                    // Ignore IOExceptions on closed connections
-                    SharedData.logger.error(String.format("IOException while reading data from %s, closing connection.", socket.getInetAddress().getHostName()), ex);
+    /**
+     * Sets the event loop this connection is served by.
+     * @param eventLoop The event loop
+     */
+    void setEventLoop(EventLoop eventLoop) {
+
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Called by the event loop once the channel has been registered with its selector.
+     * @param key The selection key of the channel
+     */
+    void onRegistered(SelectionKey key) {
+
+        this.selectionKey = key;
+
+        if (interrupted) {
+            closeWhenFlushed();
+        } else if (!outbound.isEmpty()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel of this connection has been selected.
+     */
+    void onSelected() {
+
+        try {
+            if (tls != null && !tls.isEstablished()) {
+
+                continueHandshake();
+                return;
+            }
+
+            if (selectionKey.isValid() && selectionKey.isReadable()) {
+                readFromChannel();
+            }
+
+            if (selectionKey.isValid() && selectionKey.isWritable()) {
+                writeToChannel();
+            }
+        } catch (IOException ex) {
+            onChannelError(ex);
+        }
+    }
+
+    /**
+     * Reads all available data from the channel and processes it. Input the
+     * TLS session has already taken from the channel is read until it is used
+     * up, since the channel doesn't signal it anymore.
+     * @throws IOException If reading from the channel failed
+     */
+    private void readFromChannel() throws IOException {
+
+        int read;
+
+        do {
+            if (inputLagged && !framer.hasRoom() && !framer.grow(connectionClass.getRecvq())) {
+
+                onRecvqExceeded();
+                return;
+            }
+
+            read = framer.readFrom(inputChannel());
+
+            if (read < 0) {
+                terminate();    // Connection closed
+                return;
+            }
+
+            if (inputLagged && framer.buffered() > connectionClass.getRecvq()) {
+
+                onRecvqExceeded();
+                return;
+            }
+
+            processInput();
+        } while (read > 0 && !interrupted && hasBufferedInput());
+
+        if (tls != null && !tls.isEstablished() && !terminated) {
+            continueHandshake();    // The peer started a new handshake
+        }
+    }
+
+    /**
+     * Returns the channel input is read from: the compression on top of the
+     * TLS session on top of the socket channel, as far as they are in use.
+     */
+    private ReadableByteChannel inputChannel() {
+
+        if (zip != null && zip.isInflating()) {
+            return zip;
+        }
+
+        return (tls == null) ? channel : tls;
+    }
+
+    /**
+     * Returns the channel output is written to, see {@link #inputChannel()}.
+     */
+    private GatheringByteChannel outputChannel() {
+
+        if (zip != null && zip.isDeflating()) {
+            return zip;
+        }
+
+        return (tls == null) ? channel : tls;
+    }
+
+    /**
+     * Tells whether input has been taken from the channel that the channel
+     * won't signal anymore.
+     */
+    private boolean hasBufferedInput() {
+
+        return (zip != null && zip.hasBufferedInput()) || (tls != null && tls.hasBufferedInput());
+    }
+
+    /**
+     * Advances the TLS handshake. Until it is done, the connection only waits
+     * for the I/O the handshake needs, and queued output is held back. Once it
+     * is done, input that came with the last handshake message is processed
+     * and held back output is written.
+     * @throws IOException If writing to the channel failed
+     */
+    private void continueHandshake() throws IOException {
+
+        boolean done;
+
+        try {
+            done = tls.handshake(eventLoop, resumeHandshakeTask);
+        } catch (IOException ex) {
+
+            Metrics.TLS_HANDSHAKE_FAILURES.inc();
+            SharedData.logger.info(String.format("TLS handshake with %s failed (%s)", this, ex.getMessage()));
+
+            closed = true;
+            terminate();
+            return;
+        }
+
+        if (!selectionKey.isValid()) {
+            return;
+        }
+
+        if (!done) {
+
+            int ops = 0;
+            if (!tls.isRunningTask()) {
+                ops = SelectionKey.OP_READ | (tls.hasPendingOutput() ? SelectionKey.OP_WRITE : 0);
+            }
+
+            selectionKey.interestOps(ops);
+            return;
+        }
+
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        readFromChannel();
+
+        if (!terminated) {
+            writeToChannel();
+        }
+    }
+
+    /**
+     * Passes every complete line in the read buffer to {@link #onInput(byte[], int, int)},
+     * until the buffer is drained or the input budget is exhausted. In the latter
+     * case the input is lagged until the budget has been refilled.
+     */
+    private void processInput() {
+
+        int lines = 0;
+        LineFramer.Result result;
+
+        while (!interrupted && !inputLagged && (result = framer.next()) != LineFramer.Result.NEED_INPUT) {
+
+            if (result == LineFramer.Result.OVERSIZE) {
+
+                rejectOversizeLine();
+                continue;
+            }
+
+            TokenBucket budget = inputBudget;
+
+            if (budget != null) {
+
+                int cost = lineCost();
+
+                if (cost > 0 && !budget.tryTake(cost)) {
+
+                    framer.pushBack();
+                    lagInput(budget.millisUntil(cost));
+                    break;
                 }
+            }
 
-                break;
+            handleInput();
+            lines++;
+        }
+
+        if (lines > 0) {
+            Metrics.INPUT_LINES_PER_WAKEUP.record(lines);
+        }
+
+        if (!inputLagged) {
+            framer.shrink(READ_BUFFER_SIZE);    // Give back what a lag made the buffer grow to
+        }
+    }
+
+    /**
+     * Holds back the input of the connection for the given time. The channel
+     * is still read, so that a connection that keeps flooding can be told
+     * apart from one that merely sent a burst.
+     * @param millis The time to wait
+     */
+    private void lagInput(long millis) {
+
+        Metrics.INPUT_THROTTLED.inc();
+        Metrics.INPUT_LAG_MILLIS.record(millis);
+
+        inputLagged = true;
+        eventLoop.schedule(resumeInputTask, millis);
+    }
+
+    /**
+     * Drops this connection because it sent more input while lagged than its
+     * receive queue holds.
+     */
+    private void onRecvqExceeded() {
+
+        Metrics.RECVQ_EXCEEDED.inc();
+
+        // Nothing more is read, the event loop would report the channel over and over
+        selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+        disconnect("Excess Flood");
+    }
+
+    /**
+     * Writes as much of the outbound queue to the channel as it accepts, and
+     * registers interest in writability for the rest. Queued buffers are handed
+     * to the channel together in one gathering write.
+     * @throws IOException If writing to the channel failed
+     */
+    private void writeToChannel() throws IOException {
+
+        if (tls != null && !tls.isEstablished()) {
+
+            // Output waits for the handshake
+            if (interrupted) {
+                terminate();
             }
 
-            try {
-                sleep(50);
+            return;
+        }
+
+        ByteBuffer[] gather = eventLoop.gatherBuffers;
+        int depth = queuedLines.get();
+        long bytes = 0;
+
+        try {
+            while (true) {
+
+                int count = 0;
+                for (ByteBuffer buffer: outbound) {
+
+                    if (buffer == START_COMPRESSION) {
+                        break;
+                    }
+
+                    gather[count++] = buffer;
+                    if (count == gather.length) {
+                        break;
+                    }
+                }
+
+                if (count == 0) {
+
+                    if (outbound.peek() != START_COMPRESSION) {
+                        break;
+                    }
+
+                    // Everything before it has been handed to the channel
+                    outbound.poll();
+                    queuedLines.decrementAndGet();
+                    zip().startDeflating(ZIP_LEVEL);
+                    continue;
+                }
+
+                long written = outputChannel().write(gather, 0, count);
+                queuedBytes.addAndGet((int) -written);
+                bytes += written;
+
+                for (int i = 0; i < count; i++) {
+
+                    if (gather[i].hasRemaining()) {
+
+                        headPartiallyWritten = true;
+                        selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+
+                    outbound.poll();
+                    queuedLines.decrementAndGet();
+                    headPartiallyWritten = false;
+                }
+
+                Arrays.fill(gather, 0, count, null);
             }
-            catch (InterruptedException ex) {
-                requestInterrupt();
+        } finally {
+
+            Arrays.fill(gather, null);
+
+            if (bytes > 0) {
+                recordFlush(depth, bytes);
             }
         }
 
+        if ((zip != null && zip.isDeflating() && !zip.flush()) || (tls != null && !tls.flush())) {
+
+            // Everything is encrypted, but not everything has been written yet
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+
+        selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+
+        if (interrupted) {
+            terminate();
+        }
+
+        resumeStreams();
+    }
+
+    /**
+     * Closes this connection once all queued output has been written.
+     * Must be called from the event loop.
+     */
+    void closeWhenFlushed() {
+
+        if (selectionKey == null || terminated) {
+            return;
+        }
+
         try {
-            reader.close();
-            writer.close();
-            socket.close();
-        } catch (IOException ioe) {
-            // Not much we can do here anyways
-            if (!closed) {
-                // Ignore IOExceptions on closed connections
-                SharedData.logger.info(String.format("IOException while closing streams to %s", socket.getInetAddress().getHostName()), ioe);
+            writeToChannel();
+        } catch (IOException ex) {
+            onChannelError(ex);
+        }
+    }
+
+    /**
+     * Closes this connection immediately. Must be called from the event loop.
+     */
+    void closeNow() {
+
+        terminate();
+    }
+
+    private void onChannelError(IOException ex) {
+
+        if (!closed) {
+            // Ignore IOExceptions on closed connections
+            SharedData.logger.error(String.format("IOException on %s, closing connection.", this), ex);
+        }
+
+        closed = true;
+
+        if (channel == null) {
+            abort(ex.getMessage());
+        } else {
+            terminate();
+        }
+    }
+
+    /**
+     * Drops this connection without waiting for pending output, e.g. because
+     * the receiver doesn't read it.
+     * @param reason The reason, for the log
+     */
+    protected void abort(String reason) {
+
+        if (!closed) {
+            SharedData.logger.info(String.format("Dropping connection to %s (%s)", this, reason));
+        }
+
+        closed = true;
+        interrupted = true;
+
+        if (channel == null) {
+
+            // Unblocks both the reading thread and a writer stuck on the socket
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Closing anyways
             }
+
+            return;
         }
 
-        ConnectionPool.ALL.removeConnection(getUUID());
+        EventLoop loop = eventLoop;
+        if (loop != null) {
+            loop.execute(closeNowTask);
+        }   // else: registration sees the interrupt
     }
 
     /**
@@ -107,6 +1509,11 @@ public abstract class Connection extends Thread implements Interruptable {
     public void requestInterrupt() {
 
         this.interrupted = true;
+
+        EventLoop loop = eventLoop;
+        if (loop != null) {
+            loop.close(this);
+        }
     }
 
     /**
@@ -126,9 +1533,9 @@ public abstract class Connection extends Thread implements Interruptable {
         SharedData.logger.info(String.format("Closing connection to %s (%s)", this, message));
 
         closed = true;
-        requestInterrupt();
 
         send(String.format("ERROR :Closing link: %s", message));
+        requestInterrupt();
     }
 
     /**
@@ -150,12 +1557,43 @@ public abstract class Connection extends Thread implements Interruptable {
     }
 
     /**
-     * Returns the unique identifier for this connection
-     * @return the unique identifier for this connection
+     * Tells whether this connection is closing or closed.
+     * @return <code>true</code> if the connection is closing
+     */
+    public boolean isClosed() {
+
+        return closed;
+    }
+
+    /**
+     * Returns the number of this connection, unique on this server.
+     * @return The number
+     */
+    public long getNumber() {
+
+        return number;
+    }
+
+    /**
+     * Returns the network-wide ID of this connection, see {@link ConnectionIds}.
+     * @return The ID
+     */
+    public synchronized String getId() {
+
+        if (id == null) {
+            id = ConnectionIds.forNumber(number);
+        }
+
+        return id;
+    }
+
+    /**
+     * Sets the ID of a connection that got its ID from another server.
+     * @param id The ID
      */
-    public UUID getUUID() {
+    protected synchronized void setId(String id) {
 
-        return uuid;
+        this.id = id;
     }
 
     public String getPingRequestText() {
@@ -171,7 +1609,44 @@ public abstract class Connection extends Thread implements Interruptable {
     public void updatePing(String key) {
 
         if (key.equals(lastPingText)) {
-            lastPingReplyTime = System.currentTimeMillis();
+
+            lastPingReplyTime = TimingWheel.currentTimeMillis();
+
+            synchronized (pingLock) {
+
+                if (pongTimer != null) {
+
+                    pongTimer.cancel();
+                    pongTimer = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules the first ping. Its delay is picked at random from the ping
+     * frequency, so that connections that come in together are not all
+     * pinged at the same time, ever after.
+     */
+    private void startPingTimer() {
+
+        synchronized (pingLock) {
+            pingTimer = TimingWheel.INSTANCE.schedule(pingTask,
+                                                      1 + ThreadLocalRandom.current().nextLong(PING_FREQUENCY_MILLIS));
+        }
+    }
+
+    private void stopPingTimer() {
+
+        synchronized (pingLock) {
+
+            if (pingTimer != null) {
+                pingTimer.cancel();
+            }
+
+            if (pongTimer != null) {
+                pongTimer.cancel();
+            }
         }
     }
 
@@ -183,8 +1658,8 @@ public abstract class Connection extends Thread implements Interruptable {
 
     public void sendPingRequest(String request) {
 
-        send(Command.PING.format(request));
         this.lastPingText = request;
+        send(Command.PING.format(request));
     }
 
     /**
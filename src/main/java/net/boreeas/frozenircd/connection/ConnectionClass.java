@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.utils.TokenBucket;
+
+/**
+ * The input limits shared by a kind of connection. A class named
+ * <code>name</code> is configured by the <code>class.name.*</code> keys:
+ * <ul>
+ * <li><code>throttle</code> - <code>false</code> exempts the class from input flood control</li>
+ * <li><code>input.burst</code>, <code>input.rate</code> - the input budget, in lines</li>
+ * <li><code>input.recvq</code> - the bytes of input that may wait while a connection is lagged</li>
+ * </ul>
+ * Settings a class doesn't have are taken from the <code>input.*</code> keys.
+ * @author Boreeas
+ */
+public final class ConnectionClass {
+
+    private static final ConcurrentMap<String, ConnectionClass> CLASSES = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final boolean throttled;
+    private final int inputBurst;
+    private final int inputRate;
+    private final int recvq;
+
+    private ConnectionClass(String name) {
+
+        this.name = name;
+
+        String prefix = "class." + name + ".";
+
+        throttled = !ConfigData.getFirstConfigOption(prefix + "throttle", "true").equalsIgnoreCase("false");
+        inputBurst = Integer.parseInt(ConfigData.getFirstConfigOption(prefix + ConfigKey.INPUT_BURST.getKey(),
+                ConfigData.getFirstConfigOption(ConfigKey.INPUT_BURST)));
+        inputRate = Integer.parseInt(ConfigData.getFirstConfigOption(prefix + ConfigKey.INPUT_RATE.getKey(),
+                ConfigData.getFirstConfigOption(ConfigKey.INPUT_RATE)));
+        recvq = Integer.parseInt(ConfigData.getFirstConfigOption(prefix + ConfigKey.INPUT_RECVQ.getKey(),
+                ConfigData.getFirstConfigOption(ConfigKey.INPUT_RECVQ)));
+    }
+
+    /**
+     * Returns the connection class with the given name.
+     * @param name The name of the class
+     * @return The class
+     */
+    public static ConnectionClass get(String name) {
+
+        ConnectionClass connectionClass = CLASSES.get(name);
+
+        if (connectionClass == null) {
+
+            ConnectionClass loaded = new ConnectionClass(name);
+            connectionClass = CLASSES.putIfAbsent(name, loaded);
+
+            if (connectionClass == null) {
+                connectionClass = loaded;
+            }
+        }
+
+        return connectionClass;
+    }
+
+    /**
+     * Returns the class of clients, set by <code>class.client</code>.
+     * @return The class
+     */
+    public static ConnectionClass forClients() {
+
+        return get(ConfigData.getFirstConfigOption(ConfigKey.CLASS_CLIENT));
+    }
+
+    /**
+     * Returns the class of clients that are opers, set by <code>class.oper</code>.
+     * @return The class
+     */
+    public static ConnectionClass forOpers() {
+
+        return get(ConfigData.getFirstConfigOption(ConfigKey.CLASS_OPER));
+    }
+
+    /**
+     * Returns the class of services, set by <code>class.service</code>.
+     * @return The class
+     */
+    public static ConnectionClass forServices() {
+
+        return get(ConfigData.getFirstConfigOption(ConfigKey.CLASS_SERVICE));
+    }
+
+    /**
+     * Creates the input budget for a connection of this class.
+     * @return The budget, or <code>null</code> if connections of this class are not throttled
+     */
+    public TokenBucket newInputBudget() {
+
+        return throttled ? new TokenBucket(inputBurst, inputRate) : null;
+    }
+
+    /**
+     * Limits the cost of a line to what a full budget holds, so that every line can be processed eventually.
+     * @param cost The cost of the line
+     * @return The cost to take from the budget
+     */
+    public int limitCost(int cost) {
+
+        return Math.min(cost, inputBurst);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    public int getRecvq() {
+        return recvq;
+    }
+
+    @Override
+    public String toString() {
+
+        return name;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+
+/**
+ * Hands out the numbers and IDs of connections. Every connection gets the
+ * next number of a sequence, which identifies it on this server and is never
+ * handed out again. Its ID is the token of this server followed by the
+ * number in six base 36 digits, e.g.
+ * <code>42XAAAAB7</code>, so it is unique on the network as long as the
+ * tokens are. Linked servers address users by their ID, which never changes,
+ * instead of by nickname.
+ * @author Boreeas
+ */
+public final class ConnectionIds {
+
+    // Utility class private constructor
+    private ConnectionIds() {}
+
+    /**
+     * The number of digits of the local part of an ID.
+     */
+    public static final int SEQUENCE_DIGITS = 6;
+
+    private static final long SEQUENCE_RANGE = pow(36, SEQUENCE_DIGITS);
+    private static final String DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    private static final String SERVER_ID = ConfigData.getFirstConfigOption(ConfigKey.TOKEN).toUpperCase(Locale.ENGLISH);
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * Returns the number for a new connection of this server.
+     * @return The number, not negative
+     */
+    public static long nextNumber() {
+
+        return SEQUENCE.getAndIncrement();
+    }
+
+    /**
+     * Returns the ID of a connection of this server.
+     * @param number The number of the connection
+     * @return The ID
+     */
+    public static String forNumber(long number) {
+
+        return format(SERVER_ID, number);
+    }
+
+    /**
+     * Returns the ID of this server, the part all IDs handed out here start with.
+     * @return The server ID
+     */
+    public static String getServerId() {
+
+        return SERVER_ID;
+    }
+
+    /**
+     * Formats an ID. The sequence wraps around after 36<sup>6</sup> IDs.
+     * @param serverId The ID of the server
+     * @param sequence The sequence number
+     * @return The ID
+     */
+    static String format(String serverId, long sequence) {
+
+        char[] id = new char[serverId.length() + SEQUENCE_DIGITS];
+        serverId.getChars(0, serverId.length(), id, 0);
+
+        long value = sequence % SEQUENCE_RANGE;
+
+        for (int i = id.length - 1; i >= serverId.length(); i--) {
+
+            id[i] = DIGITS.charAt((int) (value % 36));
+            value /= 36;
+        }
+
+        return new String(id);
+    }
+
+    private static long pow(long base, int exponent) {
+
+        long result = 1;
+
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+
+        return result;
+    }
+}
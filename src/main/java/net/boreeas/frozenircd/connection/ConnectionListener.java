@@ -16,25 +16,52 @@
 package net.boreeas.frozenircd.connection;
 
 import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.connection.server.ServerLink;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketOption;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 import net.boreeas.frozenircd.Interruptable;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.utils.Metrics;
 import net.boreeas.frozenircd.utils.SharedData;
+import net.boreeas.frozenircd.utils.Threads;
 
 /**
- *
+ * Accepts connections on a port. A port may be served by several listeners,
+ * either sharing one socket or, with <code>listen.reuseport</code>, each
+ * with a socket of its own that the kernel balances connections across.
+ * <p>
+ * A listener only accepts: setting up the client is done by the event loop
+ * that serves it, or by the thread of a blocking connection. Link ports
+ * accept other servers instead of clients, which skip the admission control
+ * and the lookups.
  * @author Boreeas
  */
 public class ConnectionListener extends Thread implements Interruptable {
 
+    private static final int BACKLOG = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.LISTEN_BACKLOG));
+
+    /**
+     * <code>StandardSocketOptions.SO_REUSEPORT</code>, or <code>null</code>
+     * if the JVM doesn't have it (it was added in Java 9).
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
     private ServerSocket serverSocket;
     private boolean useSSL = false;
+    private boolean reusePort = false;
+    private boolean links = false;
 
     private volatile boolean interrupted = false;
 
@@ -45,10 +72,45 @@ public class ConnectionListener extends Thread implements Interruptable {
 
     public ConnectionListener(String host, int port, boolean useSSL) throws IOException {
 
-        super("ConnectionListener[" + host + ":" + port + "]");
+        this(host, port, useSSL, 0);
+    }
+
+    /**
+     * Creates a listener with a socket of its own. If <code>listen.reuseport</code>
+     * is set, the socket is opened with <code>SO_REUSEPORT</code>, so that
+     * further listeners can bind to the same port.
+     * @param host The address to bind to
+     * @param port The port to bind to
+     * @param useSSL Whether connections on this port use SSL
+     * @param index The number of the listener on this port
+     * @throws IOException If the socket could not be bound
+     */
+    public ConnectionListener(String host, int port, boolean useSSL, int index) throws IOException {
+
+        this(host, port, useSSL, false, index);
+    }
+
+    /**
+     * Creates a listener with a socket of its own, see {@link #ConnectionListener(String, int, boolean, int)}.
+     * @param host The address to bind to
+     * @param port The port to bind to
+     * @param useSSL Whether connections on this port use SSL
+     * @param links Whether this port accepts links from other servers instead of clients
+     * @param index The number of the listener on this port
+     * @throws IOException If the socket could not be bound
+     */
+    public ConnectionListener(String host, int port, boolean useSSL, boolean links, int index) throws IOException {
+
+        super("ConnectionListener[" + host + ":" + port + "#" + index + "]");
         this.useSSL = useSSL;
+        this.links = links;
+
+        if (SharedData.nonBlockingIO) {
 
-        if (!useSSL) {
+            // Accepted sockets come with a channel that is handed to the event loops,
+            // which also do the TLS handshake
+            serverSocket = ServerSocketChannel.open().socket();
+        } else if (!useSSL) {
 
             serverSocket = new ServerSocket();
         } else {
@@ -56,13 +118,17 @@ public class ConnectionListener extends Thread implements Interruptable {
             serverSocket = SSLServerSocketFactory.getDefault().createServerSocket();
         }
 
+        if (ConfigData.getFirstConfigOption(ConfigKey.LISTEN_REUSEPORT).equalsIgnoreCase("true")) {
+            reusePort = enableReusePort(serverSocket);
+        }
+
         try {
-            serverSocket.bind(new InetSocketAddress(host, port));
+            serverSocket.bind(new InetSocketAddress(host, port), BACKLOG);
         } catch (SocketException ex) {
             SharedData.logger.error(String.format("Unable to bind to address: %s - Attempting to bind to default ip",
                                                   ex.getMessage()));
 
-            serverSocket.bind(new InetSocketAddress(port));
+            serverSocket.bind(new InetSocketAddress(port), BACKLOG);
         }
 
         serverSocket.setSoTimeout(1000);
@@ -71,34 +137,206 @@ public class ConnectionListener extends Thread implements Interruptable {
                                                                             serverSocket.getLocalPort()));
     }
 
+    /**
+     * Creates another listener that accepts from the socket of the given one.
+     * @param shared The listener to share the socket with
+     * @param index The number of the listener on this port
+     */
+    public ConnectionListener(ConnectionListener shared, int index) {
+
+        super("ConnectionListener[" + shared.serverSocket.getInetAddress().getHostAddress() + ":"
+              + shared.serverSocket.getLocalPort() + "#" + index + "]");
+
+        this.serverSocket = shared.serverSocket;
+        this.useSSL = shared.useSSL;
+        this.links = shared.links;
+    }
+
+    /**
+     * Tells whether this listener has a socket of its own, opened with <code>SO_REUSEPORT</code>.
+     * @return <code>true</code> if other listeners can bind to the same port
+     */
+    public boolean usesReusePort() {
+
+        return reusePort;
+    }
+
     @Override
     public void run() {
 
         while (!interrupted) {
 
             try {
-                final Socket socket = serverSocket.accept();
+                Socket socket = serverSocket.accept();
 
-                final Client client = new Client((useSSL) ? (SSLSocket) socket : socket, useSSL);
+                if (links || admit(socket)) {
+                    dispatch(socket);
+                }
+            } catch (SocketTimeoutException ex) {
 
-                // Check for hostname
-                new HostnameDaemon(client, socket).start();
+                // Forget about it - this is only to prevent endless blocks
+            } catch (IOException ex) {
 
-                // Check for identd
-                new IdentDaemon(client, socket).start();
+                SharedData.logger.error("Unable to accept incoming connection on port " + serverSocket.getLocalPort(), ex);
+            }
+        }
+    }
 
-                // Wait for connection timeout
-                new ConnectTimeoutDaemon(client).start();
+    /**
+     * Checks an accepted socket against the admission control, and closes it if it is rejected.
+     * Nothing has been allocated for the connection at this point.
+     * @param socket The accepted socket
+     * @return <code>true</code> if the connection may stay
+     */
+    private boolean admit(Socket socket) {
 
-                client.start();
-                ConnectionPool.ALL.addConnection(client.getUUID(), client);
-            } catch (SocketTimeoutException ex) {
+        AdmissionControl.Verdict verdict = AdmissionControl.DEFAULT.admit(socket.getInetAddress());
 
-                // Forget about it - this is only to prevent endless blocks
+        switch (verdict) {
+
+            case ADMITTED:
+                return true;
+
+            case THROTTLED:
+                Metrics.ADMISSION_THROTTLED.inc();
+                break;
+
+            case TOO_MANY_FROM_HOST:
+                Metrics.ADMISSION_TOO_MANY_FROM_HOST.inc();
+                break;
+
+            case SERVER_FULL:
+                Metrics.ADMISSION_SERVER_FULL.inc();
+                break;
+
+            case TABLE_FULL:
+                Metrics.ADMISSION_TABLE_FULL.inc();
+                break;
+        }
+
+        SharedData.logger.debug(String.format("Rejected connection from %s: %s", socket.getInetAddress(),
+                                              verdict.getReason()));
+
+        try {
+            if (!useSSL) {
+
+                // Fits into the empty send buffer of the new socket, so this doesn't block
+                socket.getOutputStream().write(("ERROR :Closing link: " + verdict.getReason() + "\r\n")
+                                                .getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException ex) {
+            // Gone already
+        } finally {
+
+            try {
+                socket.close();
             } catch (IOException ex) {
+                // Not much we can do here anyways
+            }
+        }
 
-                SharedData.logger.error("Unable to accept incoming connection on port " + serverSocket.getLocalPort(), ex);
+        return false;
+    }
+
+    /**
+     * Hands an accepted socket to the thread that will serve it, which also sets up the connection.
+     * @param socket The accepted socket
+     */
+    private void dispatch(final Socket socket) {
+
+        if (socket.getChannel() != null) {
+
+            EventLoopGroup.INSTANCE.next().execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    Connection connection = setUp(socket);
+                    if (connection != null) {
+                        connection.start();     // Registers with the current loop
+                    }
+                }
+            });
+        } else {
+
+            Threads.start("Connection[" + socket.getInetAddress() + "]", new Runnable() {
+
+                @Override
+                public void run() {
+
+                    Connection connection = setUp(socket);
+                    if (connection != null) {
+                        connection.run();       // This thread serves the connection
+                    }
+                }
+            }, false);
+        }
+    }
+
+    /**
+     * Creates the connection for an accepted socket, and starts the lookups of clients.
+     * @param socket The accepted socket
+     * @return The connection, or <code>null</code> if it could not be created
+     */
+    private Connection setUp(Socket socket) {
+
+        if (links) {
+            return setUpLink(socket);
+        }
+
+        try {
+            Client client = (socket.getChannel() != null)
+                                ? new Client(socket.getChannel(), useSSL)
+                                : new Client((useSSL) ? (SSLSocket) socket : socket, useSSL);
+
+            ((Connection) client).admitted = true;     // Released when the connection terminates
+
+            // Check for hostname
+            new HostnameDaemon(client, socket).start();
+
+            // Check for identd
+            new IdentDaemon(client, socket).start();
+
+            // Wait for connection timeout
+            client.startRegistrationTimeout();
+
+            ConnectionPool.register(client);
+            return client;
+        } catch (IOException ex) {
+
+            SharedData.logger.error("Unable to set up connection from " + socket.getInetAddress(), ex);
+            AdmissionControl.DEFAULT.release(socket.getInetAddress());
+
+            try {
+                socket.close();
+            } catch (IOException closeEx) {
+                // Not much we can do here anyways
+            }
+
+            return null;
+        }
+    }
+
+    private Connection setUpLink(Socket socket) {
+
+        try {
+            ServerLink link = (socket.getChannel() != null)
+                                ? new ServerLink(socket.getChannel())
+                                : new ServerLink(socket);
+
+            ConnectionPool.register(link);
+            return link;
+        } catch (IOException ex) {
+
+            SharedData.logger.error("Unable to set up link from " + socket.getInetAddress(), ex);
+
+            try {
+                socket.close();
+            } catch (IOException closeEx) {
+                // Not much we can do here anyways
             }
+
+            return null;
         }
     }
 
@@ -106,4 +344,44 @@ public class ConnectionListener extends Thread implements Interruptable {
 
         interrupted = true;
     }
+
+    /**
+     * Sets <code>SO_REUSEPORT</code> on an unbound server socket.
+     * @param socket The socket
+     * @return <code>true</code> if the option has been set
+     */
+    private static boolean enableReusePort(ServerSocket socket) {
+
+        try {
+            if (SO_REUSEPORT != null && socket.getChannel() != null
+                    && socket.getChannel().supportedOptions().contains(SO_REUSEPORT)) {
+
+                socket.getChannel().setOption(SO_REUSEPORT, true);
+                return true;
+            }
+
+            if (SO_REUSEPORT != null && socket.getChannel() == null) {
+
+                // ServerSocket.setOption was added together with the option
+                Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+                setOption.invoke(socket, SO_REUSEPORT, true);
+                return true;
+            }
+        } catch (IOException | ReflectiveOperationException | UnsupportedOperationException ex) {
+            // Not supported on this platform
+        }
+
+        SharedData.logger.warn("listen.reuseport is set, but SO_REUSEPORT is not supported here - listeners share a socket");
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
 }
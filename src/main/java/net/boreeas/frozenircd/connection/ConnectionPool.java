@@ -15,55 +15,171 @@
  */
 package net.boreeas.frozenircd.connection;
 
-import net.boreeas.frozenircd.utils.Filter;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import net.boreeas.frozenircd.config.ConfigData;
 import net.boreeas.frozenircd.config.ConfigKey;
 import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.connection.server.ServerLink;
+import net.boreeas.frozenircd.connection.service.Service;
+import net.boreeas.frozenircd.utils.Filter;
+import net.boreeas.frozenircd.utils.NameKey;
+import net.boreeas.frozenircd.utils.SharedData;
 
 /**
- *
+ * The connections of this server. {@link #ALL} holds every connection, the
+ * typed pools {@link #CLIENTS}, {@link #LINKS} and {@link #SERVICES} hold
+ * the same connections by kind. Use {@link #register(Connection)} and
+ * {@link #unregister(Connection)} to keep them in sync.
+ * <p>
+ * Connections are kept by their number (see {@link Connection#getNumber()})
+ * in a {@link ConnectionTable}. The pools may be changed and iterated from
+ * any thread at the same time. Iteration does not copy the pool and does not
+ * lock it: it sees every connection that stays in the pool while iterating,
+ * and may or may not see connections that are added or removed meanwhile.
  * @author Boreeas
  */
-public enum ConnectionPool {
+public final class ConnectionPool<T extends Connection> {
+
+    public static final ConnectionPool<Connection> ALL = new ConnectionPool<>();
+    public static final ConnectionPool<Client> CLIENTS = new ConnectionPool<>();
+    public static final ConnectionPool<ServerLink> LINKS = new ConnectionPool<>();
+    public static final ConnectionPool<Service> SERVICES = new ConnectionPool<>();
+
+    private static final String HOST = ConfigData.getFirstConfigOption(ConfigKey.HOST);
+
+    private final ConnectionTable<T> pool = new ConnectionTable<>();
+
+    private ConnectionPool() {}
+
+    /**
+     * Adds a connection to {@link #ALL} and to the pool of its kind.
+     * @param connection The connection
+     */
+    public static void register(Connection connection) {
+
+        long number = connection.getNumber();
+        ALL.addConnection(number, connection);
+
+        if (connection instanceof Client) {
+            CLIENTS.addConnection(number, (Client) connection);
+        } else if (connection instanceof ServerLink) {
+            LINKS.addConnection(number, (ServerLink) connection);
+        } else if (connection instanceof Service) {
+            SERVICES.addConnection(number, (Service) connection);
+        }
+    }
 
-    ALL, LINKS;
+    /**
+     * Removes a connection from {@link #ALL} and from the pool of its kind.
+     * @param connection The connection
+     */
+    public static void unregister(Connection connection) {
 
-    private Map<UUID, Connection> pool = new HashMap<>();
+        long number = connection.getNumber();
+        ALL.removeConnection(number);
+
+        if (connection instanceof Client) {
+            CLIENTS.removeConnection(number);
+        } else if (connection instanceof ServerLink) {
+            LINKS.removeConnection(number);
+        } else if (connection instanceof Service) {
+            SERVICES.removeConnection(number);
+        }
+    }
+
+    /**
+     * The users of the network, local and remote, by lower case nickname.
+     * Users that have not registered yet hold their nickname as well.
+     */
+    private static final ConcurrentMap<NameKey, Client> NICKNAMES = new ConcurrentHashMap<>();
+
+    /**
+     * Reserves a nickname for a user, atomically. The user is expected to take
+     * the nickname afterwards, which releases its old one (see
+     * {@link Client#setNickname(String)}).
+     * @param client The user
+     * @param nickname The nickname
+     * @return <code>false</code> if another user has the nickname
+     */
+    public static boolean reserveNickname(Client client, String nickname) {
+
+        Client owner = NICKNAMES.putIfAbsent(NameKey.of(SharedData.cleanString(nickname)), client);
+        return owner == null || owner == client;
+    }
+
+    /**
+     * Releases a nickname, if it is held by the user.
+     * @param client The user
+     * @param nickname The nickname
+     */
+    public static void releaseNickname(Client client, String nickname) {
+
+        NICKNAMES.remove(NameKey.of(nickname), client);
+    }
+
+    /**
+     * Returns the user that has a nickname, on this or another server.
+     * @param nickname The nickname
+     * @return The user, or <code>null</code> if nobody has the nickname
+     */
+    public static Client findByNickname(String nickname) {
+
+        return NICKNAMES.get(NameKey.of(nickname));
+    }
 
     /**
      * Adds a connection to the pool.
-     * @param identifier The unique identifier for the connection
+     * @param number The number of the connection
      * @param connection The connection to add
      */
-    public void addConnection(UUID identifier, Connection connection) {
+    public void addConnection(long number, T connection) {
 
-        pool.put(identifier, connection);
+        pool.put(number, connection);
     }
 
     /**
-     * Removes the connection for the given identifier.
-     * @param identifier The unique identifier for that connection
+     * Removes the connection with the given number.
+     * @param number The number of the connection
      * @return The removed connection, or <code>null</code> if none was removed
      */
-    public Connection removeConnection(UUID identifier) {
+    public T removeConnection(long number) {
 
-        return pool.remove(identifier);
+        return pool.remove(number);
     }
 
     /**
-     * Returns the connection for the given identifier
-     * @param identifier The unique identifier for the connection
+     * Returns the connection with the given number.
+     * @param number The number of the connection
      * @return The associated connection
      */
-    public Connection getConnection(UUID identifier) {
+    public T getConnection(long number) {
 
-        return pool.get(identifier);
+        return pool.get(number);
+    }
+
+    /**
+     * Returns the number of connections in the pool.
+     * @return The number of connections
+     */
+    public int size() {
+
+        return pool.size();
+    }
+
+    /**
+     * Returns the connections in the pool. The view is not a copy: it
+     * reflects later changes to the pool and can be iterated while the pool
+     * changes.
+     * @return A live, unmodifiable view of the connections
+     */
+    public Collection<T> getConnections() {
+
+        return Collections.unmodifiableCollection(pool);
     }
 
     /**
@@ -73,35 +189,39 @@ public enum ConnectionPool {
      */
     public void broadcast(String message, Connection source) {
 
-        for (Entry<UUID, Connection> entry: pool.entrySet()) {
+        EncodedLine line = new EncodedLine(message);
+
+        for (T connection: pool) {
 
             //Do not send a message to the original target
-            if (!entry.getValue().equals(source)) {
+            if (!connection.equals(source)) {
 
-                entry.getValue().send(message);
+                connection.send(line);
             }
         }
     }
 
-    public void broadcast(String message, Filter<Connection> filter) {
+    public void broadcast(String message, Filter<? super T> filter) {
 
-        for (Entry<UUID, Connection> entry: pool.entrySet()) {
+        EncodedLine line = new EncodedLine(message);
 
-            if (filter.pass(entry.getValue())) {
+        for (T connection: pool) {
 
-                entry.getValue().send(message);
+            if (filter.pass(connection)) {
+
+                connection.send(line);
             }
         }
     }
 
-    public synchronized void notifyClients(String message) {
+    public void notifyClients(String message) {
 
-        for (Entry<UUID, Connection> entry: pool.entrySet()) {
+        for (T connection: pool) {
 
-            if (entry.getValue() instanceof Client) {
+            if (connection instanceof Client) {
 
-                Client client = (Client)entry.getValue();
-                client.sendNotice(ConfigData.getFirstConfigOption(ConfigKey.HOST), client.getSafeNickname(), message);
+                Client client = (Client) connection;
+                client.sendNotice(HOST, client.getSafeNickname(), message);
             }
         }
     }
@@ -109,19 +229,24 @@ public enum ConnectionPool {
     /**
      * Disconnects all connections in this pool.
      */
-    public synchronized void disconnectAll() {
+    public void disconnectAll() {
 
-        for (Entry<UUID, Connection> entry: pool.entrySet()) {
+        for (T connection: pool) {
 
-            entry.getValue().disconnect();
+            connection.disconnect();
         }
     }
 
-    public synchronized Set<Connection> getConnections(Filter<Connection> filter) {
+    /**
+     * Returns the connections that pass a filter, as a copy.
+     * @param filter The filter
+     * @return The connections that pass the filter
+     */
+    public Set<T> getConnections(Filter<? super T> filter) {
 
-        Set<Connection> results = new HashSet<Connection>();
+        Set<T> results = new HashSet<>();
 
-        for (Connection conn: pool.values()) {
+        for (T conn: pool) {
 
             if (filter.pass(conn)) results.add(conn);
         }
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A hash table from connection numbers to connections, with the numbers
+ * stored as plain <code>long</code>s. The table is open addressed with
+ * linear probing: a connection takes two array slots and no entry object.
+ * <p>
+ * Changes are serialized on the table, lookups and iteration take no lock.
+ * This relies on connection numbers never being handed out twice (see
+ * {@link ConnectionIds#nextNumber()}): a slot whose key still holds the
+ * number after its value was read held that value for that number.
+ * <p>
+ * Iteration is weakly consistent: it sees every connection that stays in
+ * the table while iterating, and may or may not see connections that are
+ * added or removed meanwhile.
+ * @author Boreeas
+ */
+public final class ConnectionTable<T> extends AbstractCollection<T> {
+
+    private static final long FREE = -1;
+    private static final long REMOVED = -2;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The keys and values of the table. Replaced as a whole when the table
+     * grows, so readers always see a matching pair of arrays.
+     */
+    private static final class Slots<T> {
+
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<T> values;
+        final int mask;
+
+        Slots(int capacity) {
+
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+
+            for (int i = 0; i < capacity; i++) {
+                keys.lazySet(i, FREE);
+            }
+        }
+
+        int capacity() {
+
+            return mask + 1;
+        }
+    }
+
+    private volatile Slots<T> slots = new Slots<>(INITIAL_CAPACITY);
+    private volatile int size;
+
+    /**
+     * Slots that are taken or have been taken since the table last grew.
+     * Guarded by <code>this</code>.
+     */
+    private int used;
+
+    private static int index(long number, int mask) {
+
+        // Numbers are dense, spread them so runs of removed slots stay short
+        long hash = number * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the connection with a number.
+     * @param number The number
+     * @return The connection, or <code>null</code> if there is none with the number
+     */
+    public T get(long number) {
+
+        Slots<T> current = slots;
+
+        for (int i = index(number, current.mask); ; i = (i + 1) & current.mask) {
+
+            long key = current.keys.get(i);
+
+            if (key == number) {
+
+                T value = current.values.get(i);
+                return (current.keys.get(i) == number) ? value : null;
+            } else if (key == FREE) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Adds a connection, or replaces the connection that has the number.
+     * @param number The number, not negative
+     * @param value The connection
+     * @return The connection that had the number before, or <code>null</code>
+     */
+    public synchronized T put(long number, T value) {
+
+        if (number < 0 || value == null) {
+            throw new IllegalArgumentException("Negative number or no connection");
+        }
+
+        Slots<T> current = slots;
+        int free = -1;
+
+        for (int i = index(number, current.mask); ; i = (i + 1) & current.mask) {
+
+            long key = current.keys.get(i);
+
+            if (key == number) {
+                return current.values.getAndSet(i, value);
+            } else if (key == REMOVED && free < 0) {
+                free = i;
+            } else if (key == FREE) {
+
+                if (free < 0) {
+
+                    free = i;
+                    used++;
+                }
+
+                break;
+            }
+        }
+
+        // The value first, so that readers who find the key find the value
+        current.values.set(free, value);
+        current.keys.set(free, number);
+        size++;
+
+        if (used * 2 > current.capacity()) {
+            rehash((size * 4 > current.capacity()) ? current.capacity() * 2 : current.capacity());
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the connection with a number.
+     * @param number The number
+     * @return The removed connection, or <code>null</code> if there was none with the number
+     */
+    public synchronized T remove(long number) {
+
+        Slots<T> current = slots;
+
+        for (int i = index(number, current.mask); ; i = (i + 1) & current.mask) {
+
+            long key = current.keys.get(i);
+
+            if (key == number) {
+
+                T value = current.values.getAndSet(i, null);
+                current.keys.set(i, REMOVED);
+                size--;
+
+                return value;
+            } else if (key == FREE) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Copies the connections into new arrays, leaving out the removed slots.
+     * Readers that still hold the old arrays see the table as it was.
+     * @param capacity The capacity of the new arrays, a power of two
+     */
+    private void rehash(int capacity) {
+
+        Slots<T> old = slots;
+        Slots<T> fresh = new Slots<>(capacity);
+
+        for (int i = 0; i < old.capacity(); i++) {
+
+            long key = old.keys.get(i);
+
+            if (key >= 0) {
+
+                int j = index(key, fresh.mask);
+
+                while (fresh.keys.get(j) != FREE) {
+                    j = (j + 1) & fresh.mask;
+                }
+
+                fresh.values.lazySet(j, old.values.get(i));
+                fresh.keys.lazySet(j, key);
+            }
+        }
+
+        used = size;
+        slots = fresh;
+    }
+
+    /**
+     * Returns the number of connections, without counting them.
+     * @return The number of connections
+     */
+    @Override
+    public int size() {
+
+        return size;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+
+        final Slots<T> current = slots;
+
+        return new Iterator<T>() {
+
+            private int index = 0;
+            private T next = advance();
+
+            private T advance() {
+
+                while (index < current.capacity()) {
+
+                    T value = current.values.get(index++);
+
+                    if (value != null) {
+                        return value;
+                    }
+                }
+
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+
+                T result = next;
+                next = advance();
+
+                return result;
+            }
+
+            @Override
+            public void remove() {
+
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.nio.ByteBuffer;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * A line that is encoded once, including its line terminator, and then
+ * queued for any number of connections. Every connection gets its own
+ * read-only view of the same bytes.
+ * @author Boreeas
+ */
+public final class EncodedLine {
+
+    private String line;
+    private final ByteBuffer encoded;
+
+    /**
+     * Encodes a line.
+     * @param line The line, without line terminator
+     */
+    public EncodedLine(String line) {
+
+        this.line = line;
+        this.encoded = ByteBuffer.wrap((line + "\r\n").getBytes(SharedData.CHARSET)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Wraps a line that has been encoded by the caller.
+     * @param encoded The encoded line, including the line terminator. Must not be modified afterwards.
+     */
+    public EncodedLine(byte[] encoded) {
+
+        this.encoded = ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a new view of the encoded bytes, with its own position.
+     * @return The view
+     */
+    ByteBuffer view() {
+
+        return encoded.duplicate();
+    }
+
+    /**
+     * Returns the number of encoded bytes, including the line terminator.
+     * @return The length in bytes
+     */
+    public int length() {
+
+        return encoded.capacity();
+    }
+
+    @Override
+    public String toString() {
+
+        if (line == null) {
+
+            // Only needed for logging - decode lazily, without the line terminator
+            ByteBuffer view = view();
+            byte[] bytes = new byte[Math.max(0, view.remaining() - 2)];
+            view.get(bytes);
+            line = new String(bytes, SharedData.CHARSET);
+        }
+
+        return line;
+    }
+}
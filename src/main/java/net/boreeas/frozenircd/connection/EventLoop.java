@@ -0,0 +1,257 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import net.boreeas.frozenircd.Interruptable;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * A selector thread that serves the I/O of every connection registered with it.
+ * All reads, writes and closes of those connections happen on this thread.
+ * @author Boreeas
+ */
+public class EventLoop extends Thread implements Interruptable {
+
+    private final Selector selector;
+
+    /**
+     * Tasks to run on this thread before the next select.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Tasks waiting for their deadline, in {@link System#nanoTime()}, so that
+     * steps of the wall clock neither hold them back nor release them early.
+     * Only touched by this thread.
+     */
+    private final PriorityQueue<ScheduledTask> scheduled = new PriorityQueue<>();
+
+    /**
+     * Scratch space for gathering writes. Only touched by this thread.
+     */
+    final ByteBuffer[] gatherBuffers = new ByteBuffer[64];
+
+    private volatile boolean interrupted = false;
+
+    public EventLoop(int index) throws IOException {
+
+        super("EventLoop[" + index + "]");
+
+        selector = Selector.open();
+    }
+
+    /**
+     * Runs a task on this event loop.
+     * @param task The task to run
+     */
+    public void execute(Runnable task) {
+
+        tasks.add(task);
+
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on this event loop after the given delay.
+     * @param task The task to run
+     * @param delayMillis The delay in milliseconds
+     */
+    public void schedule(final Runnable task, final long delayMillis) {
+
+        if (Thread.currentThread() != this) {
+
+            execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    schedule(task, delayMillis);
+                }
+            });
+
+            return;
+        }
+
+        scheduled.add(new ScheduledTask(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), task));
+    }
+
+    /**
+     * Registers the channel of a connection with this loop.
+     * @param connection The connection to register
+     */
+    void register(final Connection connection) {
+
+        connection.setEventLoop(this);
+
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    connection.onRegistered(connection.channel.register(selector, SelectionKey.OP_READ, connection));
+                } catch (ClosedChannelException ex) {
+                    connection.closeNow();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes a connection served by this loop once its pending output has been written.
+     * @param connection The connection to close
+     */
+    void close(final Connection connection) {
+
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                connection.closeWhenFlushed();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+
+        while (!interrupted) {
+
+            try {
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();   // Tasks queued by this loop itself must not wait for I/O
+                } else if (!scheduled.isEmpty()) {
+                    selector.select(millisUntil(scheduled.peek().deadline));
+                } else {
+                    selector.select();
+                }
+            } catch (IOException ex) {
+                SharedData.logger.error(String.format("Select failed in %s", getName()), ex);
+                continue;
+            }
+
+            runTasks();
+            runScheduledTasks();
+
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+
+                SelectionKey key = selected.next();
+                selected.remove();
+
+                Connection connection = (Connection) key.attachment();
+
+                try {
+                    connection.onSelected();
+                } catch (RuntimeException ex) {
+
+                    // A broken handler must not take down every other connection on this loop
+                    SharedData.logger.error(String.format("Unhandled exception while serving %s, closing connection", connection), ex);
+                    connection.closeNow();
+                }
+            }
+        }
+
+        // Give queued output a last chance, then close whatever is left
+        runTasks();
+
+        for (SelectionKey key: selector.keys()) {
+            ((Connection) key.attachment()).closeNow();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            SharedData.logger.warn(String.format("Unable to close selector of %s", getName()), ex);
+        }
+    }
+
+    private void runTasks() {
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                SharedData.logger.error(String.format("Unhandled exception in task on %s", getName()), ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the time to wait for a deadline, rounded up, and at least 1 as
+     * 0 makes the selector wait without a timeout.
+     */
+    private static long millisUntil(long deadline) {
+
+        long nanos = deadline - System.nanoTime();
+        return Math.max(1, (nanos + 999999) / 1000000);
+    }
+
+    private void runScheduledTasks() {
+
+        long now = System.nanoTime();
+
+        while (!scheduled.isEmpty() && scheduled.peek().deadline - now <= 0) {
+
+            try {
+                scheduled.poll().task.run();
+            } catch (RuntimeException ex) {
+                SharedData.logger.error(String.format("Unhandled exception in scheduled task on %s", getName()), ex);
+            }
+        }
+    }
+
+    @Override
+    public void requestInterrupt() {
+
+        interrupted = true;
+        selector.wakeup();
+    }
+
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+
+        private final long deadline;
+        private final Runnable task;
+
+        private ScheduledTask(long deadline, Runnable task) {
+
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+
+            // Compared by difference, as the nano time may overflow
+            long difference = deadline - other.deadline;
+            return (difference < 0) ? -1 : ((difference == 0) ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * The fixed set of event loops that serve all non-blocking connections.
+ * Connections are spread over the loops round-robin.
+ * @author Boreeas
+ */
+public enum EventLoopGroup {
+
+    /**
+     * The group instance.
+     */
+    INSTANCE;
+
+    private volatile EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Starts the event loops. The number of loops is taken from the config,
+     * defaulting to the number of available processors.
+     */
+    public synchronized void start() {
+
+        if (loops != null) {
+            return;
+        }
+
+        int size = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.IO_THREADS));
+        if (size <= 0) {
+            size = Runtime.getRuntime().availableProcessors();
+        }
+
+        EventLoop[] newLoops = new EventLoop[size];
+
+        for (int i = 0; i < size; i++) {
+
+            try {
+                newLoops[i] = new EventLoop(i);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Unable to open selector for event loop", ex);
+            }
+
+            newLoops[i].start();
+        }
+
+        SharedData.logger.info(String.format("Started %s event loops", size));
+        loops = newLoops;
+    }
+
+    /**
+     * Hands a connection to an event loop. Connections set up on an event loop
+     * stay with that loop, others go to the next one.
+     * @param connection The connection to register
+     */
+    public void register(Connection connection) {
+
+        Thread current = Thread.currentThread();
+
+        if (current instanceof EventLoop) {
+            ((EventLoop) current).register(connection);
+        } else {
+            next().register(connection);
+        }
+    }
+
+    /**
+     * Returns the next event loop in turn.
+     * @return The event loop
+     */
+    public EventLoop next() {
+
+        EventLoop[] current = loops;
+
+        if (current == null) {
+            start();
+            current = loops;
+        }
+
+        return current[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+    }
+
+    /**
+     * Stops all event loops. Connections still open are closed.
+     */
+    public synchronized void shutdown() {
+
+        if (loops == null) {
+            return;
+        }
+
+        for (EventLoop loop: loops) {
+            loop.requestInterrupt();
+        }
+
+        loops = null;
+    }
+}
@@ -19,31 +19,36 @@ import java.net.Socket;
 import net.boreeas.frozenircd.config.ConfigData;
 import net.boreeas.frozenircd.config.ConfigKey;
 import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.connection.dns.HostnameResolver;
 
 /**
- *
+ * Looks up the host name of a client. The client is not registered before
+ * the lookup is done or has timed out.
  * @author Boreeas
  */
-public class HostnameDaemon extends Thread {
+public class HostnameDaemon implements HostnameResolver.Listener {
     
     private Client client;
     private Socket socket;
     
     public HostnameDaemon(Client client, Socket socket) {
         
-        super("GetHostname[" + client + "]");
-        
-        setDaemon(true);
-        
         this.client = client;
         this.socket = socket;
     }
     
+    public void start() {
+        
+        client.sendNotice(ConfigData.getFirstConfigOption(ConfigKey.HOST), "AUTH", "*** Looking up your hostname");
+        HostnameResolver.DEFAULT.lookup(socket.getInetAddress(), this);
+    }
+    
     @Override
-    public void run() {
+    public void onLookupComplete(String hostname, boolean resolved) {
 
-        client.sendNotice(ConfigData.getFirstConfigOption(ConfigKey.HOST), "AUTH", "*** Looking up your hostname");
-        client.setHostname(socket.getInetAddress().getCanonicalHostName());
-        client.sendNotice(ConfigData.getFirstConfigOption(ConfigKey.HOST), "AUTH", "*** Found your hostname");
+        client.sendNotice(ConfigData.getFirstConfigOption(ConfigKey.HOST), "AUTH",
+                          (resolved) ? "*** Found your hostname" : "*** Couldn't look up your hostname");
+        client.setHostname(hostname);
+        client.completeRegistration();
     }
 }
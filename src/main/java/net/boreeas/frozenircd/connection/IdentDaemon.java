@@ -15,81 +15,52 @@
  */
 package net.boreeas.frozenircd.connection;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
 import net.boreeas.frozenircd.config.ConfigData;
 import net.boreeas.frozenircd.config.ConfigKey;
 import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.connection.ident.IdentResolver;
+import net.boreeas.frozenircd.utils.SharedData;
 
 /**
- *
+ * Asks the ident service of a client for its user name. The client is not
+ * registered before the answer has arrived or the query has timed out.
  * @author Boreeas
  */
-public class IdentDaemon extends Thread {
+public class IdentDaemon implements IdentResolver.Listener {
     
     private Client client;
     private Socket socket;
     
     public IdentDaemon(Client client, Socket socket) {
         
-        super("IdentHostname[" + client + "]");
-        
-        setDaemon(true);
-        
         this.client = client;
         this.socket = socket;
     }
     
-    @Override
-    public void run() {
-
+    public void start() {
+        
         client.sendNotice(ConfigData.getFirstConfigOption(ConfigKey.HOST), "AUTH", "*** Checking Ident");
-       
-        try {
-            Socket identdSocket = new Socket(socket.getInetAddress(), 113);
-            identdSocket.setSoTimeout(10000);
-
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(identdSocket.getOutputStream()));
-            writer.write(String.format("%s, %s", socket.getPort(), socket.getLocalPort()));
-
-
-            String id = parseIdentResponse(
-                    new BufferedReader(
-                    new InputStreamReader(
-                    identdSocket.getInputStream())).readLine());
-
-            if (id == null || id.length() == 0) {
-                throw new IOException();    // No ident reponse
-            }
-
-            client.setIdentResponseReceived(true);
-            client.setUsername(id);
-
-        }
-        catch (SocketTimeoutException ex) {
-            client.sendNotice(ConfigData.getFirstConfigOption(ConfigKey.HOST), "AUTH", "*** Ident reponse timed out");
-        }
-        catch (IOException ex) {
-            client.sendNotice(ConfigData.getFirstConfigOption(ConfigKey.HOST), "AUTH", "*** No Ident reponse");
-        }
+        IdentResolver.DEFAULT.lookup((InetSocketAddress) socket.getRemoteSocketAddress(),
+                                     (InetSocketAddress) socket.getLocalSocketAddress(), this);
     }
+    
+    @Override
+    public void onIdentComplete(String username) {
 
-    public String parseIdentResponse(String response) {
+        if (username == null) {
+            client.sendNotice(ConfigData.getFirstConfigOption(ConfigKey.HOST), "AUTH", "*** No Ident response");
+        } else {
 
-        String[] fields = response.split(" ?: ?");
-        if (fields.length < 4) {
-            return null;
-        }
+            client.sendNotice(ConfigData.getFirstConfigOption(ConfigKey.HOST), "AUTH", "*** Got Ident response");
 
-        if (!fields[1].equalsIgnoreCase("USERID")) {
-            return null;
+            if (username.length() > SharedData.maxNickLength) {
+                username = username.substring(0, SharedData.maxNickLength);
+            }
         }
 
-        return response.trim();
+        client.setIdentResponse(username);
+        client.completeRegistration();
     }
 }
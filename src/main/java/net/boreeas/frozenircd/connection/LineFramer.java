@@ -0,0 +1,379 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Splits raw input into lines. Bytes are read into a fixed buffer and scanned
+ * for the line terminator directly, nothing is decoded here. A line ends with
+ * <code>CR</code>, <code>LF</code> or <code>CRLF</code>. Lines longer than
+ * the limit are skipped up to their terminator without ever being buffered
+ * as a whole.
+ * <p>
+ * Not thread safe, a framer belongs to the thread that reads the connection.
+ * @author Boreeas
+ */
+public class LineFramer {
+
+    /**
+     * The result of {@link #next()}.
+     */
+    public enum Result {
+
+        /**
+         * A line is available via {@link #array()}, {@link #lineStart()} and {@link #lineLength()}.
+         */
+        LINE,
+
+        /**
+         * A line was too long and has been dropped.
+         */
+        OVERSIZE,
+
+        /**
+         * No complete line is buffered, more input is needed.
+         */
+        NEED_INPUT
+    }
+
+    private byte[] buffer;
+    private ByteBuffer wrapper;
+
+    private final int maxLine;
+    private final int maxTags;
+
+    /**
+     * The start of the unprocessed input.
+     */
+    private int start = 0;
+
+    /**
+     * The end of the buffered input.
+     */
+    private int end = 0;
+
+    /**
+     * Where the search for the next terminator resumes.
+     */
+    private int scan = 0;
+
+    /**
+     * Set while the rest of an oversize line is being skipped.
+     */
+    private boolean skipping = false;
+
+    /**
+     * Set if the last line ended with a <code>CR</code> at the end of the
+     * buffered input, so that the <code>LF</code> of a <code>CRLF</code> that
+     * arrives with the next read doesn't end an empty line.
+     */
+    private boolean skipLf = false;
+
+    private int lineStart;
+    private int lineLength;
+
+    /**
+     * Creates a new framer.
+     * @param maxLine The maximum length of a line in bytes, including the line terminator
+     * @param maxTags The number of bytes a leading tag section (starting with <code>@</code>) may add to the line
+     * @param bufferSize The size of the read buffer, at least <code>maxLine + maxTags</code>
+     */
+    public LineFramer(int maxLine, int maxTags, int bufferSize) {
+
+        if (bufferSize < maxLine + maxTags) {
+            throw new IllegalArgumentException("Buffer too small for a single line: " + bufferSize);
+        }
+
+        this.maxLine = maxLine;
+        this.maxTags = maxTags;
+        this.buffer = new byte[bufferSize];
+        this.wrapper = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Reads from a channel into the free part of the buffer.
+     * @param channel The channel to read from
+     * @return The number of bytes read, or <code>-1</code> at the end of the stream
+     * @throws IOException If reading failed
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+
+        makeRoom();
+
+        wrapper.limit(buffer.length);
+        wrapper.position(end);
+
+        int read = channel.read(wrapper);
+        if (read > 0) {
+            end += read;
+        }
+
+        return read;
+    }
+
+    /**
+     * Reads from a stream into the free part of the buffer. Blocks until input is available.
+     * @param stream The stream to read from
+     * @return The number of bytes read, or <code>-1</code> at the end of the stream
+     * @throws IOException If reading failed
+     */
+    public int readFrom(InputStream stream) throws IOException {
+
+        makeRoom();
+
+        int read = stream.read(buffer, end, buffer.length - end);
+        if (read > 0) {
+            end += read;
+        }
+
+        return read;
+    }
+
+    /**
+     * Tells whether buffered input may contain another line.
+     * @return <code>true</code> if there is unprocessed input
+     */
+    public boolean hasBufferedInput() {
+
+        return scan < end;
+    }
+
+    /**
+     * Tells whether the buffer has space left for another read.
+     * @return <code>true</code> if a read can store input
+     */
+    public boolean hasRoom() {
+
+        makeRoom();
+        return end < buffer.length;
+    }
+
+    /**
+     * Doubles the buffer, up to the given size. Used to hold input that arrives
+     * while lines are not being taken out.
+     * @param maxSize The largest size the buffer may have
+     * @return <code>true</code> if the buffer has grown
+     */
+    public boolean grow(int maxSize) {
+
+        if (buffer.length >= maxSize) {
+            return false;
+        }
+
+        resize((int) Math.min(maxSize, buffer.length * 2L));
+        return true;
+    }
+
+    /**
+     * Shrinks the buffer back to the given size if the buffered input fits.
+     * @param size The size to shrink to
+     */
+    public void shrink(int size) {
+
+        if (buffer.length <= size || end - start > size) {
+            return;
+        }
+
+        makeRoom();
+        resize(size);
+    }
+
+    /**
+     * Takes all buffered input that has not been taken out as lines, for
+     * input that continues in another format.
+     * @return The unprocessed bytes
+     */
+    public byte[] drain() {
+
+        skipPendingLf();
+
+        byte[] rest = Arrays.copyOfRange(buffer, start, end);
+
+        start = end = scan = 0;
+        skipping = false;
+        skipLf = false;
+
+        return rest;
+    }
+
+    /**
+     * Returns the number of bytes buffered but not yet taken out as lines.
+     * @return The number of bytes
+     */
+    public int buffered() {
+        return end - start;
+    }
+
+    /**
+     * Returns the current size of the buffer.
+     * @return The size in bytes
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Looks for the next line in the buffered input. The line terminator is
+     * not part of the line.
+     * @return The result
+     */
+    public Result next() {
+
+        skipPendingLf();
+
+        for (int i = scan; i < end; i++) {
+
+            if (buffer[i] != '\n' && buffer[i] != '\r') {
+                continue;
+            }
+
+            int lineEnd = i;
+            scan = i + 1;
+
+            if (buffer[i] == '\r') {
+
+                if (scan == end) {
+                    skipLf = true;      // The LF may still be on its way
+                } else if (buffer[scan] == '\n') {
+                    scan++;
+                }
+            }
+
+            if (skipping) {
+
+                // The tail of an oversize line - already reported
+                skipping = false;
+                start = scan;
+                i = start - 1;
+                continue;
+            }
+
+            lineStart = start;
+            start = scan;
+
+            if (scan - lineStart > limitFor(lineStart)) {
+                return Result.OVERSIZE;
+            }
+
+            lineLength = lineEnd - lineStart;
+            return Result.LINE;
+        }
+
+        scan = end;
+
+        if (skipping) {
+
+            // Drop everything, we are looking for the terminator only
+            start = end = scan = 0;
+        } else if (end - start >= limitFor(start)) {
+
+            // No terminator within the limit - drop what we have and skip the rest
+            skipping = true;
+            start = end = scan = 0;
+            return Result.OVERSIZE;
+        }
+
+        return Result.NEED_INPUT;
+    }
+
+    /**
+     * Makes the last line returned by {@link #next()} the next one again.
+     */
+    public void pushBack() {
+
+        start = lineStart;
+        scan = lineStart;
+        skipLf = false;     // Set again when the line is found again
+    }
+
+    /**
+     * Returns the buffer that holds the current line.
+     * @return The buffer, only valid until the next read
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int lineStart() {
+        return lineStart;
+    }
+
+    public int lineLength() {
+        return lineLength;
+    }
+
+    /**
+     * Drops the <code>LF</code> of a <code>CRLF</code> whose <code>CR</code>
+     * ended the last line, see {@link #skipLf}.
+     */
+    private void skipPendingLf() {
+
+        if (!skipLf || start == end) {
+            return;
+        }
+
+        skipLf = false;
+
+        if (buffer[start] == '\n') {
+            start++;
+            scan = start;
+        }
+    }
+
+    private int limitFor(int position) {
+
+        if (maxTags > 0 && position < end && buffer[position] == '@') {
+            return maxLine + maxTags;
+        }
+
+        return maxLine;
+    }
+
+    private void resize(int size) {
+
+        byte[] resized = new byte[size];
+        System.arraycopy(buffer, start, resized, 0, end - start);
+
+        end -= start;
+        scan -= start;
+        lineStart -= start;
+        start = 0;
+
+        buffer = resized;
+        wrapper = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Moves unprocessed input to the front of the buffer.
+     */
+    private void makeRoom() {
+
+        if (start == 0) {
+            return;
+        }
+
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+
+        end -= start;
+        scan -= start;
+        start = 0;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import net.boreeas.frozenircd.utils.TimingWheel;
+
+/**
+ * Collects the connections that received output while the current thread
+ * handles a command, so that each of them is flushed once at the end of the
+ * command instead of once per line.
+ * @author Boreeas
+ */
+final class OutputBatch {
+
+    private static final ThreadLocal<OutputBatch> CURRENT = new ThreadLocal<OutputBatch>() {
+
+        @Override
+        protected OutputBatch initialValue() {
+            return new OutputBatch();
+        }
+    };
+
+    private final Set<Connection> dirty = Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
+    private final List<Connection> flushing = new ArrayList<>();
+
+    private int depth = 0;
+    private long started;
+
+    private OutputBatch() {}
+
+    /**
+     * Starts a batch on the current thread. Batches nest, only the outermost
+     * one flushes.
+     */
+    static void begin() {
+
+        OutputBatch batch = CURRENT.get();
+
+        if (batch.depth++ == 0) {
+            batch.started = TimingWheel.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Ends a batch on the current thread, flushing every connection that
+     * received output during the batch.
+     */
+    static void end() {
+
+        OutputBatch batch = CURRENT.get();
+
+        if (--batch.depth > 0) {
+            return;
+        }
+
+        // Flushing may queue more output (e.g. a disconnect), copy first
+        batch.flushing.addAll(batch.dirty);
+        batch.dirty.clear();
+
+        for (Connection connection: batch.flushing) {
+            connection.flush();
+        }
+
+        batch.flushing.clear();
+    }
+
+    /**
+     * Returns the batch running on the current thread.
+     * @return The batch, or <code>null</code> if the current thread is not in a batch
+     */
+    static OutputBatch current() {
+
+        OutputBatch batch = CURRENT.get();
+        return (batch.depth > 0) ? batch : null;
+    }
+
+    /**
+     * Marks a connection to be flushed at the end of the batch.
+     * @param connection The connection
+     */
+    void add(Connection connection) {
+
+        dirty.add(connection);
+    }
+
+    /**
+     * Returns the time since the batch started.
+     * @return The age of the batch in milliseconds
+     */
+    long age() {
+
+        return TimingWheel.currentTimeMillis() - started;
+    }
+}
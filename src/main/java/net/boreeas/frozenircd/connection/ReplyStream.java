@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+/**
+ * A long reply that is sent a part at a time, as the output queue of the
+ * connection drains. See {@link Connection#stream(ReplyStream)}.
+ * @author Boreeas
+ */
+public interface ReplyStream {
+
+    /**
+     * Sends the next part of the reply. A part should be small, e.g. a few
+     * dozen lines, and must not block.
+     * @return <code>false</code> if the reply is complete
+     */
+    boolean sendNext();
+}
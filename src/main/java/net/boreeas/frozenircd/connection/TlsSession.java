@@ -0,0 +1,491 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.utils.Metrics;
+import net.boreeas.frozenircd.utils.Threads;
+
+/**
+ * TLS for a connection served by an event loop. The handshake is driven by
+ * selector events like any other I/O of the connection; only the delegated
+ * tasks of the engine (key exchange, certificate checks) run on a small
+ * shared pool, so that expensive handshakes never hold up the event loop.
+ * <p>
+ * Reads return decrypted input and writes take plain output, so the session
+ * stands in for the socket channel once the handshake is done. Apart from
+ * the delegated tasks, a session is only touched by the event loop of its
+ * connection.
+ * @author Boreeas
+ */
+final class TlsSession implements ByteChannel, GatheringByteChannel {
+
+    private static final int HANDSHAKE_THREADS = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.TLS_HANDSHAKE_THREADS));
+    private static final int HANDSHAKE_QUEUE = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.TLS_HANDSHAKE_QUEUE));
+
+    /**
+     * Runs the delegated tasks of all handshakes. Handshakes that don't fit
+     * into the queue fail instead of piling up.
+     */
+    private static final ThreadPoolExecutor HANDSHAKE_WORKERS = new ThreadPoolExecutor(
+            HANDSHAKE_THREADS, HANDSHAKE_THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(HANDSHAKE_QUEUE), Threads.factory("TlsHandshake", true));
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+
+    /*
+     * All buffers are kept ready for reading: encrypted input that has not
+     * been unwrapped yet, encrypted output that has not been written yet, and
+     * decrypted input that has not been read yet.
+     */
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+
+    private final long started = System.nanoTime();
+    private boolean handshakeDone = false;
+    private boolean established = false;
+    private boolean taskRunning = false;
+    private boolean endOfStream = false;
+
+    /**
+     * Starts the server side of a TLS session, using the default SSL context
+     * (configured by the <code>javax.net.ssl.*</code> system properties).
+     * @param channel The channel to run the session on
+     * @throws IOException If the SSL context is not available
+     */
+    TlsSession(SocketChannel channel) throws IOException {
+
+        this.channel = channel;
+
+        try {
+            engine = SSLContext.getDefault().createSSLEngine();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("Unable to create SSL context", ex);
+        }
+
+        engine.setUseClientMode(false);
+
+        netIn = emptyBuffer(engine.getSession().getPacketBufferSize());
+        netOut = emptyBuffer(engine.getSession().getPacketBufferSize());
+        appIn = emptyBuffer(engine.getSession().getApplicationBufferSize());
+
+        engine.beginHandshake();
+    }
+
+    /**
+     * Tells whether application data can be exchanged. This is not the case
+     * before the first handshake is done, nor while a later one runs.
+     * @return <code>true</code> if the session is established
+     */
+    boolean isEstablished() {
+
+        return established;
+    }
+
+    /**
+     * Tells whether a delegated task of the handshake is running.
+     * @return <code>true</code> if the handshake waits for its worker
+     */
+    boolean isRunningTask() {
+
+        return taskRunning;
+    }
+
+    /**
+     * Tells whether encrypted output waits for the channel to become writable.
+     * @return <code>true</code> if there is pending output
+     */
+    boolean hasPendingOutput() {
+
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * Tells whether input has been taken from the channel that has not been read yet.
+     * @return <code>true</code> if there is buffered input
+     */
+    boolean hasBufferedInput() {
+
+        return appIn.hasRemaining() || netIn.hasRemaining();
+    }
+
+    /**
+     * Advances the handshake as far as possible without blocking.
+     * @param loop The event loop of the connection
+     * @param resume Run on the event loop after a delegated task has finished
+     * @return <code>true</code> if the handshake is done
+     * @throws IOException If the handshake failed, or could not be started on the worker pool
+     */
+    boolean handshake(EventLoop loop, Runnable resume) throws IOException {
+
+        if (taskRunning) {
+            return false;
+        }
+
+        while (flush()) {
+
+            switch (engine.getHandshakeStatus()) {
+
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                    if (!unwrapHandshake()) {
+                        return false;   // Wait for the peer
+                    }
+                    break;
+                case NEED_TASK:
+                    runDelegatedTasks(loop, resume);
+                    return false;
+                default:
+
+                    if (!handshakeDone) {
+
+                        handshakeDone = true;
+                        Metrics.TLS_HANDSHAKE_MILLIS.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                    }
+
+                    established = true;
+                    return true;
+            }
+        }
+
+        return false;   // Wait for the channel to take the output
+    }
+
+    /**
+     * Unwraps a handshake message, reading from the channel if needed.
+     * @return <code>false</code> if the channel has no more input yet
+     */
+    private boolean unwrapHandshake() throws IOException {
+
+        SSLEngineResult result = unwrap();
+
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new SSLException("Peer closed the session during the handshake");
+        }
+
+        if (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+            return true;
+        }
+
+        int read = readNet();
+
+        if (read < 0) {
+            throw new EOFException("Connection closed during the handshake");
+        }
+
+        return read > 0;
+    }
+
+    private void runDelegatedTasks(final EventLoop loop, final Runnable resume) throws SSLException {
+
+        final long queued = System.nanoTime();
+        taskRunning = true;
+
+        try {
+            HANDSHAKE_WORKERS.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                    } finally {
+
+                        loop.execute(new Runnable() {
+
+                            @Override
+                            public void run() {
+
+                                taskRunning = false;
+                                resume.run();
+                            }
+                        });
+
+                        Metrics.TLS_HANDSHAKE_TASK_MILLIS.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+
+            taskRunning = false;
+            throw new SSLException("Too many handshakes in progress");
+        }
+    }
+
+    /**
+     * Reads decrypted input.
+     * @param dst The buffer to read into
+     * @return The number of bytes read, or <code>-1</code> at the end of the stream
+     * @throws IOException If reading or decrypting failed
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+
+        if (!appIn.hasRemaining()) {
+            fill();
+        }
+
+        if (!appIn.hasRemaining()) {
+            return endOfStream ? -1 : 0;
+        }
+
+        int count = Math.min(dst.remaining(), appIn.remaining());
+        int limit = appIn.limit();
+
+        appIn.limit(appIn.position() + count);
+        dst.put(appIn);
+        appIn.limit(limit);
+
+        return count;
+    }
+
+    /**
+     * Unwraps records until there is decrypted input, the channel has no more
+     * data, or the peer starts a new handshake.
+     */
+    private void fill() throws IOException {
+
+        while (established && !endOfStream && !appIn.hasRemaining()) {
+
+            SSLEngineResult result = unwrap();
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+
+                endOfStream = true;
+                return;
+            }
+
+            SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+            if (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                    && status != SSLEngineResult.HandshakeStatus.FINISHED) {
+
+                // Renegotiation or a post-handshake message - handled like the handshake
+                established = false;
+                return;
+            }
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                    || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+
+                int read = readNet();
+
+                if (read < 0) {
+                    endOfStream = true;
+                } else if (read == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts and writes as much output as the channel takes. Output that has
+     * been encrypted but not written yet is kept, see {@link #hasPendingOutput()}.
+     * @return The number of plain bytes consumed from the buffers
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+
+        if (!established || !flush()) {
+            return 0;
+        }
+
+        long consumed = 0;
+
+        while (remaining(srcs, offset, length)) {
+
+            SSLEngineResult result = wrap(srcs, offset, length);
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("Session closed");
+            }
+
+            consumed += result.bytesConsumed();
+
+            if (!flush() || result.bytesConsumed() == 0) {
+                break;
+            }
+        }
+
+        return consumed;
+    }
+
+    /**
+     * Writes pending encrypted output.
+     * @return <code>true</code> if nothing is pending anymore
+     * @throws IOException If writing to the channel failed
+     */
+    boolean flush() throws IOException {
+
+        while (netOut.hasRemaining()) {
+
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends a close_notify, or the alert of a failed handshake, if the channel
+     * takes it right away. Does not close the channel.
+     */
+    @Override
+    public void close() {
+
+        engine.closeOutbound();
+
+        if (taskRunning || hasPendingOutput()) {
+            return;
+        }
+
+        try {
+            wrap(EMPTY);
+            flush();
+        } catch (IOException ex) {
+            // The connection is closed anyways
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer... srcs) throws SSLException {
+
+        return wrap(srcs, 0, srcs.length);
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+
+        netOut.compact();
+        try {
+            return engine.wrap(srcs, offset, length, netOut);
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    private SSLEngineResult unwrap() throws SSLException {
+
+        while (true) {
+
+            appIn.compact();
+
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                appIn.flip();
+            }
+
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                return result;
+            }
+
+            appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+        }
+    }
+
+    /**
+     * Reads encrypted input from the channel.
+     * @return The number of bytes read, or <code>-1</code> at the end of the stream
+     */
+    private int readNet() throws IOException {
+
+        if (netIn.remaining() == netIn.capacity()) {
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+        }
+
+        netIn.compact();
+        try {
+            return channel.read(netIn);
+        } finally {
+            netIn.flip();
+        }
+    }
+
+    private static boolean remaining(ByteBuffer[] buffers, int offset, int length) {
+
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns a larger copy of a buffer that is ready for reading.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int by) {
+
+        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + by);
+        larger.put(buffer);
+        larger.flip();
+
+        return larger;
+    }
+
+    private static ByteBuffer emptyBuffer(int capacity) {
+
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.limit(0);
+
+        return buffer;
+    }
+}
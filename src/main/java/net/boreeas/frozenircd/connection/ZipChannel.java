@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming DEFLATE on top of the channel of a connection (ziplinks). Each
+ * direction is switched on on its own, at the point in the stream both
+ * sides agreed on; until then, the connection uses the underlying channel
+ * directly.
+ * <p>
+ * Output is compressed as it is written, and the compressor is flushed at
+ * the end of every write, so that a batch of queued lines goes out as soon
+ * as it is written, without waiting for more output to fill a block.
+ * Compressed output the underlying channel doesn't take is kept until
+ * {@link #flush()} gets it out; no new output is taken before that.
+ * <p>
+ * Reads and writes may happen on different threads, but each direction
+ * belongs to one thread at a time.
+ * @author Boreeas
+ */
+final class ZipChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final int BUFFER_SIZE = 16384;
+
+    private final ReadableByteChannel source;
+    private final WritableByteChannel sink;
+
+    private Inflater inflater;
+    private byte[] compressedInput;
+    private ByteBuffer compressedInputWrapper;
+
+    private Deflater deflater;
+    private boolean unflushed = false;
+    private byte[] scratch;
+
+    /**
+     * Compressed output that has not been written yet, from <code>pendingStart</code> to <code>pendingEnd</code>.
+     */
+    private byte[] pending;
+    private ByteBuffer pendingWrapper;
+    private int pendingStart = 0;
+    private int pendingEnd = 0;
+
+    private volatile long plainIn = 0;
+    private volatile long compressedIn = 0;
+    private volatile long plainOut = 0;
+    private volatile long compressedOut = 0;
+
+    /**
+     * Creates a channel that doesn't compress anything yet.
+     * @param source The channel compressed input is read from
+     * @param sink The channel compressed output is written to
+     */
+    ZipChannel(ReadableByteChannel source, WritableByteChannel sink) {
+
+        this.source = source;
+        this.sink = sink;
+    }
+
+    /**
+     * Decompresses all input from now on.
+     * @param buffered Compressed input that has already been taken from the underlying channel
+     */
+    void startInflating(byte[] buffered) {
+
+        inflater = new Inflater();
+        compressedInput = new byte[BUFFER_SIZE];
+        compressedInputWrapper = ByteBuffer.wrap(compressedInput);
+
+        if (buffered.length > 0) {
+
+            inflater.setInput(buffered);
+            compressedIn += buffered.length;
+        }
+    }
+
+    /**
+     * Compresses all output from now on.
+     * @param level The compression level, from 1 (fastest) to 9 (best)
+     */
+    void startDeflating(int level) {
+
+        deflater = new Deflater(level);
+        pending = new byte[BUFFER_SIZE];
+        pendingWrapper = ByteBuffer.wrap(pending);
+    }
+
+    boolean isInflating() {
+        return inflater != null;
+    }
+
+    boolean isDeflating() {
+        return deflater != null;
+    }
+
+    /**
+     * Tells whether input has been taken from the underlying channel but not decompressed yet.
+     * The underlying channel will not signal this input anymore.
+     * @return <code>true</code> if there is buffered input
+     */
+    boolean hasBufferedInput() {
+
+        return inflater != null && !inflater.needsInput();
+    }
+
+    /**
+     * Reads decompressed input. Once some input has been decompressed, the
+     * underlying channel is not read again, so that a blocking read doesn't
+     * hold back lines that are already complete.
+     * @param dst The buffer to read into, must be backed by an array
+     * @return The number of bytes read, or <code>-1</code> at the end of the stream
+     * @throws IOException If reading failed, or the input is not a valid compressed stream
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+
+        int total = 0;
+
+        try {
+            while (dst.hasRemaining()) {
+
+                if (inflater.needsInput()) {
+
+                    if (total > 0) {
+                        break;
+                    }
+
+                    compressedInputWrapper.clear();
+                    int read = source.read(compressedInputWrapper);
+
+                    if (read <= 0) {
+                        return read;
+                    }
+
+                    compressedIn += read;
+                    inflater.setInput(compressedInput, 0, read);
+                }
+
+                int inflated = inflater.inflate(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+
+                if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed stream ended");
+                }
+
+                dst.position(dst.position() + inflated);
+                total += inflated;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Invalid compressed input", ex);
+        }
+
+        plainIn += total;
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Compresses the given buffers and writes them out with one flush of the
+     * compressor. Nothing is taken while earlier output is still pending.
+     * @return The number of uncompressed bytes taken, all or nothing
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+
+        if (!writePending()) {
+            return 0;
+        }
+
+        long taken = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+
+            taken += srcs[i].remaining();
+            compress(srcs[i]);
+        }
+
+        flush();
+        return taken;
+    }
+
+    /**
+     * Compresses a buffer without flushing the compressor.
+     * @param src The buffer, which is used up
+     */
+    void compress(ByteBuffer src) {
+
+        int size = src.remaining();
+        if (size == 0) {
+            return;
+        }
+
+        if (src.hasArray()) {
+
+            deflater.setInput(src.array(), src.arrayOffset() + src.position(), size);
+            deflate(Deflater.NO_FLUSH);
+            src.position(src.limit());
+        } else {
+
+            // Shared read-only views don't expose their array
+            if (scratch == null) {
+                scratch = new byte[BUFFER_SIZE];
+            }
+
+            while (src.hasRemaining()) {
+
+                int chunk = Math.min(src.remaining(), scratch.length);
+                src.get(scratch, 0, chunk);
+
+                deflater.setInput(scratch, 0, chunk);
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        plainOut += size;
+        unflushed = true;
+    }
+
+    /**
+     * Flushes the compressor and writes out as much compressed output as the underlying channel takes.
+     * @return <code>true</code> if all compressed output has been written
+     * @throws IOException If writing failed
+     */
+    boolean flush() throws IOException {
+
+        if (unflushed) {
+
+            deflate(Deflater.SYNC_FLUSH);
+            unflushed = false;
+        }
+
+        return writePending();
+    }
+
+    private void deflate(int mode) {
+
+        while (true) {
+
+            if (pendingEnd == pending.length) {
+                makeRoom();
+            }
+
+            int space = pending.length - pendingEnd;
+            int deflated = deflater.deflate(pending, pendingEnd, space, mode);
+
+            pendingEnd += deflated;
+            compressedOut += deflated;
+
+            if ((mode == Deflater.NO_FLUSH) ? deflater.needsInput() : deflated < space) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves pending output to the front of the buffer, and doubles the buffer if that doesn't free anything.
+     */
+    private void makeRoom() {
+
+        byte[] target = (pendingStart == 0) ? new byte[pending.length * 2] : pending;
+        System.arraycopy(pending, pendingStart, target, 0, pendingEnd - pendingStart);
+
+        pendingEnd -= pendingStart;
+        pendingStart = 0;
+
+        if (target != pending) {
+
+            pending = target;
+            pendingWrapper = ByteBuffer.wrap(pending);
+        }
+    }
+
+    private boolean writePending() throws IOException {
+
+        while (pendingStart < pendingEnd) {
+
+            pendingWrapper.limit(pendingEnd);
+            pendingWrapper.position(pendingStart);
+
+            int written = sink.write(pendingWrapper);
+            if (written <= 0) {
+                return false;
+            }
+
+            pendingStart += written;
+        }
+
+        pendingStart = pendingEnd = 0;
+        return true;
+    }
+
+    /**
+     * Describes how well both directions compress.
+     * @return The summary
+     */
+    String summary() {
+
+        return String.format("in %s -> %s bytes (%s), out %s -> %s bytes (%s)",
+                             compressedIn, plainIn, ratio(plainIn, compressedIn),
+                             plainOut, compressedOut, ratio(plainOut, compressedOut));
+    }
+
+    private static String ratio(long plain, long compressed) {
+
+        return (compressed == 0) ? "-" : String.format("%.2f:1", (double) plain / compressed);
+    }
+
+    @Override
+    public boolean isOpen() {
+
+        return sink.isOpen();
+    }
+
+    /**
+     * Does nothing, the underlying channel is closed by the connection.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -15,27 +15,37 @@
  */
 package net.boreeas.frozenircd.connection.client;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import net.boreeas.frozenircd.Channel;
-import net.boreeas.frozenircd.ChannelPool;
 import net.boreeas.frozenircd.Flagable;
+import net.boreeas.frozenircd.Membership;
+import net.boreeas.frozenircd.command.CommandCosts;
 import net.boreeas.frozenircd.command.Mode;
+import net.boreeas.frozenircd.command.ParsedMessage;
 import net.boreeas.frozenircd.config.ConfigData;
 import net.boreeas.frozenircd.config.ConfigKey;
 import net.boreeas.frozenircd.command.Reply;
 import net.boreeas.frozenircd.utils.Filter;
+import net.boreeas.frozenircd.utils.NameKey;
 import net.boreeas.frozenircd.utils.SharedData;
 import net.boreeas.frozenircd.connection.Connection;
+import net.boreeas.frozenircd.connection.ConnectionClass;
+import net.boreeas.frozenircd.connection.ConnectionPool;
+import net.boreeas.frozenircd.connection.EncodedLine;
+import net.boreeas.frozenircd.connection.server.ServerProtocol;
 import net.boreeas.frozenircd.utils.StringUtils;
+import net.boreeas.frozenircd.utils.TimingWheel;
 
 /**
  *
@@ -43,9 +53,15 @@ import net.boreeas.frozenircd.utils.StringUtils;
  */
 public class Client extends Connection implements Flagable {
 
+    private static final int SENDQ = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.SENDQ_CLIENT));
+    private static final long REGISTRATION_TIMEOUT_MILLIS
+            = TimeUnit.SECONDS.toMillis(Long.parseLong(ConfigData.getFirstConfigOption(ConfigKey.CONNECT_TIMEOUT)));
+
     private boolean ssl;
 
-    private boolean identdResponse = false;
+    private volatile boolean identdResponse = false;
+    private volatile boolean identDone = false;
+    private volatile TimingWheel.Timeout registrationTimeout;
     private boolean nickGiven = false;
     private boolean userGiven = false;
     private boolean passGiven = false;
@@ -56,9 +72,31 @@ public class Client extends Connection implements Flagable {
     private String username;
     private String realname;
     private String nickname;
-    private String hostname;
+    private volatile String hostname;
+    private volatile String identUsername;
+
+    /**
+     * The channels this user is in, by the key of the channel.
+     */
+    private final ConcurrentMap<NameKey, Membership> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * The reason this client is disconnected for, told to its channels and the linked servers.
+     */
+    private volatile String quitMessage = "Connection closed";
 
-    private Set<String> channels = new HashSet<>();
+    /**
+     * The message currently being handled, reused for every line.
+     */
+    private final ParsedMessage message = new ParsedMessage();
+
+    /**
+     * Where the line in {@link #message} was parsed from to find its cost, so
+     * that it isn't parsed again when it is handled. <code>null</code> if
+     * the next line needs to be parsed.
+     */
+    private byte[] parsedLine;
+    private int parsedOffset;
 
 
     public Client(Socket socket, boolean ssl) throws IOException {
@@ -66,13 +104,23 @@ public class Client extends Connection implements Flagable {
         SharedData.logger.info(String.format("Client from %s attached", socket));
 
 
-        this.socket = socket;
+        attach(socket);
         socket.setSoTimeout(1000);
         this.ssl = ssl;
+    }
+
+    public Client(SocketChannel channel, boolean ssl) throws IOException {
 
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        SharedData.logger.info(String.format("Client from %s attached", channel.socket()));
 
+        attach(channel, ssl);
+        this.ssl = ssl;
+    }
+
+    /**
+     * Creates a client that is not attached to anything, for users on other servers.
+     */
+    protected Client() {
     }
 
 
@@ -84,20 +132,18 @@ public class Client extends Connection implements Flagable {
      */
     public void send(String line) {
 
-        try {
-
-            SharedData.logger.debug("[← " + this + "] " + line);
-            writer.write(String.format("%s\r\n", line));
-            writer.flush();
-        } catch (IOException ioe) {
+        SharedData.logger.debug("[← " + this + "] " + line);
+        write(line);
+    }
 
-            if (closed) {
-                return;
-            }
+    @Override
+    public void send(EncodedLine line) {
 
-            SharedData.logger.error(String.format("Could not write to %s, closing connection", socket.getInetAddress()), ioe);
-            disconnect(ioe.getMessage());
+        if (SharedData.logger.isDebugEnabled()) {
+            SharedData.logger.debug("[← " + this + "] " + line);
         }
+
+        super.send(line);
     }
 
     /**
@@ -186,10 +232,28 @@ public class Client extends Connection implements Flagable {
 
     public boolean registrationCompleted() {
 
-        return nickGiven && userGiven
+        return nickGiven && userGiven && hostname != null && identDone
                 && ((ConfigData.getFirstConfigOption(ConfigKey.USING_PASS).equalsIgnoreCase("true")) ? passGiven : true);
     }
 
+    /**
+     * Welcomes the client if it has just completed its registration. Called
+     * by the command handlers and when the host name and ident lookups are
+     * done, on whichever thread comes last. Does nothing once the client has
+     * disconnected, as a lookup may only finish after that.
+     */
+    public synchronized void completeRegistration() {
+
+        if (!welcomeSent && !isClosed() && registrationCompleted()) {
+
+            if (identdResponse) {
+                username = identUsername;   // Takes precedence over the name given with USER
+            }
+
+            onRegistrationComplete();
+        }
+    }
+
     public boolean rplWelcomeSent() {
 
         return welcomeSent;
@@ -225,22 +289,38 @@ public class Client extends Connection implements Flagable {
 
     public String getDisplayHostmask() {
 
-        String hostMaskPrefix = nickname + "!";
-        if (!receivedIdentResponse()) {
-            hostMaskPrefix += '~';
-        }
+        return nickname + "!" + getDisplayUsername() + "@" + hostname;
+    }
 
-        return hostMaskPrefix + username + "@" + hostname;
+    /**
+     * Returns the username the way it is shown to others, with a <code>~</code>
+     * in front if it wasn't confirmed by ident.
+     * @return The username
+     */
+    public String getDisplayUsername() {
+
+        return receivedIdentResponse() ? username : "~" + username;
     }
 
     /**
-     * Sets the nickname of this user to <code>nickname</code>.
+     * Sets the nickname of this user to <code>nickname</code>, releasing the old
+     * nickname in the index of nicknames. The new nickname must have been
+     * reserved with {@link ConnectionPool#reserveNickname(Client, String)} if
+     * the user is to be found by it.
      * @param nickname The new nickname
      */
     public void setNickname(String nickname) {
 
+        String oldNickname = this.nickname;
+
         this.nickname = SharedData.cleanString(nickname);
         nickGiven = true;
+
+        if (oldNickname != null && !SharedData.caseMapping.equals(oldNickname, this.nickname)) {
+            ConnectionPool.releaseNickname(this, oldNickname);
+        }
+
+        hostmaskChanged();
     }
 
     /**
@@ -266,21 +346,47 @@ public class Client extends Connection implements Flagable {
      * @param hostname The host name
      */
     public void setHostname(String hostname) {
+
         this.hostname = SharedData.cleanString(hostname);
+        hostmaskChanged();
     }
 
     /**
-     * Toggles the flag that marks if this user replied to the ident request.
-     * @param flag Marks if the user replied or not.
+     * Makes the channels match their masks against the new hostmask.
      */
-    public void setIdentResponseReceived(boolean flag) {
-        this.identdResponse = flag;
+    private void hostmaskChanged() {
+
+        for (Membership membership: memberships.values()) {
+            membership.hostmaskChanged();
+        }
+    }
+
+    /**
+     * Sets the result of the ident request for this user. The user is not
+     * registered before this has been called.
+     * @param username The user name the ident service replied with, or <code>null</code> if there was no reply
+     */
+    public void setIdentResponse(String username) {
+
+        if (username != null) {
+
+            this.identUsername = SharedData.cleanString(username);
+            this.identdResponse = true;
+        }
+
+        identDone = true;
     }
 
     public void setPassGiven(boolean flag) {
         this.passGiven = true;
     }
 
+    @Override
+    protected int getSendQueueLimit() {
+
+        return SENDQ;
+    }
+
     @Override
     public String getCommonName() {
         return getSafeNickname();
@@ -292,48 +398,92 @@ public class Client extends Connection implements Flagable {
     @Override
     public void onInput(String input) {
 
-        SharedData.logger.debug(String.format("[→ " + this + "] " + input));
+        byte[] line = input.getBytes(SharedData.CHARSET);
+        onInput(line, 0, line.length);
+    }
 
+    @Override
+    protected int inputCost(byte[] line, int offset, int length) {
 
-        String[] fields = input.split(" ", 2);
-        String[] args;
+        if (!message.parse(line, offset, length)) {
+            return 0;   // Empty line
+        }
 
-        if (fields.length >= 2 && fields[1].trim().startsWith(":")) {
-            args = new String[] { fields[1].trim().substring(1) };
-        } else {
+        parsedLine = line;
+        parsedOffset = offset;
+        return CommandCosts.cost(message);
+    }
 
-            String[] toLastArg = new String[0];
+    @Override
+    protected void onInput(byte[] line, int offset, int length) {
 
-            if (fields.length > 1) {
+        // A line that was held back may have been moved since its cost was taken
+        boolean parsed = (parsedLine == line && parsedOffset == offset);
+        parsedLine = null;
 
-                toLastArg = fields[1].split(":", 2);    // Split off the last arg (prefixed with ':')
+        if (!parsed && !message.parse(line, offset, length)) {
+            return; // Empty line
+        }
 
-                if (toLastArg.length == 1 && fields[1].contains(":")) {
-                    toLastArg = new String[] { toLastArg[0], "" };  // String.split removes empty strings - put them back in
-                }
-            }
+        if (SharedData.logger.isDebugEnabled()) {
+            SharedData.logger.debug("[→ " + this + "] " + message);
+        }
 
-            // For "x y :z" yields ["x", "y"]. For "" yields []. For "x y" yields ["x", "y"]
-            String[] otherArgs = ( toLastArg.length > 0 )           // If we got any args at all
-                                        ? toLastArg[0].split(" ")   // Split the first ones by whitespace
-                                        : new String[0];            // Else no args
+        SharedData.onClientCommand(this, message);
+    }
 
-            // Merge together
-            args = new String[otherArgs.length + (( toLastArg.length > 1 ) ? 1 : 0 )];
+    @Override
+    protected void onOversizeInput() {
 
-            System.arraycopy(otherArgs, 0, args, 0, otherArgs.length);
-            if (toLastArg.length > 1) {
-                args[args.length - 1] = toLastArg[1];
-            }
-        }
+        sendStandardFormat(Reply.ERR_INPUTTOOLONG.format(getSafeNickname()));
+    }
+
+    @Override
+    public void disconnect(String message) {
 
-        SharedData.onClientCommand(this, fields[0], args);
+        quitMessage = message;
+        super.disconnect(message);
     }
 
     @Override
     public void onDisconnect() {
 
         SharedData.logger.trace(String.format("Client %s disconnected", this));
+        cancelRegistrationTimeout();
+
+        if (welcomeSent) {
+            ServerProtocol.quit(this, quitMessage);
+        }
+
+        // Only after the quit went out, so that nobody else takes the nickname before
+        if (nickname != null) {
+            ConnectionPool.releaseNickname(this, nickname);
+        }
+    }
+
+    /**
+     * Drops the client if it hasn't registered within <code>connect.timeout</code> seconds.
+     */
+    public void startRegistrationTimeout() {
+
+        registrationTimeout = TimingWheel.INSTANCE.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (!registrationCompleted()) {
+                    disconnect("Timeout: Registration timed out");
+                }
+            }
+        }, REGISTRATION_TIMEOUT_MILLIS);
+    }
+
+    private void cancelRegistrationTimeout() {
+
+        TimingWheel.Timeout timeout = registrationTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
     }
 
     public void onModeChange() {
@@ -344,14 +494,16 @@ public class Client extends Connection implements Flagable {
     public void onRegistrationComplete() {
 
         welcomeSent = true;
+        cancelRegistrationTimeout();
 
         addFlag(Mode.UMODE_INVISIBLE, null);
+        ServerProtocol.introduce(this);
 
         sendStandardFormat(Reply.RPL_WELCOME.format(nickname, getHostmask()));
         sendStandardFormat(Reply.RPL_YOURHOST.format(nickname));
         sendStandardFormat(Reply.RPL_CREATED.format(nickname));
         sendStandardFormat(Reply.RPL_MYINFO.format(nickname));
-        sendStandardFormat(Reply.RPL_ISUPPORT.format(nickname));
+        sendStandardFormat(Reply.RPL_ISUPPORT.format(nickname, SharedData.caseMapping.getName()));
 
         if (SharedData.motd != null) {
             sendMotd();
@@ -364,25 +516,42 @@ public class Client extends Connection implements Flagable {
     // Channel operations
 
     /**
-     * Adds a channel to this user's channel list. Also call
-     * the joinChannel method of the Channel class to make
-     * this change visible.
-     * @param channel The name of the channel to add
+     * Adds a membership to this user's channel list. Called by the channel
+     * when the user joins it.
+     * @param membership The membership
      */
-    public synchronized void addChannel(String channel) {
+    public void addMembership(Membership membership) {
 
-        channels.add(channel);
+        memberships.put(membership.getChannel().getKey(), membership);
     }
 
     /**
-     * Removes a channel from this user's channel list. Also
-     * call the partChannel method of the Channel class to
-     * make this change visible.
-     * @param channel The name of the channel to remove
+     * Removes a channel from this user's channel list. Called by the channel
+     * when the user leaves it.
+     * @param channel The channel
      */
-    public synchronized void removeChannel(String channel) {
+    public void removeMembership(Channel channel) {
 
-        channels.remove(SharedData.toLowerCase(channel));
+        memberships.remove(channel.getKey());
+    }
+
+    /**
+     * Returns the membership of this user in a channel.
+     * @param channel The channel
+     * @return The membership, or <code>null</code> if the user is not in the channel
+     */
+    public Membership getMembership(Channel channel) {
+
+        return memberships.get(channel.getKey());
+    }
+
+    /**
+     * Returns the memberships of this user in all its channels.
+     * @return A live view, which may be iterated while the user joins and leaves channels
+     */
+    public Collection<Membership> getMemberships() {
+
+        return Collections.unmodifiableCollection(memberships.values());
     }
 
     /**
@@ -393,7 +562,7 @@ public class Client extends Connection implements Flagable {
      */
     public boolean isInChannel(String channel) {
 
-        return channels.contains(SharedData.toLowerCase(channel));
+        return memberships.containsKey(NameKey.of(channel));
     }
 
     /**
@@ -402,10 +571,10 @@ public class Client extends Connection implements Flagable {
      */
     public void broadcastToChannels(String message) {
 
-        for (String channel: channels) {
+        EncodedLine line = new EncodedLine(":" + getDisplayHostmask() + " " + message);
 
-            Channel chan = ChannelPool.getChannel(channel);
-            chan.sendFromClient(this, message);
+        for (Membership membership: memberships.values()) {
+            membership.getChannel().send(line);
         }
     }
 
@@ -422,6 +591,11 @@ public class Client extends Connection implements Flagable {
     public void addFlag(char flag, String mode) {
 
         flags.put(flag, mode);
+
+        if (flag == Mode.UMODE_OPER) {
+            setConnectionClass(ConnectionClass.forOpers());
+        }
+
         onModeChange();
     }
 
@@ -429,6 +603,11 @@ public class Client extends Connection implements Flagable {
     public void removeFlag(char flag) {
 
         flags.remove(flag);
+
+        if (flag == Mode.UMODE_OPER) {
+            setConnectionClass(ConnectionClass.forClients());
+        }
+
         onModeChange();
     }
 
@@ -456,13 +635,13 @@ public class Client extends Connection implements Flagable {
         return flags.get(flag);
     }
 
-    public synchronized Set<String> getChannels(Filter<String> filter) {
+    public Set<String> getChannels(Filter<String> filter) {
 
         Set<String> results = new HashSet<>();
 
-        for (String chan: channels) {
-            if (filter.pass(chan)) {
-                results.add(chan);
+        for (NameKey chan: memberships.keySet()) {
+            if (filter.pass(chan.getName())) {
+                results.add(chan.getName());
             }
         }
 
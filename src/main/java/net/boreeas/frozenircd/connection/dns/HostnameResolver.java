@@ -0,0 +1,437 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.utils.Metrics;
+import net.boreeas.frozenircd.utils.Threads;
+
+/**
+ * Looks up the host names of connecting clients without tying up a thread
+ * per client.
+ * <ul>
+ * <li>Only forward-confirmed names are accepted: the PTR name must resolve
+ *     back to the address.</li>
+ * <li>Results are cached, found names and failed lookups each in a bounded
+ *     cache with its own time to live.</li>
+ * <li>Concurrent lookups of the same address share one query.</li>
+ * <li>A caller waits at most until its deadline and gets the address
+ *     itself after that. The query still completes and fills the cache.</li>
+ * </ul>
+ * @author Boreeas
+ */
+public class HostnameResolver {
+
+    /**
+     * The resolver used for clients, configured by the <code>dns.*</code> keys.
+     */
+    public static final HostnameResolver DEFAULT = new HostnameResolver(new SystemResolver(),
+            Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.DNS_THREADS)),
+            Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.DNS_CACHE_SIZE)),
+            TimeUnit.SECONDS.toMillis(Long.parseLong(ConfigData.getFirstConfigOption(ConfigKey.DNS_CACHE_TTL))),
+            TimeUnit.SECONDS.toMillis(Long.parseLong(ConfigData.getFirstConfigOption(ConfigKey.DNS_CACHE_NEGATIVE_TTL))),
+            TimeUnit.SECONDS.toMillis(Long.parseLong(ConfigData.getFirstConfigOption(ConfigKey.DNS_TIMEOUT))));
+
+    /**
+     * Queries that may wait for a thread. Beyond this, lookups fail right away.
+     */
+    private static final int QUEUE_SIZE = 4096;
+
+    private static final Pattern HOSTNAME = Pattern.compile(
+            "(?=.{1,253}$)[A-Za-z0-9]([A-Za-z0-9-]*[A-Za-z0-9])?(\\.[A-Za-z0-9]([A-Za-z0-9-]*[A-Za-z0-9])?)*");
+
+    /**
+     * Receives the result of a lookup.
+     */
+    public interface Listener {
+
+        /**
+         * Called once the lookup is done or the deadline has passed, whichever comes first.
+         * @param hostname The forward-confirmed host name, or the address if there is none
+         * @param resolved Whether a host name has been found
+         */
+        void onLookupComplete(String hostname, boolean resolved);
+    }
+
+    private final Resolver resolver;
+    private final long deadlineMillis;
+
+    private final ThreadPoolExecutor workers;
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final ConcurrentMap<InetAddress, Query> inFlight = new ConcurrentHashMap<>();
+    private final Cache found;
+    private final Cache notFound;
+
+    /**
+     * Creates a new resolver.
+     * @param resolver The name service to query
+     * @param threads The number of queries that may run at once
+     * @param cacheSize The number of found names, and of failed lookups, to cache
+     * @param ttlMillis How long found names are cached
+     * @param negativeTtlMillis How long failed lookups are cached
+     * @param deadlineMillis How long a caller waits for a lookup
+     */
+    public HostnameResolver(Resolver resolver, int threads, int cacheSize, long ttlMillis, long negativeTtlMillis,
+                            long deadlineMillis) {
+
+        this.resolver = resolver;
+        this.deadlineMillis = deadlineMillis;
+
+        this.found = new Cache(cacheSize, ttlMillis);
+        this.notFound = new Cache(cacheSize, negativeTtlMillis);
+
+        workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                         new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), Threads.factory("Resolver", true));
+
+        timer = new ScheduledThreadPoolExecutor(1, Threads.factory("ResolverTimer", true));
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Looks up the host name of an address. The listener is called on the
+     * calling thread if the result is cached, otherwise on a thread of the resolver.
+     * @param address The address
+     * @param listener Receives the result
+     */
+    public void lookup(InetAddress address, Listener listener) {
+
+        Waiter waiter = new Waiter(address, listener);
+
+        while (true) {
+
+            if (answerFromCache(waiter)) {
+
+                Metrics.DNS_CACHE_HITS.inc();
+                return;
+            }
+
+            Query query = inFlight.get(address);
+
+            if (query == null) {
+
+                Query fresh = new Query(address);
+                fresh.add(waiter);
+
+                if ((query = inFlight.putIfAbsent(address, fresh)) == null) {
+
+                    start(fresh);
+                    break;
+                }
+            }
+
+            if (query.add(waiter)) {
+
+                Metrics.DNS_JOINED_LOOKUPS.inc();
+                break;
+            }
+
+            // The query completed in the meantime - its result is cached now
+        }
+
+        waiter.startDeadline();
+    }
+
+    /**
+     * Returns the cached result for an address.
+     * @param address The address
+     * @return The host name, the address if the lookup failed, or <code>null</code> if nothing is cached
+     */
+    public String getCached(InetAddress address) {
+
+        String hostname = found.get(address);
+        return (hostname != null) ? hostname : notFound.get(address);
+    }
+
+    /**
+     * Stops the threads of this resolver. Pending lookups are not answered.
+     */
+    public void shutdown() {
+
+        workers.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    private boolean answerFromCache(Waiter waiter) {
+
+        String hostname = found.get(waiter.address);
+
+        if (hostname != null) {
+
+            waiter.complete(hostname, true);
+            return true;
+        }
+
+        if (notFound.get(waiter.address) != null) {
+
+            waiter.complete(waiter.address.getHostAddress(), false);
+            return true;
+        }
+
+        return false;
+    }
+
+    private void start(Query query) {
+
+        try {
+            workers.execute(query);
+        } catch (RejectedExecutionException ex) {
+
+            // Overloaded - not cached, the next client gets another chance
+            inFlight.remove(query.address, query);
+            query.complete(null);
+        }
+    }
+
+    /**
+     * Looks up the name of an address and confirms it.
+     * @param address The address
+     * @return The confirmed name, or <code>null</code>
+     */
+    private String resolve(InetAddress address) {
+
+        try {
+            String hostname = resolver.reverse(address);
+
+            if (hostname == null) {
+                return null;
+            }
+
+            if (hostname.endsWith(".")) {
+                hostname = hostname.substring(0, hostname.length() - 1);
+            }
+
+            if (!HOSTNAME.matcher(hostname).matches()) {
+                return null;
+            }
+
+            for (InetAddress forward: resolver.forward(hostname)) {
+                if (forward.equals(address)) {
+                    return hostname;
+                }
+            }
+
+            return null;    // PTR doesn't match the forward records - possibly spoofed
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+
+    /**
+     * A lookup in progress, with everyone waiting for it.
+     */
+    private class Query implements Runnable {
+
+        private final InetAddress address;
+        private final List<Waiter> waiters = new ArrayList<>(1);
+        private boolean completed = false;
+
+        private Query(InetAddress address) {
+
+            this.address = address;
+        }
+
+        /**
+         * Adds a waiter unless the query has already completed.
+         * @return <code>false</code> if the query has completed
+         */
+        private synchronized boolean add(Waiter waiter) {
+
+            if (completed) {
+                return false;
+            }
+
+            waiters.add(waiter);
+            return true;
+        }
+
+        @Override
+        public void run() {
+
+            long start = System.nanoTime();
+            String hostname = resolve(address);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            if (hostname != null) {
+                found.put(address, hostname);
+            } else {
+
+                Metrics.DNS_UNRESOLVED.inc();
+                notFound.put(address, address.getHostAddress());
+            }
+
+            // Cache first: late callers either join here or find the result cached
+            inFlight.remove(address, this);
+            complete(hostname);
+
+            Metrics.DNS_LOOKUP_MILLIS.record(millis);
+        }
+
+        private void complete(String hostname) {
+
+            List<Waiter> toNotify;
+
+            synchronized (this) {
+
+                completed = true;
+                toNotify = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+
+            for (Waiter waiter: toNotify) {
+
+                if (hostname != null) {
+                    waiter.complete(hostname, true);
+                } else {
+                    waiter.complete(address.getHostAddress(), false);
+                }
+            }
+        }
+    }
+
+    /**
+     * A caller waiting for a lookup. Answered exactly once, by the lookup or by its deadline.
+     */
+    private class Waiter implements Runnable {
+
+        private final InetAddress address;
+        private final Listener listener;
+        private final AtomicBoolean answered = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> deadline;
+
+        private Waiter(InetAddress address, Listener listener) {
+
+            this.address = address;
+            this.listener = listener;
+        }
+
+        private void startDeadline() {
+
+            if (!answered.get()) {
+
+                deadline = timer.schedule(this, deadlineMillis, TimeUnit.MILLISECONDS);
+
+                if (answered.get()) {
+                    deadline.cancel(false);     // Answered while scheduling
+                }
+            }
+        }
+
+        /**
+         * The deadline has passed.
+         */
+        @Override
+        public void run() {
+
+            if (answered.compareAndSet(false, true)) {
+
+                Metrics.DNS_DEADLINE_EXPIRED.inc();
+                listener.onLookupComplete(address.getHostAddress(), false);
+            }
+        }
+
+        private void complete(String hostname, boolean resolved) {
+
+            if (!answered.compareAndSet(false, true)) {
+                return;
+            }
+
+            ScheduledFuture<?> pending = deadline;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+
+            listener.onLookupComplete(hostname, resolved);
+        }
+    }
+
+
+    /**
+     * A bounded cache whose entries expire. The least recently used entry is
+     * dropped when the cache is full.
+     */
+    private static class Cache {
+
+        private final long ttlMillis;
+        private final Map<InetAddress, CacheEntry> entries;
+
+        private Cache(final int maxSize, long ttlMillis) {
+
+            this.ttlMillis = ttlMillis;
+            this.entries = new LinkedHashMap<InetAddress, CacheEntry>(16, 0.75f, true) {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<InetAddress, CacheEntry> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        private synchronized String get(InetAddress address) {
+
+            CacheEntry entry = entries.get(address);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry.expires <= System.currentTimeMillis()) {
+
+                entries.remove(address);
+                return null;
+            }
+
+            return entry.hostname;
+        }
+
+        private synchronized void put(InetAddress address, String hostname) {
+
+            if (ttlMillis > 0) {
+                entries.put(address, new CacheEntry(hostname, System.currentTimeMillis() + ttlMillis));
+            }
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final String hostname;
+        private final long expires;
+
+        private CacheEntry(String hostname, long expires) {
+
+            this.hostname = hostname;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * The name service behind a {@link HostnameResolver}. Calls may block, the
+ * resolver runs them on its own threads.
+ * @author Boreeas
+ */
+public interface Resolver {
+
+    /**
+     * Looks up the PTR record of an address.
+     * @param address The address
+     * @return The host name, or <code>null</code> if there is none
+     * @throws IOException If the lookup failed
+     */
+    String reverse(InetAddress address) throws IOException;
+
+    /**
+     * Looks up the addresses of a host name.
+     * @param hostname The host name
+     * @return The addresses, empty if there are none
+     * @throws IOException If the lookup failed
+     */
+    InetAddress[] forward(String hostname) throws IOException;
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves through the name service of the JVM (hosts file, DNS, ...).
+ * @author Boreeas
+ */
+public class SystemResolver implements Resolver {
+
+    @Override
+    public String reverse(InetAddress address) throws IOException {
+
+        // A fresh address without a cached name - getHostName does the PTR lookup
+        InetAddress plain = InetAddress.getByAddress(address.getAddress());
+        String hostname = plain.getHostName();
+
+        return hostname.equals(plain.getHostAddress()) ? null : hostname;
+    }
+
+    @Override
+    public InetAddress[] forward(String hostname) throws IOException {
+
+        try {
+            return InetAddress.getAllByName(hostname);
+        } catch (UnknownHostException ex) {
+            return new InetAddress[0];
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.ident;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import net.boreeas.frozenircd.Interruptable;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.utils.Metrics;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * Asks the ident service (RFC 1413) of connecting clients for their user name.
+ * All queries are non-blocking connects served by a single selector thread.
+ * Each query has one deadline covering connect, request and response; since
+ * every query gets the same timeout, the deadlines expire in the order the
+ * queries were started and are kept in a plain queue.
+ * @author Boreeas
+ */
+public class IdentResolver extends Thread implements Interruptable {
+
+    /**
+     * The resolver used for clients, with the deadline set by <code>ident.timeout</code>.
+     */
+    public static final IdentResolver DEFAULT = new IdentResolver(113,
+            TimeUnit.SECONDS.toMillis(Long.parseLong(ConfigData.getFirstConfigOption(ConfigKey.IDENT_TIMEOUT))));
+
+    /**
+     * The longest response RFC 1413 allows, including CR LF.
+     */
+    private static final int MAX_RESPONSE = 1000;
+
+    private static final Pattern USERNAME = Pattern.compile("[\\x21-\\x7e&&[^@!:,]]+");
+
+    /**
+     * Receives the result of a query.
+     */
+    public interface Listener {
+
+        /**
+         * Called once the query is done or its deadline has passed.
+         * @param username The user name reported by the client's ident service, or <code>null</code>
+         */
+        void onIdentComplete(String username);
+    }
+
+    private final int identPort;
+    private final long deadlineMillis;
+    private final Selector selector;
+
+    /**
+     * Queries waiting to be started by the selector thread.
+     */
+    private final Queue<Query> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Running queries in the order of their deadlines. Only touched by the selector thread.
+     */
+    private final ArrayDeque<Query> running = new ArrayDeque<>();
+
+    private volatile boolean interrupted = false;
+
+    /**
+     * Creates and starts a new resolver.
+     * @param identPort The port of the ident services to ask, 113 unless testing
+     * @param deadlineMillis How long a query may take in total
+     */
+    public IdentResolver(int identPort, long deadlineMillis) {
+
+        super("IdentResolver");
+
+        this.identPort = identPort;
+        this.deadlineMillis = deadlineMillis;
+
+        try {
+            selector = Selector.open();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to open selector for ident queries", ex);
+        }
+
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Asks the ident service of a client for the user owning its connection.
+     * @param client The address and port of the client
+     * @param server The local address and port the client connected to
+     * @param listener Receives the result, on the thread of this resolver
+     */
+    public void lookup(InetSocketAddress client, InetSocketAddress server, Listener listener) {
+
+        pending.add(new Query(client, server, listener));
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+
+        while (!interrupted) {
+
+            try {
+                if (running.isEmpty()) {
+                    selector.select();
+                } else {
+                    // Rounded up, and at least 1 as 0 waits without a timeout
+                    long nanos = running.peek().deadline - System.nanoTime();
+                    selector.select(Math.max(1, (nanos + 999999) / 1000000));
+                }
+            } catch (IOException ex) {
+                SharedData.logger.error("Select failed in ident resolver", ex);
+                continue;
+            }
+
+            // This is the only thread serving ident queries, it must not die
+            try {
+                startPending();
+                processSelected();
+                expire();
+            } catch (RuntimeException ex) {
+                SharedData.logger.error("Unhandled exception in ident resolver", ex);
+            }
+        }
+
+        for (Query query: running) {
+            query.finish(null, Metrics.IDENT_TIMEOUT);
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            SharedData.logger.warn("Unable to close selector of ident resolver", ex);
+        }
+    }
+
+    private void processSelected() {
+
+        Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+        while (selected.hasNext()) {
+
+            SelectionKey key = selected.next();
+            selected.remove();
+
+            Query query = (Query) key.attachment();
+
+            try {
+                query.onSelected(key);
+            } catch (IOException ex) {
+                query.finish(null, Metrics.IDENT_REFUSED);
+            } catch (RuntimeException ex) {
+
+                SharedData.logger.error("Unhandled exception in ident query", ex);
+                query.finish(null, Metrics.IDENT_REFUSED);
+            }
+        }
+    }
+
+    private void startPending() {
+
+        Query query;
+        while ((query = pending.poll()) != null) {
+
+            running.add(query);
+
+            try {
+                query.connect();
+            } catch (IOException ex) {
+                query.finish(null, Metrics.IDENT_REFUSED);
+            }
+        }
+    }
+
+    /**
+     * Drops finished queries from the head of the deadline queue and times out expired ones.
+     */
+    private void expire() {
+
+        long now = System.nanoTime();
+
+        while (!running.isEmpty() && (running.peek().done || running.peek().deadline - now <= 0)) {
+            running.poll().finish(null, Metrics.IDENT_TIMEOUT);
+        }
+    }
+
+    @Override
+    public void requestInterrupt() {
+
+        interrupted = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Extracts the user name from a response to a query.
+     * @param response The response line, without CR LF
+     * @param clientPort The port of the client the query was for
+     * @param serverPort The port of the server the query was for
+     * @return The user name, or <code>null</code> if the response is an error or invalid
+     */
+    static String parseResponse(String response, int clientPort, int serverPort) {
+
+        // <client port> , <server port> : USERID : <os>[,<charset>] : <user name>
+        String[] fields = response.split(":", 4);
+        if (fields.length < 4 || !fields[1].trim().equalsIgnoreCase("USERID")) {
+            return null;
+        }
+
+        String[] ports = fields[0].split(",");
+        if (ports.length != 2) {
+            return null;
+        }
+
+        try {
+            if (Integer.parseInt(ports[0].trim()) != clientPort || Integer.parseInt(ports[1].trim()) != serverPort) {
+                return null;
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        String username = fields[3].trim();
+        return USERNAME.matcher(username).matches() ? username : null;
+    }
+
+
+    /**
+     * A single query, from connecting to the ident service to reading its response.
+     */
+    private class Query {
+
+        private final InetSocketAddress client;
+        private final InetSocketAddress server;
+        private final Listener listener;
+
+        private final long startedNanos = System.nanoTime();
+
+        /**
+         * In nano time, so that steps of the wall clock don't move it.
+         */
+        private final long deadline = startedNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+
+        private SocketChannel channel;
+        private ByteBuffer request;
+        private final ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE);
+        private boolean done = false;
+
+        private Query(InetSocketAddress client, InetSocketAddress server, Listener listener) {
+
+            this.client = client;
+            this.server = server;
+            this.listener = listener;
+        }
+
+        private void connect() throws IOException {
+
+            request = ByteBuffer.wrap(String.format("%s, %s\r\n", client.getPort(), server.getPort())
+                                            .getBytes(StandardCharsets.US_ASCII));
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+
+            // Ask from the address the client connected to, so the answer matches what it sees
+            channel.bind(new InetSocketAddress(server.getAddress(), 0));
+
+            if (channel.connect(new InetSocketAddress(client.getAddress(), identPort))) {
+                channel.register(selector, SelectionKey.OP_WRITE, this);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        private void onSelected(SelectionKey key) throws IOException {
+
+            if (key.isConnectable() && channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+
+            if (key.isValid() && key.isWritable()) {
+
+                channel.write(request);
+
+                if (!request.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+
+            if (key.isValid() && key.isReadable()) {
+
+                int read = channel.read(response);
+
+                int end = lineEnd();
+                if (end >= 0) {
+
+                    String line = new String(response.array(), 0, end, StandardCharsets.US_ASCII);
+                    String username = parseResponse(line, client.getPort(), server.getPort());
+                    finish(username, (username != null) ? Metrics.IDENT_SUCCESS : Metrics.IDENT_REFUSED);
+                } else if (read < 0 || !response.hasRemaining()) {
+                    finish(null, Metrics.IDENT_REFUSED);
+                }
+            }
+        }
+
+        /**
+         * Returns the end of the first line of the response, or -1 if it is not complete.
+         */
+        private int lineEnd() {
+
+            byte[] bytes = response.array();
+            for (int i = 0; i < response.position(); i++) {
+                if (bytes[i] == '\n') {
+                    return (i > 0 && bytes[i - 1] == '\r') ? i - 1 : i;
+                }
+            }
+
+            return -1;
+        }
+
+        /**
+         * Closes the query and answers the listener, unless that has already been done.
+         */
+        private void finish(String username, Metrics outcome) {
+
+            if (done) {
+                return;
+            }
+
+            done = true;
+            outcome.inc();
+            Metrics.IDENT_MILLIS.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos));
+
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // Not much we can do here anyways
+                }
+            }
+
+            try {
+                listener.onIdentComplete(username);
+            } catch (RuntimeException ex) {
+                SharedData.logger.error("Unhandled exception in ident listener", ex);
+            }
+        }
+    }
+}
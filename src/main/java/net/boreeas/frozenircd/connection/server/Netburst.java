@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.boreeas.frozenircd.Channel;
+import net.boreeas.frozenircd.ChannelPool;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.connection.ConnectionPool;
+import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.utils.SharedData;
+import net.boreeas.frozenircd.utils.Threads;
+
+/**
+ * Sends the state of the network to a link that just registered: all users,
+ * then the members, modes, bans and topic of every channel. The members of a
+ * channel go out as a few <code>NJOIN</code> lines instead of one line per
+ * member.
+ * <p>
+ * The burst is written in chunks of many lines, each queued as a single
+ * buffer, so that it leaves in few large writes. It runs on a thread of its
+ * own and waits whenever the send queue of the link fills up, so that a
+ * large network doesn't exceed the send queue limit. Changes relayed to the
+ * link in the meantime are held back until the burst is done.
+ * @author Boreeas
+ */
+final class Netburst implements Runnable {
+
+    private static final ExecutorService BURSTS = Executors.newCachedThreadPool(Threads.factory("Netburst", true));
+
+    private static final String HOST = ConfigData.getFirstConfigOption(ConfigKey.HOST);
+    private static final int SENDQ = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.SENDQ_SERVER));
+
+    /**
+     * The size at which a chunk of the burst is queued.
+     */
+    private static final int CHUNK_SIZE = 65536;
+
+    /**
+     * The send queue size up to which chunks are queued without waiting.
+     */
+    private static final int WATERMARK = Math.max(CHUNK_SIZE, SENDQ / 4);
+
+    /**
+     * The length a membership line is kept below, leaving room for the prefix a relay adds.
+     */
+    private static final int MAX_NJOIN_LENGTH = 400;
+
+    private final ServerLink link;
+    private final StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 512);
+
+    private int lines = 0;
+    private long bytes = 0;
+
+    private Netburst(ServerLink link) {
+
+        this.link = link;
+    }
+
+    /**
+     * Starts a burst to a link. Relayed changes are held back from now on,
+     * if the link doesn't already do so since its registration.
+     * @param link The link
+     */
+    static void start(ServerLink link) {
+
+        link.startBurst();
+        BURSTS.execute(new Netburst(link));
+    }
+
+    @Override
+    public void run() {
+
+        long start = System.nanoTime();
+
+        try {
+            burstUsers();
+            burstChannels();
+            queueChunk();
+        } catch (InterruptedException ex) {
+
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException ex) {
+
+            SharedData.logger.error(String.format("Netburst to %s failed", link), ex);
+            link.disconnect("Netburst failed");
+            return;
+        } finally {
+            link.endBurst();
+        }
+
+        SharedData.logger.info(String.format("Netburst to %s: %s lines, %s bytes in %.1f ms", link, lines, bytes,
+                                             (System.nanoTime() - start) / 1e6));
+    }
+
+    private void burstUsers() throws InterruptedException {
+
+        for (Client client: ConnectionPool.CLIENTS.getConnections()) {
+
+            if (client.rplWelcomeSent()) {
+                line(ServerProtocol.introduction(client));
+            }
+        }
+
+        for (RemoteClient user: ServerProtocol.getUsers()) {
+
+            if (user.getLink() != link) {
+                line(ServerProtocol.introduction(user));
+            }
+        }
+    }
+
+    private void burstChannels() throws InterruptedException {
+
+        for (Channel channel: ChannelPool.getChannels()) {
+
+            List<Client> members = channel.getClients();
+            if (members.isEmpty()) {
+                continue;
+            }
+
+            String start = ":" + HOST + " NJOIN " + channel.getName() + " :";
+            StringBuilder line = new StringBuilder(start);
+
+            for (Client member: members) {
+
+                if (member instanceof RemoteClient && ((RemoteClient) member).getLink() == link) {
+                    continue;   // Known on the other side
+                }
+
+                String entry = ServerProtocol.member(channel, member);
+
+                if (line.length() > start.length() && line.length() + entry.length() >= MAX_NJOIN_LENGTH) {
+
+                    line(line.toString());
+                    line.setLength(start.length());
+                }
+
+                if (line.length() > start.length()) {
+                    line.append(',');
+                }
+
+                line.append(entry);
+            }
+
+            if (line.length() > start.length()) {
+                line(line.toString());
+            }
+
+            String flags = channel.flags();
+            if (!flags.isEmpty()) {
+                line(":" + HOST + " MODE " + channel.getName() + " +" + flags);
+            }
+
+            for (String ban: channel.banList()) {
+                line(":" + HOST + " MODE " + channel.getName() + " +b " + ban.split(" ")[0]);
+            }
+
+            String topic = channel.getTopic();
+            if (topic != null) {
+                line(":" + HOST + " TOPIC " + channel.getName() + " :" + topic);
+            }
+        }
+    }
+
+    private void line(String line) throws InterruptedException {
+
+        chunk.append(line).append("\r\n");
+        lines++;
+
+        if (chunk.length() >= CHUNK_SIZE) {
+            queueChunk();
+        }
+    }
+
+    /**
+     * Queues the lines collected so far as one buffer, after waiting for the send queue to drain below the watermark.
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    private void queueChunk() throws InterruptedException {
+
+        if (chunk.length() == 0) {
+            return;
+        }
+
+        while (link.getSendQueueBytes() > WATERMARK && link.isRegistered() && !link.isClosed()) {
+            Thread.sleep(1);
+        }
+
+        byte[] data = chunk.toString().getBytes(SharedData.CHARSET);
+        chunk.setLength(0);
+
+        bytes += data.length;
+        link.sendChunk(ByteBuffer.wrap(data));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.server;
+
+import net.boreeas.frozenircd.connection.EncodedLine;
+import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.utils.TokenBucket;
+
+/**
+ * A user on another server, known through the link it is behind. Nothing is
+ * read from or written to a socket for it: lines sent to the user directly
+ * are passed on to its link, addressed by ID, lines sent to a channel it is
+ * in are dropped, since the channel is relayed to each link once (see
+ * {@link ServerProtocol}).
+ * @author Boreeas
+ */
+public class RemoteClient extends Client {
+
+    private final ServerLink link;
+    private final String server;
+    private final int hops;
+
+    /**
+     * Creates a user introduced by a link.
+     * @param link The link the user is behind
+     * @param server The name of the server the user is on
+     * @param hops The number of links between this server and the server of the user
+     * @param nickname The nickname
+     * @param username The username, as it is displayed
+     * @param hostname The host name
+     * @param realname The real name
+     * @param id The ID the server of the user gave it
+     */
+    public RemoteClient(ServerLink link, String server, int hops,
+                        String nickname, String username, String hostname, String realname, String id) {
+
+        this.link = link;
+        this.server = server;
+        this.hops = hops;
+
+        setId(id);
+        setNickname(nickname);
+        setUsername(username);
+        setHostname(hostname);
+        setRealname(realname);
+    }
+
+    public ServerLink getLink() {
+        return link;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * Remote users send nothing to this server, their link is throttled as a whole.
+     * @return <code>null</code>
+     */
+    @Override
+    protected TokenBucket newInputBudget() {
+
+        return null;
+    }
+
+    /**
+     * Passes the line on to the link the user is behind, addressed to the ID of the user.
+     * @param line The line to send, addressed to the nickname of the user
+     */
+    @Override
+    public void send(String line) {
+
+        link.relay(ServerProtocol.readdress(line, getId()));
+    }
+
+    /**
+     * Passes a line from a user on to the link this user is behind, with both users addressed by ID.
+     * @param user The user the line is from
+     * @param message The line, addressed to the nickname of this user
+     */
+    @Override
+    public void sendFromUser(Client user, String message) {
+
+        send(":" + user.getId() + " " + message);
+    }
+
+    /**
+     * Drops the line. Encoded lines are shared by the members of a channel,
+     * which the channel relays itself.
+     * @param line The line to send
+     */
+    @Override
+    public void send(EncodedLine line) {
+    }
+
+    /**
+     * Kills the user on the whole network.
+     * @param reason The reason
+     */
+    @Override
+    public void kill(String reason) {
+
+        ServerProtocol.kill(this, reason, null);
+    }
+
+    /**
+     * Kills the user on the whole network, there is no connection to close.
+     * @param message The reason
+     */
+    @Override
+    public void disconnect(String message) {
+
+        kill(message);
+    }
+
+    @Override
+    public boolean registrationCompleted() {
+
+        return true;
+    }
+
+    @Override
+    public boolean rplWelcomeSent() {
+
+        return true;
+    }
+
+    /**
+     * The username of a remote user is sent the way it is displayed.
+     * @return The username
+     */
+    @Override
+    public String getDisplayUsername() {
+
+        return getUsername();
+    }
+
+    @Override
+    public void onModeChange() {
+    }
+
+    @Override
+    public void onDisconnect() {
+    }
+
+    @Override
+    public String toString() {
+
+        return getNickname() + "@" + server;
+    }
+}
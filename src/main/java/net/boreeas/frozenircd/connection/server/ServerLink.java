@@ -16,78 +16,332 @@
 package net.boreeas.frozenircd.connection.server;
 
 import net.boreeas.frozenircd.utils.SharedData;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import net.boreeas.frozenircd.command.ParsedMessage;
 import net.boreeas.frozenircd.config.ConfigData;
 import net.boreeas.frozenircd.config.ConfigKey;
 import net.boreeas.frozenircd.connection.Connection;
+import net.boreeas.frozenircd.connection.ConnectionPool;
+import net.boreeas.frozenircd.utils.Stats;
+import net.boreeas.frozenircd.utils.TokenBucket;
 
 /**
  * This class represents a link to another IRC server.
+ * <p>
+ * Both sides open the link with <code>PASS</code> and <code>SERVER</code>.
+ * A server that offers compression adds the <code>Z</code> option to its
+ * <code>PASS</code> (RFC 2813). Once the handshake is done and both sides
+ * offered it, each side sends <code>ZIP</code> and compresses everything it
+ * sends after that line.
+ * <p>
+ * After that, both sides burst their state to each other and relay every
+ * change from then on, see {@link ServerProtocol}.
  * @author Boreeas
  */
 public class ServerLink extends Connection {
-    
+
+    private static final int SENDQ = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.SENDQ_SERVER));
+    private static final boolean ZIP = ConfigData.getFirstConfigOption(ConfigKey.LINK_ZIP).equalsIgnoreCase("true");
+
     private String host;
-    
+
+    /**
+     * The password both sides of the link use.
+     */
+    private final String password;
+    private final boolean outgoing;
+
+    private String passReceived;
+    private boolean peerOffersZip = false;
+    private volatile boolean registered = false;
+
+    /**
+     * Lines relayed while the burst is being sent, sent after it. Guarded by <code>burstLock</code>.
+     */
+    private final Object burstLock = new Object();
+    private boolean bursting = false;
+    private final List<String> heldBack = new ArrayList<>();
+
+    /**
+     * The line currently being handled, reused for every line.
+     */
+    private final ParsedMessage message = new ParsedMessage();
+
     /**
      * Opens a link to the specified server.
      * @param host The host of the server to connect to
      * @param port The port of the server to connect to
+     * @param password The password of the link
      * @throws IOException If an IOException occurred
      */
     public ServerLink(String host, int port, String password) throws IOException {
-        
-        SharedData.logger.info(String.format("Opening link to server at %s:%s with password %s", host, port, password));
-        
+
+        SharedData.logger.info(String.format("Opening link to server at %s:%s", host, port));
+
         this.host = host;
-        
-        socket = new Socket(host, port);
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        
-        send(String.format("PASS %1s %2s%3s IRC|%3s", password, SharedData.PROTOCOL_VERSION, SharedData.BUILD_IDENTIFIER));
-        send(String.format("SERVER %s 1 %s :%s", ConfigData.getFirstConfigOption(ConfigKey.HOST), 
-                                                          ConfigData.getFirstConfigOption(ConfigKey.TOKEN), 
-                                                          ConfigData.getFirstConfigOption(ConfigKey.DESCRIPTION)));
+        this.password = password;
+        this.outgoing = true;
+
+        if (SharedData.nonBlockingIO) {
+            attach(SocketChannel.open(new InetSocketAddress(host, port)));
+        } else {
+            attach(new Socket(host, port));
+        }
+
+        sendHandshake();
+    }
+
+    /**
+     * Accepts a link from another server on a socket channel.
+     * @param channel The accepted channel
+     * @throws IOException If the channel could not be switched to non-blocking mode
+     */
+    public ServerLink(SocketChannel channel) throws IOException {
+
+        this(channel.socket().getInetAddress());
+        attach(channel);
+    }
+
+    /**
+     * Accepts a link from another server on a blocking socket.
+     * @param socket The accepted socket
+     * @throws IOException If the streams of the socket could not be opened
+     */
+    public ServerLink(Socket socket) throws IOException {
+
+        this(socket.getInetAddress());
+        attach(socket);
+        socket.setSoTimeout(1000);
+    }
+
+    private ServerLink(InetAddress address) {
+
+        SharedData.logger.info(String.format("Server from %s attached", address));
+
+        this.host = address.getHostAddress();
+        this.password = ConfigData.getFirstConfigOption(ConfigKey.LINK_PASS.getKey(), null);
+        this.outgoing = false;
     }
 
-    
+    private void sendHandshake() {
+
+        send(String.format("PASS %s %s%s IRC|%s%s", password, SharedData.PROTOCOL_VERSION,
+                           SharedData.BUILD_IDENTIFIER, SharedData.BUILD_IDENTIFIER, ZIP ? " Z" : ""));
+        send(String.format("SERVER %s 1 %s :%s", ConfigData.getFirstConfigOption(ConfigKey.HOST),
+                                                 ConfigData.getFirstConfigOption(ConfigKey.TOKEN),
+                                                 ConfigData.getFirstConfigOption(ConfigKey.DESCRIPTION)));
+    }
+
+    /**
+     * Links are not throttled - a netburst is supposed to arrive as fast as possible.
+     * @return <code>null</code>
+     */
+    @Override
+    protected TokenBucket newInputBudget() {
+
+        return null;
+    }
 
     @Override
     public final void send(String line) {
-        
-        try {
-            
-            SharedData.logger.trace(line);
-            writer.write(line + "\r\n");
-            writer.flush();
-        } catch (IOException ioe) {
-            
-            requestInterrupt();    // An ioe indicates a closed stream
-            SharedData.logger.error(String.format("Unable to write output to %s, closing link", socket.getInetAddress().getHostName()), ioe);
-        }
+
+        SharedData.logger.trace(line);
+        write(line);
     }
 
     @Override
     public void onInput(String input) {
-        
-        // TODO Server Protocol
+
+        byte[] line = input.getBytes(SharedData.CHARSET);
+        onInput(line, 0, line.length);
+    }
+
+    @Override
+    protected void onInput(byte[] line, int offset, int length) {
+
+        if (!message.parse(line, offset, length)) {
+            return; // Empty line
+        }
+
+        if (message.commandEquals("PING")) {
+
+            if (message.paramCount() > 0) {
+                send("PONG " + ConfigData.getFirstConfigOption(ConfigKey.HOST) + " :" + message.param(message.paramCount() - 1));
+            }
+        } else if (message.commandEquals("PONG")) {
+
+            if (message.paramCount() > 0) {
+                updatePing(message.param(message.paramCount() - 1));
+            }
+        } else if (message.commandEquals("ERROR")) {
+
+            SharedData.logger.info(String.format("Link %s reports error: %s", this,
+                                                 (message.paramCount() > 0) ? message.param(0) : ""));
+            disconnect("Received ERROR");
+        } else if (!registered) {
+
+            onHandshakeInput();
+        } else if (message.commandEquals("ZIP")) {
+
+            if (!ZIP || !peerOffersZip) {
+                disconnect("Compression not negotiated");
+                return;
+            }
+
+            startInputCompression();
+        } else {
+
+            SharedData.onServerCommand(this, message);
+        }
+    }
+
+    private void onHandshakeInput() {
+
+        if (message.commandEquals("PASS")) {
+
+            passReceived = (message.paramCount() > 0) ? message.param(0) : null;
+            peerOffersZip = message.paramCount() > 3 && message.param(3).indexOf('Z') >= 0;
+        } else if (message.commandEquals("SERVER")) {
+
+            if (password == null || !password.equals(passReceived)) {
+
+                disconnect("Bad password");
+                return;
+            }
+
+            if (message.paramCount() > 0) {
+                host = message.param(0);
+            }
+
+            if (!outgoing) {
+                sendHandshake();
+            }
+
+            // Relays from other threads must not overtake the burst
+            startBurst();
+            registered = true;
+            Stats.LOCAL_LINKS.inc();
+            SharedData.logger.info(String.format("Linked with %s%s", this, (ZIP && peerOffersZip) ? " (compressed)" : ""));
+
+            if (ZIP && peerOffersZip) {
+
+                send("ZIP");
+                startOutputCompression();
+            }
+
+            SharedData.serverLinkInputHandler.onLink(this);
+        } else {
+
+            disconnect("Not registered");
+        }
+    }
+
+    /**
+     * Relays a line to the other server. Lines relayed during the burst are
+     * held back until the burst is done, so that they apply to the state the
+     * burst has sent.
+     * @param line The line to relay
+     */
+    public void relay(String line) {
+
+        synchronized (burstLock) {
+
+            if (bursting) {
+
+                heldBack.add(line);
+                return;
+            }
+
+            send(line);
+        }
+    }
+
+    /**
+     * Holds back relayed lines until {@link #endBurst()}.
+     */
+    void startBurst() {
+
+        synchronized (burstLock) {
+            bursting = true;
+        }
+    }
+
+    /**
+     * Sends the lines that were held back during the burst, and relays directly from now on.
+     */
+    void endBurst() {
+
+        synchronized (burstLock) {
+
+            for (String line: heldBack) {
+                send(line);
+            }
+
+            heldBack.clear();
+            bursting = false;
+        }
+    }
+
+    /**
+     * Tells whether the burst to the other server is still being sent.
+     * @return <code>true</code> during the burst
+     */
+    public boolean isBursting() {
+
+        synchronized (burstLock) {
+            return bursting;
+        }
+    }
+
+    /**
+     * Queues many lines of the burst at once.
+     * @param lines The lines, with terminators
+     */
+    void sendChunk(ByteBuffer lines) {
+
+        enqueue(lines);
+    }
+
+    /**
+     * Tells whether the handshake with the other server is done.
+     * @return <code>true</code> if the link is established
+     */
+    public boolean isRegistered() {
+
+        return registered;
     }
 
     @Override
     public void onDisconnect() {
-        
-        SharedData.logger.info(String.format("Link to %s closed.", this));
+
+        String compression = getCompressionSummary();
+
+        SharedData.logger.info(String.format("Link to %s closed.%s", this,
+                                             (compression == null) ? "" : " Compression: " + compression));
+
+        if (registered) {
+
+            Stats.LOCAL_LINKS.dec();
+            SharedData.serverLinkInputHandler.onDisconnect(this);
+        }
+    }
+
+    @Override
+    protected int getSendQueueLimit() {
+
+        return SENDQ;
     }
 
     @Override
     public String getCommonName() {
-        
+
         return host;
     }
 }
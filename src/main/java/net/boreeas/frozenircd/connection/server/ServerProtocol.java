@@ -0,0 +1,367 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.boreeas.frozenircd.Channel;
+import net.boreeas.frozenircd.Membership;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.connection.ConnectionIds;
+import net.boreeas.frozenircd.connection.ConnectionPool;
+import net.boreeas.frozenircd.connection.EncodedLine;
+import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * Keeps the linked servers in sync (RFC 2813, with users routed by ID). Every
+ * server knows every user and every channel membership of the network:
+ * <ul>
+ * <li>users are introduced with <code>UID nick hops user host server +umodes id :realname</code></li>
+ * <li>memberships are sent as <code>:server NJOIN #channel :@id,+id,id</code>,
+ *     one line for many members of a channel</li>
+ * <li>all other changes are relayed as the user sent them, with users
+ *     addressed by ID, e.g. <code>:id PART #channel :reason</code> or
+ *     <code>:id PRIVMSG id :text</code></li>
+ * </ul>
+ * The ID of a user never changes (see {@link ConnectionIds}), so a nick
+ * change is a single line and the receiving side finds users with a plain
+ * map lookup. Nicknames are only translated where lines reach a local user.
+ * <p>
+ * Changes of state go to every link, messages to a channel only to the links
+ * with members in that channel. The links must form a tree.
+ * @author Boreeas
+ */
+public final class ServerProtocol {
+
+    // Utility class private constructor
+    private ServerProtocol() {}
+
+    private static final String HOST = ConfigData.getFirstConfigOption(ConfigKey.HOST);
+
+    /**
+     * The users on other servers, by ID.
+     */
+    private static final ConcurrentMap<String, RemoteClient> REMOTE_USERS = new ConcurrentHashMap<>();
+
+    /**
+     * The registered users on this server, by ID.
+     */
+    private static final ConcurrentMap<String, Client> LOCAL_USERS = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a user on another server.
+     * @param id The ID of the user
+     * @return The user, or <code>null</code> if there is no user on another server with this ID
+     */
+    public static RemoteClient findRemoteById(String id) {
+
+        return REMOTE_USERS.get(id);
+    }
+
+    /**
+     * Returns a registered user on this or another server.
+     * @param id The ID of the user
+     * @return The user, or <code>null</code> if there is no user with this ID
+     */
+    public static Client findById(String id) {
+
+        Client user = LOCAL_USERS.get(id);
+        return (user != null) ? user : REMOTE_USERS.get(id);
+    }
+
+    /**
+     * Returns the users on other servers.
+     * @return A live view of the users
+     */
+    public static Collection<RemoteClient> getUsers() {
+
+        return Collections.unmodifiableCollection(REMOTE_USERS.values());
+    }
+
+    /**
+     * Adds a user that has been introduced by a link.
+     * @param user The user
+     * @return <code>false</code> if another user has the nickname, or another remote user the ID
+     */
+    public static boolean addUser(RemoteClient user) {
+
+        if (REMOTE_USERS.putIfAbsent(user.getId(), user) != null) {
+            return false;
+        }
+
+        if (!ConnectionPool.reserveNickname(user, user.getNickname())) {
+
+            REMOTE_USERS.remove(user.getId(), user);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes a remote user from the network: its channels are told it quit,
+     * and so are all links but the one the quit came from.
+     * @param user The user
+     * @param reason The quit message
+     * @param source The link the quit came from, or <code>null</code>
+     */
+    public static void removeUser(RemoteClient user, String reason, ServerLink source) {
+
+        removeUser(user, reason, source, null);
+    }
+
+    /**
+     * Removes a remote user from the network, telling all links but two that it quit.
+     */
+    private static void removeUser(RemoteClient user, String reason, ServerLink source, ServerLink other) {
+
+        if (!REMOTE_USERS.remove(user.getId(), user)) {
+            return;     // Already gone
+        }
+
+        ConnectionPool.releaseNickname(user, user.getNickname());
+
+        leaveChannels(user, reason);
+        relay(":" + user.getId() + " QUIT :" + reason, source, other);
+    }
+
+    /**
+     * Removes a local user that disconnected from the network.
+     * @param client The user
+     * @param reason The quit message
+     */
+    public static void quit(Client client, String reason) {
+
+        LOCAL_USERS.remove(client.getId(), client);
+
+        leaveChannels(client, reason);
+        relay(client, "QUIT :" + reason);
+    }
+
+    /**
+     * Removes a user from all its channels, telling the local members that it quit.
+     * @param user The user
+     * @param reason The quit message
+     */
+    public static void leaveChannels(Client user, String reason) {
+
+        EncodedLine quit = new EncodedLine(":" + user.getDisplayHostmask() + " QUIT :" + reason);
+
+        for (Membership membership: user.getMemberships()) {
+
+            Channel channel = membership.getChannel();
+
+            channel.removeClient(user);
+            channel.send(quit);
+        }
+    }
+
+    /**
+     * Kills a remote user. The kill is sent towards the server of the user,
+     * every other link but the one the kill came from is told that the user quit.
+     * @param user The user
+     * @param reason The reason for the kill
+     * @param source The link the kill came from, or <code>null</code>
+     */
+    public static void kill(RemoteClient user, String reason, ServerLink source) {
+
+        if (user.getLink() != source) {
+            user.getLink().relay("KILL " + user.getId() + " :" + reason);
+        }
+
+        // Neither the server of the user nor the one that sent the kill need the quit
+        removeUser(user, "Killed: " + reason, user.getLink(), source);
+    }
+
+    /**
+     * Removes all users that are behind a link that has been lost.
+     * @param link The link
+     */
+    public static void split(ServerLink link) {
+
+        String reason = HOST + " " + link.getCommonName();
+        int lost = 0;
+
+        for (RemoteClient user: REMOTE_USERS.values()) {
+
+            if (user.getLink() == link) {
+
+                removeUser(user, reason, link);
+                lost++;
+            }
+        }
+
+        SharedData.logger.info(String.format("Netsplit %s: %s users lost", reason, lost));
+    }
+
+    /**
+     * Introduces a local user that just registered to all linked servers.
+     * @param client The user
+     */
+    public static void introduce(Client client) {
+
+        LOCAL_USERS.put(client.getId(), client);
+        relay(introduction(client), null);
+    }
+
+    /**
+     * Returns the line that introduces a user to a linked server.
+     * @param client The user, on this or on another server
+     * @return The line
+     */
+    public static String introduction(Client client) {
+
+        String server = HOST;
+        int hops = 1;
+
+        if (client instanceof RemoteClient) {
+
+            server = ((RemoteClient) client).getServer();
+            hops = ((RemoteClient) client).getHops() + 1;
+        }
+
+        return "UID " + client.getNickname() + " " + hops + " " + client.getDisplayUsername() + " " + client.getHostname()
+                + " " + server + " +" + client.flags() + " " + client.getId() + " :" + client.getRealname();
+    }
+
+    /**
+     * Returns the member of a membership line: the ID with <code>@</code> for ops and <code>+</code> for voice.
+     * @param channel The channel
+     * @param client The member
+     * @return The member with its status
+     */
+    public static String member(Channel channel, Client client) {
+
+        Membership membership = client.getMembership(channel);
+
+        if (membership == null) {
+            return client.getId();
+        } else if (membership.isOp()) {
+            return "@" + client.getId();
+        } else if (membership.isVoiced()) {
+            return "+" + client.getId();
+        }
+
+        return client.getId();
+    }
+
+    /**
+     * Replaces the target of a line, the parameter after the command, e.g. to
+     * address a reply to the ID instead of the nickname of a user.
+     * @param line The line, with or without prefix
+     * @param target The new target
+     * @return The line with the new target, or the line itself if it has no parameters
+     */
+    public static String readdress(String line, String target) {
+
+        int commandStart = (line.startsWith(":")) ? line.indexOf(' ') + 1 : 0;
+        int targetStart = (line.startsWith(":") && commandStart == 0) ? 0 : line.indexOf(' ', commandStart) + 1;
+
+        if (targetStart == 0 || line.startsWith(":", targetStart)) {
+            return line;
+        }
+
+        int targetEnd = line.indexOf(' ', targetStart);
+
+        return line.substring(0, targetStart) + target + ((targetEnd < 0) ? "" : line.substring(targetEnd));
+    }
+
+    /**
+     * Tells all linked servers that a local user joined a channel.
+     * @param channel The channel
+     * @param client The user
+     */
+    public static void relayJoin(Channel channel, Client client) {
+
+        relay(":" + HOST + " NJOIN " + channel.getName() + " :" + member(channel, client), null);
+    }
+
+    /**
+     * Relays a change made by a local user to all linked servers.
+     * @param source The user
+     * @param line The command, without prefix
+     */
+    public static void relay(Client source, String line) {
+
+        relay(":" + source.getId() + " " + line, null);
+    }
+
+    /**
+     * Relays a message of a local user to a channel to the linked servers with members in the channel.
+     * @param source The user
+     * @param channel The channel
+     * @param line The command, without prefix
+     */
+    public static void relayToChannel(Client source, Channel channel, String line) {
+
+        relayToChannel(channel, ":" + source.getId() + " " + line, null);
+    }
+
+    /**
+     * Sends a line to all registered links.
+     * @param line The line
+     * @param source The link the line came from, which doesn't get it back, or <code>null</code>
+     */
+    public static void relay(String line, ServerLink source) {
+
+        relay(line, source, null);
+    }
+
+    /**
+     * Sends a line to all registered links but two.
+     * @param line The line
+     * @param source The link the line came from, or <code>null</code>
+     * @param other Another link that doesn't get the line, or <code>null</code>
+     */
+    public static void relay(String line, ServerLink source, ServerLink other) {
+
+        for (ServerLink link: ConnectionPool.LINKS.getConnections()) {
+
+            if (link != source && link != other && link.isRegistered()) {
+                link.relay(line);
+            }
+        }
+    }
+
+    /**
+     * Sends a line to the links with members in a channel.
+     * @param channel The channel
+     * @param line The line
+     * @param source The link the line came from, which doesn't get it back, or <code>null</code>
+     */
+    public static void relayToChannel(Channel channel, String line, ServerLink source) {
+
+        for (ServerLink link: channel.getLinks()) {
+
+            if (link != source) {
+                link.relay(line);
+            }
+        }
+    }
+
+    /**
+     * Sends everything this server knows to a link that just registered.
+     * @param link The link
+     */
+    public static void burst(ServerLink link) {
+
+        Netburst.start(link);
+    }
+}
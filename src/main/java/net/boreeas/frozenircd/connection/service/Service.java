@@ -17,14 +17,14 @@ package net.boreeas.frozenircd.connection.service;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.IOException;
 import java.net.Socket;
-import java.util.UUID;
 import net.boreeas.frozenircd.config.ConfigData;
 import net.boreeas.frozenircd.config.ConfigKey;
 import net.boreeas.frozenircd.command.Reply;
 import net.boreeas.frozenircd.utils.SharedData;
 import net.boreeas.frozenircd.connection.Connection;
+import net.boreeas.frozenircd.connection.ConnectionClass;
+import net.boreeas.frozenircd.connection.EncodedLine;
 
 /**
  *
@@ -32,13 +32,15 @@ import net.boreeas.frozenircd.connection.Connection;
  */
 public class Service extends Connection {
     
+    private static final int SENDQ = Integer.parseInt(ConfigData.getFirstConfigOption(ConfigKey.SENDQ_SERVICE));
+    
     
     public final String nick;
     public final String visibility;
     public final String type;
     
     
-    public Service(Socket socket, BufferedWriter writer, BufferedReader reader, String nick, String visibility, String type, UUID uuid) {
+    public Service(Socket socket, BufferedWriter writer, BufferedReader reader, String nick, String visibility, String type) {
         
         this.socket = socket;
         this.writer = writer;
@@ -47,23 +49,33 @@ public class Service extends Connection {
         this.nick = nick;
         this.visibility = visibility;
         this.type = type;
-        
-        this.uuid = uuid;
     }
     
+    /**
+     * Services are in the class set by <code>class.service</code>.
+     * @return The connection class of services
+     */
+    @Override
+    protected ConnectionClass defaultConnectionClass() {
+
+        return ConnectionClass.forServices();
+    }
+
     public void send(String line) {
         
-        try {
-            
-            SharedData.logger.trace("[-> {0}] {1}", new Object[]{socket.getInetAddress(), line});
-            
-            writer.write(String.format(":%s %s\r\n", ConfigData.getFirstConfigOption(ConfigKey.HOST), line));
-            writer.flush();
-        } catch (IOException ioe) {
+        SharedData.logger.trace("[-> {0}] {1}", new Object[]{socket.getInetAddress(), line});
             
-            SharedData.logger.error(String.format("Could not write to %s, closing connection", socket.getInetAddress()), ioe);
-            disconnect(ioe.getMessage());
-        }
+        write(String.format(":%s %s", ConfigData.getFirstConfigOption(ConfigKey.HOST), line));
+    }
+
+    /**
+     * Services get every line with the server prefix, so shared lines are re-encoded.
+     * @param line The line to send
+     */
+    @Override
+    public void send(EncodedLine line) {
+        
+        send(line.toString());
     }
 
     @Override
@@ -78,6 +90,12 @@ public class Service extends Connection {
         SharedData.logger.info("Service {0} at {1} disconnected.", new Object[]{nick, this});
     }
 
+    @Override
+    protected int getSendQueueLimit() {
+        
+        return SENDQ;
+    }
+    
     @Override
     public String getCommonName() {
         
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.utils;
+
+/**
+ * The rules by which nicknames and channel names are compared regardless of
+ * case, as advertised by <code>CASEMAPPING</code> in <code>RPL_ISUPPORT</code>:
+ * <ul>
+ * <li><code>ascii</code> - only <code>A-Z</code> are the upper case of <code>a-z</code></li>
+ * <li><code>rfc1459</code> - also <code>[]\^</code> are the upper case of <code>{}|~</code></li>
+ * <li><code>strict-rfc1459</code> - also <code>[]\</code> are the upper case of <code>{}|</code></li>
+ * </ul>
+ * Each mapping is a table of 256 characters, characters above that are
+ * never folded.
+ * @author Boreeas
+ */
+public enum CaseMapping {
+
+    ASCII           ("ascii", ""),
+    RFC1459         ("rfc1459", "[]\\^"),
+    STRICT_RFC1459  ("strict-rfc1459", "[]\\");
+
+    private final String name;
+    private final char[] table = new char[256];
+
+    private CaseMapping(String name, String specials) {
+
+        this.name = name;
+
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (i >= 'A' && i <= 'Z') ? (char) (i + 'a' - 'A') : (char) i;
+        }
+
+        // {|}~ are [\]^ with the lower case bit set
+        for (char c: specials.toCharArray()) {
+            table[c] = (char) (c + 'a' - 'A');
+        }
+    }
+
+    /**
+     * Returns the mapping with the given name.
+     * @param name The name, as in <code>CASEMAPPING</code>
+     * @return The mapping
+     * @throws IllegalArgumentException If there is no mapping with that name
+     */
+    public static CaseMapping forName(String name) {
+
+        for (CaseMapping mapping: values()) {
+
+            if (mapping.name.equalsIgnoreCase(name)) {
+                return mapping;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown casemapping: " + name);
+    }
+
+    /**
+     * Returns the name of this mapping, as in <code>CASEMAPPING</code>.
+     * @return The name
+     */
+    public String getName() {
+
+        return name;
+    }
+
+    /**
+     * Returns the lower case of a character.
+     * @param c The character
+     * @return The lower case character
+     */
+    public char fold(char c) {
+
+        return (c < table.length) ? table[c] : c;
+    }
+
+    /**
+     * Returns the lower case of a string. Strings that are lower case already
+     * are returned as they are, others are copied once.
+     * @param string The string
+     * @return The lower case string
+     */
+    public String fold(String string) {
+
+        int length = string.length();
+        int i = 0;
+
+        while (i < length && fold(string.charAt(i)) == string.charAt(i)) {
+            i++;
+        }
+
+        if (i == length) {
+            return string;
+        }
+
+        char[] folded = new char[length];
+        string.getChars(0, length, folded, 0);
+
+        for (; i < length; i++) {
+            folded[i] = fold(folded[i]);
+        }
+
+        return new String(folded);
+    }
+
+    /**
+     * Compares two strings regardless of case, without copying them.
+     * @param first The first string
+     * @param second The second string
+     * @return <code>true</code> if the strings are equal regardless of case
+     */
+    public boolean equals(String first, String second) {
+
+        if (first.length() != second.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < first.length(); i++) {
+
+            if (fold(first.charAt(i)) != fold(second.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
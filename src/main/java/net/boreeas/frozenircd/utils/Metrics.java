@@ -0,0 +1,236 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime metrics of the server, reported to opers via <code>STATS z</code>.
+ * Every metric keeps a count, a total, a maximum and a power-of-two histogram
+ * of the recorded values.
+ * @author Boreeas
+ */
+public enum Metrics {
+
+    /**
+     * The number of lines processed per read wakeup of a connection.
+     */
+    INPUT_LINES_PER_WAKEUP,
+
+    /**
+     * The number of times a connection exhausted its input budget.
+     */
+    INPUT_THROTTLED,
+
+    /**
+     * The delay in milliseconds put on the input of a connection each time it exhausted its input budget.
+     */
+    INPUT_LAG_MILLIS,
+
+    /**
+     * The number of connections dropped for exceeding their receive queue limit while lagged.
+     */
+    RECVQ_EXCEEDED,
+
+    /**
+     * The number of input lines dropped for exceeding the maximum line length.
+     */
+    INPUT_OVERSIZE_LINES,
+
+    /**
+     * The number of lines queued for a connection when a flush starts.
+     */
+    OUTPUT_QUEUE_DEPTH,
+
+    /**
+     * The number of bytes written to a connection per flush.
+     */
+    OUTPUT_BYTES_PER_FLUSH,
+
+    /**
+     * The number of connections dropped for exceeding their send queue limit.
+     */
+    SENDQ_EVICTIONS,
+
+    /**
+     * The peak send queue size in bytes of each closed connection.
+     */
+    SENDQ_PEAK,
+
+    /**
+     * The time in milliseconds from accepting a TLS connection to the end of its handshake.
+     */
+    TLS_HANDSHAKE_MILLIS,
+
+    /**
+     * The time in milliseconds the delegated tasks of a handshake took, including the wait for a worker.
+     */
+    TLS_HANDSHAKE_TASK_MILLIS,
+
+    /**
+     * The number of failed or rejected TLS handshakes.
+     */
+    TLS_HANDSHAKE_FAILURES,
+
+    /**
+     * The time in milliseconds a host name lookup (PTR and forward confirmation) took.
+     */
+    DNS_LOOKUP_MILLIS,
+
+    /**
+     * The number of host name lookups answered from the cache.
+     */
+    DNS_CACHE_HITS,
+
+    /**
+     * The number of host name lookups that joined a query already running for the same address.
+     */
+    DNS_JOINED_LOOKUPS,
+
+    /**
+     * The number of addresses without a forward-confirmed host name.
+     */
+    DNS_UNRESOLVED,
+
+    /**
+     * The number of clients that got their address because the lookup took too long.
+     */
+    DNS_DEADLINE_EXPIRED,
+
+    /**
+     * The time in milliseconds an ident query took, whatever its outcome.
+     */
+    IDENT_MILLIS,
+
+    /**
+     * The number of ident queries that returned a user name.
+     */
+    IDENT_SUCCESS,
+
+    /**
+     * The number of ident queries that were refused, failed or returned no valid user name.
+     */
+    IDENT_REFUSED,
+
+    /**
+     * The number of ident queries that were still running at their deadline.
+     */
+    IDENT_TIMEOUT,
+
+    /**
+     * The number of connections rejected for connecting too fast from their source.
+     */
+    ADMISSION_THROTTLED,
+
+    /**
+     * The number of connections rejected for having too many connections open from their source.
+     */
+    ADMISSION_TOO_MANY_FROM_HOST,
+
+    /**
+     * The number of connections rejected because the server had its maximum number of clients.
+     */
+    ADMISSION_SERVER_FULL,
+
+    /**
+     * The number of connections rejected because every source in their slot of the table had connections.
+     */
+    ADMISSION_TABLE_FULL;
+
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Counts a single occurrence.
+     */
+    public void inc() {
+
+        record(1);
+    }
+
+    /**
+     * Records a value. Negative values, e.g. durations measured across a step
+     * of the wall clock, are recorded as 0.
+     * @param value The value to record
+     */
+    public void record(long value) {
+
+        value = Math.max(0, value);
+
+        count.incrementAndGet();
+        total.addAndGet(value);
+        histogram.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long total() {
+        return total.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns an upper bound for the given percentile of the recorded values.
+     * @param percentile The percentile, between 0 and 100
+     * @return The upper bound of the histogram bucket the percentile falls into
+     */
+    public long percentile(int percentile) {
+
+        long needed = (count.get() * percentile + 99) / 100;
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+
+            seen += histogram.get(i);
+            if (seen >= needed && seen > 0) {
+                return (i == 0) ? 0 : (1L << i) - 1;
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Returns a one-line summary of this metric.
+     * @return The summary
+     */
+    public String summary() {
+
+        long currentCount = count.get();
+        long mean = (currentCount == 0) ? 0 : total.get() / currentCount;
+
+        return String.format("%s count=%s total=%s mean=%s p50<=%s p99<=%s max=%s", name(), currentCount, total.get(),
+                             mean, percentile(50), percentile(99), max.get());
+    }
+}
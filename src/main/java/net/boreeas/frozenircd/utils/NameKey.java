@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.utils;
+
+/**
+ * A nickname or channel name as a map key. The name is folded with the
+ * casemapping of the server and hashed once, when the key is created, so
+ * maps keyed on names never fold a name twice. Keep the key of a user or
+ * channel around instead of creating a new one for every lookup.
+ * @author Boreeas
+ */
+public final class NameKey {
+
+    private final String name;
+    private final String folded;
+    private final int hash;
+
+    private NameKey(String name, String folded) {
+
+        this.name = name;
+        this.folded = folded;
+        this.hash = folded.hashCode();
+    }
+
+    /**
+     * Creates the key of a name, folded with the casemapping of the server.
+     * @param name The name
+     * @return The key
+     */
+    public static NameKey of(String name) {
+
+        return of(name, SharedData.caseMapping);
+    }
+
+    /**
+     * Creates the key of a name.
+     * @param name The name
+     * @param mapping The casemapping to fold the name with
+     * @return The key
+     */
+    public static NameKey of(String name, CaseMapping mapping) {
+
+        return new NameKey(name, mapping.fold(name));
+    }
+
+    /**
+     * Returns the name the key was created from.
+     * @return The name
+     */
+    public String getName() {
+
+        return name;
+    }
+
+    /**
+     * Returns the lower case name.
+     * @return The folded name
+     */
+    public String getFolded() {
+
+        return folded;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (o == this) {
+            return true;
+        }
+
+        if (!(o instanceof NameKey)) {
+            return false;
+        }
+
+        NameKey other = (NameKey) o;
+        return other.hash == hash && other.folded.equals(folded);
+    }
+
+    @Override
+    public int hashCode() {
+
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+
+        return name;
+    }
+}
@@ -20,13 +20,18 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.regex.Pattern;
 import net.boreeas.frozenircd.command.ClientCommandParser;
+import net.boreeas.frozenircd.command.ServerCommandParser;
+import net.boreeas.frozenircd.command.ParsedMessage;
 import net.boreeas.frozenircd.command.Reply;
 import net.boreeas.frozenircd.connection.client.Client;
 import net.boreeas.frozenircd.connection.server.ServerInputHandler;
 import net.boreeas.frozenircd.connection.server.ServerLink;
+import net.boreeas.frozenircd.connection.server.ServerProtocol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import static net.boreeas.frozenircd.config.ConfigData.*;
@@ -52,6 +57,11 @@ public class SharedData {
      */
     public static final String BUILD_IDENTIFIER = "frozen001a";
 
+    /**
+     * The charset used on the wire.
+     */
+    public static final Charset CHARSET = StandardCharsets.UTF_8;
+
     /**
      * The public logger object to be used by every class.
      */
@@ -64,37 +74,60 @@ public class SharedData {
 
         public void onInput(ServerLink link, String input) {
 
-            logger.trace("[{0} ->] {1}", new Object[]{link, input});
+            ParsedMessage message = new ParsedMessage();
+            byte[] line = input.getBytes(CHARSET);
+
+            if (message.parse(line, 0, line.length)) {
+                onServerCommand(link, message);
+            }
         }
 
         public void onLink(ServerLink link) {
 
-            logger.trace("Server {0} linked", link);
+            ServerProtocol.burst(link);
         }
 
         public void onDisconnect(ServerLink link) {
 
-            logger.trace("Server {0} delinked", link);
+            ServerProtocol.split(link);
         }
     };
 
     // TODO remove this - This belongs in ClientCommandParser
-    public static void onClientCommand(Client client, String command, String[] args) {
-
-        command = command.trim();
+    public static void onClientCommand(Client client, ParsedMessage message) {
 
         try {
 
-            ClientCommandParser.parseClientCommand(command, client, args);
+            ClientCommandParser.parseClientCommand(client, message);
         } catch (Exception ex) {
 
-            client.sendStandardFormat(Reply.ERR_UNKNOWNERROR.format(client.getSafeNickname(), command));
+            client.sendStandardFormat(Reply.ERR_UNKNOWNERROR.format(client.getSafeNickname(), message.command()));
 
             logger.error(String.format("Unhandled exception during command handling.\n"
                     + "\tCommand: %s\n"
                     + "\tWith args: %s\n"
                     + "\tIssued by:%s (%s)\n"
-                    + "Caused by:", command, Arrays.toString(args), client.getHostmask(), client), ex);
+                    + "Caused by:", message.command(), Arrays.toString(message.params()), client.getHostmask(), client), ex);
+        }
+    }
+
+
+
+    public static void onServerCommand(ServerLink link, ParsedMessage message) {
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("[→ " + link + "] " + message);
+        }
+
+        try {
+
+            ServerCommandParser.parseServerCommand(link, message);
+        } catch (Exception ex) {
+
+            logger.error(String.format("Unhandled exception during server command handling.\n"
+                    + "\tLine: %s\n"
+                    + "\tFrom link: %s\n"
+                    + "Caused by:", message, link), ex);
         }
     }
 
@@ -105,6 +138,11 @@ public class SharedData {
      */
     public static final boolean passwordNeeded = getFirstConfigOption(USING_PASS).equalsIgnoreCase("true");
 
+    /**
+     * Determines whether connections are served by event loops instead of a thread per connection
+     */
+    public static final boolean nonBlockingIO = getFirstConfigOption(IO_MODE).equalsIgnoreCase("nio");
+
     /**
      * Determines whether opers can set modes for other users and modes for channels they are not part of.
      */
@@ -115,6 +153,11 @@ public class SharedData {
      */
     public static final boolean operCanMsgChan = getFirstConfigOption(OPER_CANMSGCHAN).equalsIgnoreCase("true");
 
+    /**
+     * The rules by which nicknames and channel names are compared regardless of case
+     */
+    public static final CaseMapping caseMapping = CaseMapping.forName(getFirstConfigOption(CASEMAPPING));
+
     /**
      * The pattern that nicknames must adhere to
      */
@@ -148,31 +191,32 @@ public class SharedData {
 
     /**
      * Returns the lowercase version of <code>string</code> with the
-     * @param string
-     * @return
+     * casemapping of the server. Use a {@link NameKey} to fold a name only once.
+     * @param string The string
+     * @return The lower case string
      */
     public static String toLowerCase(String string) {
 
-        return string.toLowerCase().replace('[', '{').replace(']', '}').replace('\\', '|').replace('~', '^');
+        return caseMapping.fold(string);
     }
 
+    /**
+     * Compares two names regardless of case, with the casemapping of the server.
+     * @param first The first name
+     * @param second The second name
+     * @return <code>true</code> if both are <code>null</code> or equal regardless of case
+     */
     public static boolean stringsEqual(String first, String second) {
 
-
         if (first == second) {
             return true;
         }
 
-        if ((first == null && second != null) || (first != null && second == null)) {
-            return false;
-        }
-
-
-        if (first.length() != second.length()) {
+        if (first == null || second == null) {
             return false;
         }
 
-        return toLowerCase(first).equals(toLowerCase(second));
+        return caseMapping.equals(first, second);
     }
 
     /**
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+
+/**
+ * Starts the per-connection threads of the server. If <code>threads.virtual</code>
+ * is set and the JVM supports virtual threads, those are used instead of platform
+ * threads. Virtual threads are looked up reflectively, so the server still runs on
+ * JVMs without them.
+ * @author Boreeas
+ */
+public final class Threads {
+
+    // Utility class private constructor
+    private Threads() {}
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderUnstarted = null;
+
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            // Virtual threads are not available on this JVM
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+    }
+
+    /**
+     * Determines whether per-connection threads are virtual threads
+     */
+    public static final boolean virtual = useVirtualThreads();
+
+    /**
+     * Creates and starts a new thread.
+     * @param name The name of the thread
+     * @param task The task to run
+     * @param daemon Whether a platform thread should be a daemon thread. Virtual threads are always daemon threads.
+     * @return The started thread
+     */
+    public static Thread start(String name, Runnable task, boolean daemon) {
+
+        Thread thread = newThread(name, task, daemon);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Creates a new thread without starting it.
+     * @param name The name of the thread
+     * @param task The task to run
+     * @param daemon Whether a platform thread should be a daemon thread. Virtual threads are always daemon threads.
+     * @return The new thread
+     */
+    public static Thread newThread(String name, Runnable task, boolean daemon) {
+
+        if (virtual) {
+
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException ex) {
+                SharedData.logger.error("Unable to create virtual thread, falling back to platform thread", ex);
+            }
+        }
+
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+
+    /**
+     * Returns a thread factory for executors, naming its threads <code>prefix[n]</code>.
+     * @param prefix The prefix of the thread names
+     * @param daemon Whether platform threads should be daemon threads
+     * @return The thread factory
+     */
+    public static ThreadFactory factory(final String prefix, final boolean daemon) {
+
+        final AtomicInteger counter = new AtomicInteger();
+
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable task) {
+                return Threads.newThread(prefix + "[" + counter.getAndIncrement() + "]", task, daemon);
+            }
+        };
+    }
+
+    private static boolean useVirtualThreads() {
+
+        if (!ConfigData.getFirstConfigOption(ConfigKey.VIRTUAL_THREADS).equalsIgnoreCase("true")) {
+            return false;
+        }
+
+        if (OF_VIRTUAL == null) {
+            SharedData.logger.warn("threads.virtual is set, but this JVM does not support virtual threads - using platform threads");
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A hashed timing wheel for the many coarse timers of the server, such as
+ * registration timeouts and pings. Scheduling and cancelling a timeout take
+ * constant time, no matter how many are pending.
+ * <p>
+ * The wheel advances one slot per tick. A timeout sits in the slot its
+ * deadline falls into, together with the number of full turns left until
+ * it is due. Timeouts fire up to one tick late, on the thread of the wheel,
+ * so their tasks must be short and must not block.
+ * <p>
+ * The wheel also keeps a coarse clock, updated every tick, that is cheaper
+ * to read than <code>System.currentTimeMillis()</code>.
+ * @author Boreeas
+ */
+public class TimingWheel extends Thread {
+
+    /**
+     * The wheel used by the server.
+     */
+    public static final TimingWheel INSTANCE = new TimingWheel(10, 4096);
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * Timeouts moved into the wheel per tick, so a burst of new timeouts
+     * can't keep the wheel from turning.
+     */
+    private static final int MAX_ADDED_PER_TICK = 100000;
+
+    private final long tickNanos;
+    private final int mask;
+    private final Slot[] wheel;
+
+    private final long startNanos = System.nanoTime();
+    private long tick = 0;
+
+    private volatile long clock = System.currentTimeMillis();
+
+    /**
+     * Timeouts waiting to be put into the wheel, or to be taken out of it.
+     * Everything else is only touched by the thread of the wheel.
+     */
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean interrupted = false;
+
+    /**
+     * Creates and starts a new wheel.
+     * @param tickMillis The length of a tick, which is also the resolution of the wheel and of its clock
+     * @param slots The number of slots, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int slots) {
+
+        super("TimingWheel");
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.mask = size - 1;
+        this.wheel = new Slot[size];
+
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Slot();
+        }
+
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Returns the current time of the coarse clock of the server wheel.
+     * @return The time in milliseconds, at most one tick behind <code>System.currentTimeMillis()</code>
+     */
+    public static long currentTimeMillis() {
+
+        return INSTANCE.clock;
+    }
+
+    /**
+     * Returns the current time of the coarse clock of this wheel.
+     * @return The time in milliseconds, at most one tick behind <code>System.currentTimeMillis()</code>
+     */
+    public long now() {
+
+        return clock;
+    }
+
+    /**
+     * Runs a task on the thread of this wheel after the given delay.
+     * @param task The task to run
+     * @param delayMillis The delay in milliseconds
+     * @return The timeout, which can be cancelled until it has fired
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+
+        long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+
+        Timeout timeout = new Timeout(this, task, deadline);
+        added.add(timeout);
+
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+
+        while (!interrupted) {
+
+            waitForNextTick();
+            clock = System.currentTimeMillis();
+
+            removeCancelled();
+            transferAdded();
+            wheel[(int) (tick & mask)].expire();
+
+            tick++;
+        }
+    }
+
+    /**
+     * Stops the wheel. Pending timeouts don't fire anymore.
+     */
+    public void requestInterrupt() {
+
+        interrupted = true;
+        interrupt();
+    }
+
+    private void waitForNextTick() {
+
+        long deadline = tickNanos * (tick + 1);
+
+        while (!interrupted) {
+
+            long sleepNanos = deadline - (System.nanoTime() - startNanos);
+            if (sleepNanos <= 0) {
+                return;
+            }
+
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException ex) {
+                // Checked by the loop
+            }
+        }
+    }
+
+    private void removeCancelled() {
+
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+
+            if (timeout.slot != null) {
+                timeout.slot.remove(timeout);
+            }
+        }
+    }
+
+    private void transferAdded() {
+
+        for (int i = 0; i < MAX_ADDED_PER_TICK; i++) {
+
+            Timeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+
+            if (timeout.state != PENDING) {
+                continue;   // Cancelled before it made it into the wheel
+            }
+
+            // A deadline in the past goes into the current slot
+            long dueTick = Math.max(tick, timeout.deadlineNanos / tickNanos);
+
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            wheel[(int) (dueTick & mask)].add(timeout);
+        }
+    }
+
+
+    /**
+     * A task scheduled on the wheel.
+     */
+    public static final class Timeout {
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE
+                = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadlineNanos;
+
+        private volatile int state = PENDING;
+
+        // Only touched by the thread of the wheel
+        private long remainingRounds;
+        private Slot slot;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadlineNanos) {
+
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Cancels this timeout.
+         * @return <code>true</code> if the timeout was pending and won't fire anymore
+         */
+        public boolean cancel() {
+
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Tells whether this timeout has fired.
+         * @return <code>true</code> if the task has been run
+         */
+        public boolean isExpired() {
+
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+
+            if (!STATE.compareAndSet(this, PENDING, EXPIRED)) {
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                SharedData.logger.error("Unhandled exception in timer task", ex);
+            }
+        }
+    }
+
+    /**
+     * The timeouts of one slot of the wheel, as a doubly linked list.
+     */
+    private static final class Slot {
+
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+
+            timeout.slot = this;
+
+            if (tail == null) {
+                head = tail = timeout;
+            } else {
+
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.slot = null;
+        }
+
+        /**
+         * Fires every timeout of this slot that is due in the current round.
+         */
+        private void expire() {
+
+            Timeout timeout = head;
+
+            while (timeout != null) {
+
+                Timeout next = timeout.next;
+
+                if (timeout.remainingRounds <= 0) {
+
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.state == CANCELLED) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.utils;
+
+/**
+ * A token bucket that holds up to <code>capacity</code> tokens and refills at
+ * a fixed rate. Tokens are kept in thousandths so that fractional refills
+ * don't get lost between calls. Unless a time is given, the coarse clock
+ * of the timing wheel is used.
+ * @author Boreeas
+ */
+public class TokenBucket {
+
+    private static final long SCALE = 1000;
+
+    private final long capacity;
+    private final long refillPerSecond;
+
+    private long tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a new, full bucket.
+     * @param capacity The maximum number of tokens
+     * @param refillPerSecond The number of tokens added per second
+     */
+    public TokenBucket(int capacity, int refillPerSecond) {
+
+        this.capacity = capacity * SCALE;
+        this.refillPerSecond = refillPerSecond;
+        this.tokens = this.capacity;
+        this.lastRefill = TimingWheel.currentTimeMillis();
+    }
+
+    /**
+     * Takes tokens from the bucket if enough are available.
+     * @param amount The number of tokens to take
+     * @return <code>true</code> if the tokens were taken, <code>false</code> otherwise
+     */
+    public boolean tryTake(int amount) {
+
+        return tryTake(amount, TimingWheel.currentTimeMillis());
+    }
+
+    /**
+     * Takes tokens from the bucket if enough are available.
+     * @param amount The number of tokens to take
+     * @param now The current time in milliseconds
+     * @return <code>true</code> if the tokens were taken, <code>false</code> otherwise
+     */
+    public synchronized boolean tryTake(int amount, long now) {
+
+        refill(now);
+
+        if (tokens < amount * SCALE) {
+            return false;
+        }
+
+        tokens -= amount * SCALE;
+        return true;
+    }
+
+    /**
+     * Returns the time until the given number of tokens is available.
+     * @param amount The number of tokens
+     * @return The time in milliseconds, <code>0</code> if the tokens are available now
+     */
+    public long millisUntil(int amount) {
+
+        return millisUntil(amount, TimingWheel.currentTimeMillis());
+    }
+
+    /**
+     * Returns the time until the given number of tokens is available.
+     * @param amount The number of tokens
+     * @param now The current time in milliseconds
+     * @return The time in milliseconds, <code>0</code> if the tokens are available now
+     */
+    public synchronized long millisUntil(int amount, long now) {
+
+        refill(now);
+
+        long missing = amount * SCALE - tokens;
+        if (missing <= 0) {
+            return 0;
+        }
+
+        if (refillPerSecond <= 0) {
+            return Long.MAX_VALUE;
+        }
+
+        // Tokens are scaled by 1000, so this is the number of milliseconds (rounded up)
+        return (missing + refillPerSecond - 1) / refillPerSecond;
+    }
+
+    private void refill(long now) {
+
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        lastRefill = now;
+        tokens = Math.min(capacity, tokens + elapsed * refillPerSecond);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import junit.framework.TestCase;
+import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.utils.TimingWheel;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ChannelQueryTest extends TestCase {
+
+    public ChannelQueryTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Adds a channel with a number of members to the pool.
+     */
+    private static Channel channel(String name, int members) {
+
+        Channel channel = ChannelPool.addChannel(new Channel(name));
+
+        for (int i = 0; i < members; i++) {
+            channel.addClient(new Client() {});
+        }
+
+        return channel;
+    }
+
+    private static List<Channel> all(ChannelQuery query, int pageSize) {
+
+        List<Channel> results = new ArrayList<>();
+
+        for (List<Channel> page = query.next(pageSize); !page.isEmpty(); page = query.next(pageSize)) {
+            results.addAll(page);
+        }
+
+        return results;
+    }
+
+    @Override
+    protected void tearDown() {
+
+        for (Channel channel: ChannelPool.getChannels()) {
+            ChannelPool.removeChannel(channel.getName());
+        }
+    }
+
+    public void testMemberCount() {
+
+        Channel small = channel("#query-small", 2);
+        Channel large = channel("#query-large", 20);
+
+        List<Channel> results = all(ChannelQuery.parse(">10", TimingWheel.currentTimeMillis()), 100);
+        assertTrue(results.contains(large));
+        assertFalse(results.contains(small));
+
+        results = all(ChannelQuery.parse("<5", TimingWheel.currentTimeMillis()), 100);
+        assertTrue(results.contains(small));
+        assertFalse(results.contains(large));
+    }
+
+    public void testIndexFollowsMembers() {
+
+        Channel channel = channel("#query-grow", 1);
+        Client member = new Client() {};
+
+        assertTrue(all(ChannelQuery.parse(">1", TimingWheel.currentTimeMillis()), 100).isEmpty());
+
+        channel.addClient(member);
+        assertEquals(1, all(ChannelQuery.parse(">1", TimingWheel.currentTimeMillis()), 100).size());
+
+        channel.removeClient(member);
+        assertTrue(all(ChannelQuery.parse(">1", TimingWheel.currentTimeMillis()), 100).isEmpty());
+    }
+
+    public void testPagesResume() {
+
+        for (int i = 0; i < 25; i++) {
+            channel("#query-page" + i, i % 5);
+        }
+
+        List<Channel> results = all(ChannelQuery.parse(">0,#query-page*", TimingWheel.currentTimeMillis()), 3);
+        assertEquals(20, results.size());
+        assertEquals(20, new HashSet<>(results).size());
+    }
+
+    public void testTimesAndMasks() {
+
+        long now = TimingWheel.currentTimeMillis();
+        Channel topic = channel("#query-topic", 1);
+        channel("#query-none", 1);
+        topic.setTopic("hello");
+
+        List<Channel> results = all(ChannelQuery.parse("T<5", now), 100);
+        assertEquals(1, results.size());
+        assertSame(topic, results.get(0));
+
+        assertEquals(2, all(ChannelQuery.parse("C<5", now), 100).size());
+        assertEquals(0, all(ChannelQuery.parse("C>5", now), 100).size());
+        assertEquals(1, all(ChannelQuery.parse("#query-*,!*none", now), 100).size());
+        assertSame(topic, all(ChannelQuery.parse("#QUERY-topic", now), 100).get(0));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd;
+
+import junit.framework.TestCase;
+import net.boreeas.frozenircd.connection.client.Client;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class MembershipTest extends TestCase {
+
+    public MembershipTest(String testName) {
+        super(testName);
+    }
+
+    private static Client client(String nickname) {
+
+        Client client = new Client() {};
+        client.setNickname(nickname);
+        client.setUsername(nickname);
+        client.setHostname("example.com");
+
+        return client;
+    }
+
+    public void testMembershipFollowsChannel() {
+
+        Channel channel = new Channel("#member");
+        Client client = client("alice");
+
+        assertTrue(channel.addClient(client));
+        assertFalse(channel.addClient(client));
+
+        Membership membership = client.getMembership(channel);
+        assertNotNull(membership);
+        assertSame(channel, membership.getChannel());
+        assertTrue(client.isInChannel("#MEMBER"));
+
+        channel.removeClient(client);
+        assertNull(client.getMembership(channel));
+        assertTrue(client.getMemberships().isEmpty());
+    }
+
+    public void testStatus() {
+
+        Channel channel = new Channel("#status");
+        Client client = client("bob");
+        channel.addClient(client);
+
+        assertFalse(channel.isOp(client));
+        assertFalse(channel.isVoiced(client));
+
+        channel.voice(client);
+        assertTrue(channel.isVoiced(client));
+        assertFalse(channel.isOp(client));
+
+        channel.op(client);
+        channel.devoice(client);
+        assertTrue(channel.isOp(client));
+        assertTrue(channel.isVoiced(client));   // Op implies voice
+        assertEquals("@bob", channel.names());
+
+        channel.deop(client);
+        assertFalse(channel.isVoiced(client));
+        assertEquals("bob", channel.names());
+    }
+
+    public void testMuteFollowsMasksAndNick() {
+
+        Channel channel = new Channel("#mute");
+        Client client = client("carol");
+        channel.addClient(client);
+        Membership membership = client.getMembership(channel);
+
+        assertFalse(membership.isMuted());
+
+        channel.mute("carol!*@*", "server");
+        assertTrue(membership.isMuted());
+
+        client.setNickname("dave");
+        assertFalse(membership.isMuted());
+
+        channel.ban("*!*@example.com", "server");
+        assertTrue(membership.isMuted());
+
+        channel.unban("*!*@example.com");
+        assertFalse(membership.isMuted());
+    }
+}
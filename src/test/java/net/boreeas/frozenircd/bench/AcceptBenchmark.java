@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates a reconnect storm against a running server: a number of threads
+ * connect over and over, each waiting for the first byte from the server
+ * (the hostname lookup notice) before closing and connecting again. The time
+ * to the first byte covers the kernel accept queue, the accepting thread and
+ * the setup of the client.
+ * <p>
+ * Usage: <code>AcceptBenchmark &lt;host&gt; &lt;port&gt; &lt;connections&gt; [threads]</code>
+ * <p>
+ * Compare runs with different <code>listen.acceptors</code>,
+ * <code>listen.reuseport</code> and <code>listen.backlog</code> settings.
+ * @author Boreeas
+ */
+public class AcceptBenchmark {
+
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 3) {
+            System.err.println("Usage: AcceptBenchmark <host> <port> <connections> [threads]");
+            return;
+        }
+
+        final InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        final int connections = Integer.parseInt(args[2]);
+        int threads = (args.length > 3) ? Integer.parseInt(args[3]) : 64;
+
+        final long[] latencies = new long[connections];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < threads; i++) {
+
+            workers[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    int n;
+                    while ((n = next.getAndIncrement()) < connections) {
+
+                        long begin = System.nanoTime();
+
+                        try (Socket socket = new Socket()) {
+
+                            socket.setSoTimeout(TIMEOUT_MILLIS);
+                            socket.connect(address, TIMEOUT_MILLIS);
+
+                            InputStream input = socket.getInputStream();
+                            if (input.read() < 0) {
+                                throw new IOException("Closed before the first byte");
+                            }
+
+                            latencies[n] = System.nanoTime() - begin;
+                        } catch (IOException ex) {
+
+                            latencies[n] = -1;
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            }, "Connector[" + i + "]");
+
+            workers[i].start();
+        }
+
+        for (Thread worker: workers) {
+            worker.join();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] succeeded = new long[connections - failures.get()];
+        int count = 0;
+        for (long latency: latencies) {
+            if (latency >= 0) {
+                succeeded[count++] = latency;
+            }
+        }
+
+        Arrays.sort(succeeded);
+
+        System.out.printf("%s connections (%s threads) in %.2f s: %.0f accepts/s, %s failed%n",
+                          connections, threads, seconds, connections / seconds, failures.get());
+
+        if (succeeded.length > 0) {
+            System.out.printf("time to first byte: p50=%.2f ms p99=%.2f ms p99.9=%.2f ms max=%.2f ms%n",
+                              percentile(succeeded, 50), percentile(succeeded, 99), percentile(succeeded, 99.9),
+                              succeeded[succeeded.length - 1] / 1e6);
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+
+        int index = (int) Math.ceil(sorted.length * percentile / 100) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.boreeas.frozenircd.connection.ConnectionPool;
+import net.boreeas.frozenircd.connection.EncodedLine;
+import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * Measures the connection pool under contention: a number of threads
+ * connect and disconnect clients as fast as they can while other threads
+ * broadcast to all clients. Each broadcast is done twice per round, once
+ * over the live view of the pool and once over a filtered copy of it (the
+ * way the pool was iterated before), and the bytes allocated per broadcast
+ * are reported for both.
+ * <p>
+ * Usage: <code>ConnectionPoolBenchmark [clients] [churn threads] [broadcast threads] [seconds]</code>
+ * @author Boreeas
+ */
+public class ConnectionPoolBenchmark {
+
+    private static final EncodedLine LINE = new EncodedLine(":bench NOTICE * :connection pool benchmark");
+
+    private static final AtomicLong delivered = new AtomicLong();
+
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+
+        int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int churnThreads = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int broadcastThreads = (args.length > 2) ? Integer.parseInt(args[2]) : 2;
+        int seconds = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+
+        for (int i = 0; i < clients; i++) {
+            ConnectionPool.register(new BenchClient());
+        }
+
+        final AtomicLong churn = new AtomicLong();
+        final AtomicLong liveBroadcasts = new AtomicLong();
+        final AtomicLong liveAllocated = new AtomicLong();
+        final AtomicLong copyBroadcasts = new AtomicLong();
+        final AtomicLong copyAllocated = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(churnThreads + broadcastThreads);
+
+        for (int i = 0; i < churnThreads; i++) {
+
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    while (running) {
+
+                        BenchClient client = new BenchClient();
+                        ConnectionPool.register(client);
+                        ConnectionPool.unregister(client);
+                        churn.incrementAndGet();
+                    }
+
+                    done.countDown();
+                }
+            }, "Churn-" + i).start();
+        }
+
+        for (int i = 0; i < broadcastThreads; i++) {
+
+            new Thread(new Runnable() {
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void run() {
+
+                    long thread = Thread.currentThread().getId();
+
+                    while (running) {
+
+                        long before = allocatedBytes(thread);
+                        for (Client client: ConnectionPool.CLIENTS.getConnections()) {
+                            client.send(LINE);
+                        }
+                        liveAllocated.addAndGet(allocatedBytes(thread) - before);
+                        liveBroadcasts.incrementAndGet();
+
+                        before = allocatedBytes(thread);
+                        Set<Client> copy = ConnectionPool.CLIENTS.getConnections(SharedData.passAllFilter);
+                        for (Client client: copy) {
+                            client.send(LINE);
+                        }
+                        copyAllocated.addAndGet(allocatedBytes(thread) - before);
+                        copyBroadcasts.incrementAndGet();
+                    }
+
+                    done.countDown();
+                }
+            }, "Broadcast-" + i).start();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running = false;
+        done.await();
+
+        System.out.printf("%s clients, %s churn threads, %s broadcast threads, %s s%n",
+                          clients, churnThreads, broadcastThreads, seconds);
+        System.out.printf("connect/disconnect: %.0f per second%n", churn.get() / (double) seconds);
+        System.out.printf("broadcasts: %.1f per second, %.0f lines delivered per second%n",
+                          (liveBroadcasts.get() + copyBroadcasts.get()) / (double) seconds,
+                          delivered.get() / (double) seconds);
+        System.out.printf("bytes allocated per broadcast: %s over the live view, %s over a copy%n",
+                          liveAllocated.get() / Math.max(1, liveBroadcasts.get()),
+                          copyAllocated.get() / Math.max(1, copyBroadcasts.get()));
+        System.out.printf("clients left in the pool: %s%n", ConnectionPool.CLIENTS.size());
+
+        System.exit(0);
+    }
+
+    private static long allocatedBytes(long thread) {
+
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(thread);
+    }
+
+    /**
+     * A client that isn't connected to anything and counts the lines sent to it.
+     */
+    private static class BenchClient extends Client {
+
+        @Override
+        public void send(String line) {
+
+            delivered.incrementAndGet();
+        }
+
+        @Override
+        public void send(EncodedLine line) {
+
+            delivered.incrementAndGet();
+        }
+    }
+}
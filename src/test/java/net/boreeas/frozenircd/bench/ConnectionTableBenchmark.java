@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.bench;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.boreeas.frozenircd.connection.ConnectionTable;
+
+/**
+ * Compares the heap taken by connection keys in the pools: random UUIDs in
+ * two concurrent hash maps (the pool of all connections and the pool of
+ * their kind) against connection numbers in two {@link ConnectionTable}s.
+ * The connections themselves are left out, they are the same either way.
+ * Also times handing out the keys and looking connections up.
+ * <p>
+ * Usage: <code>ConnectionTableBenchmark [connections]</code>
+ * @author Boreeas
+ */
+public class ConnectionTableBenchmark {
+
+    private static final Object CONNECTION = new Object();
+
+    /**
+     * The pools keyed by UUID, with the UUIDs the connections would hold.
+     */
+    private static class UuidPools {
+
+        final ConcurrentMap<UUID, Object> all = new ConcurrentHashMap<>();
+        final ConcurrentMap<UUID, Object> kind = new ConcurrentHashMap<>();
+        final UUID[] keys;
+
+        UuidPools(int connections) {
+
+            keys = new UUID[connections];
+
+            for (int i = 0; i < connections; i++) {
+
+                keys[i] = UUID.randomUUID();
+                all.put(keys[i], CONNECTION);
+                kind.put(keys[i], CONNECTION);
+            }
+        }
+    }
+
+    /**
+     * The pools keyed by number, with the numbers the connections would hold.
+     */
+    private static class NumberPools {
+
+        final ConnectionTable<Object> all = new ConnectionTable<>();
+        final ConnectionTable<Object> kind = new ConnectionTable<>();
+        final long[] keys;
+
+        NumberPools(int connections) {
+
+            keys = new long[connections];
+
+            for (int i = 0; i < connections; i++) {
+
+                keys[i] = i;
+                all.put(keys[i], CONNECTION);
+                kind.put(keys[i], CONNECTION);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+        // Warm up, then measure
+        new UuidPools(connections);
+        new NumberPools(connections);
+
+        long base = usedHeap();
+        UuidPools uuids = new UuidPools(connections);
+        long uuidBytes = usedHeap() - base;
+
+        base = usedHeap();
+        NumberPools numbers = new NumberPools(connections);
+        long numberBytes = usedHeap() - base;
+
+        System.out.printf("%s connections%n", connections);
+        System.out.printf("UUID keys in two ConcurrentHashMaps: %s bytes (%s per connection)%n",
+                          uuidBytes, uuidBytes / connections);
+        System.out.printf("long keys in two ConnectionTables:   %s bytes (%s per connection)%n",
+                          numberBytes, numberBytes / connections);
+        System.out.printf("saved: %s bytes per 100k connections%n", (uuidBytes - numberBytes) * 100000 / connections);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            UUID.randomUUID();
+        }
+        double uuidNanos = (System.nanoTime() - start) / (double) connections;
+
+        int found = 0;
+        start = System.nanoTime();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < connections; i++) {
+                if (uuids.all.get(uuids.keys[(int) ((i * 7919L) % connections)]) != null) found++;
+            }
+        }
+        double mapLookup = (System.nanoTime() - start) / (10.0 * connections);
+
+        start = System.nanoTime();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < connections; i++) {
+                if (numbers.all.get(numbers.keys[(int) ((i * 7919L) % connections)]) != null) found++;
+            }
+        }
+        double tableLookup = (System.nanoTime() - start) / (10.0 * connections);
+
+        System.out.printf("UUID.randomUUID(): %.0f ns per connection%n", uuidNanos);
+        System.out.printf("lookup: %.1f ns by UUID, %.1f ns by number (%s found)%n", mapLookup, tableLookup, found);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+
+        for (int i = 0; i < 5; i++) {
+
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
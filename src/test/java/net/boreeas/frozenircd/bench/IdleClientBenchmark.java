@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Opens a number of clients against a running server, registers them and
+ * leaves them idle. Reports the registration rate and, if the pid of the
+ * server is given, its thread count and resident memory.
+ * <p>
+ * Usage: <code>IdleClientBenchmark &lt;host&gt; &lt;port&gt; &lt;clients&gt; [server pid]</code>
+ * <p>
+ * Run it once against a server with <code>threads.virtual = false</code> and
+ * once with <code>threads.virtual = true</code> (both with <code>io.mode = blocking</code>)
+ * to compare platform and virtual threads.
+ * @author Boreeas
+ */
+public class IdleClientBenchmark {
+
+    private static final int CONNECTS_IN_FLIGHT = 32;
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 3) {
+            System.err.println("Usage: IdleClientBenchmark <host> <port> <clients> [server pid]");
+            return;
+        }
+
+        InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        int clients = Integer.parseInt(args[2]);
+        String pid = (args.length > 3) ? args[3] : null;
+
+        report("before", pid);
+
+        List<SocketChannel> open = new ArrayList<>(clients);
+        Selector selector = Selector.open();
+
+        long start = System.nanoTime();
+        int started = 0;
+        int registered = 0;
+        int inFlight = 0;
+
+        while (registered < clients) {
+
+            while (inFlight < CONNECTS_IN_FLIGHT && started < clients) {
+
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(address);
+                channel.register(selector, SelectionKey.OP_CONNECT, new StringBuilder("b" + Integer.toString(started, 36)));
+
+                open.add(channel);
+                started++;
+                inFlight++;
+            }
+
+            selector.select(1000);
+
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+
+                SelectionKey key = selected.next();
+                selected.remove();
+
+                SocketChannel channel = (SocketChannel) key.channel();
+                StringBuilder state = (StringBuilder) key.attachment();
+
+                if (key.isConnectable()) {
+
+                    channel.finishConnect();
+
+                    String nick = state.toString();
+                    state.setLength(0);
+                    channel.write(ByteBuffer.wrap(String.format("NICK %s\r\nUSER %s 0 * :Idle client\r\n", nick, nick)
+                                                        .getBytes(StandardCharsets.UTF_8)));
+                    key.interestOps(SelectionKey.OP_READ);
+                } else if (key.isReadable()) {
+
+                    ByteBuffer buffer = ByteBuffer.allocate(4096);
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Server closed connection during registration");
+                    }
+
+                    state.append(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+
+                    if (state.indexOf(" 001 ") >= 0) {
+
+                        // Registered - stop listening, the client stays idle from here on
+                        key.cancel();
+                        registered++;
+                        inFlight--;
+                    }
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("registered %s clients in %.2f s (%.0f clients/s)%n", clients, seconds, clients / seconds);
+
+        // Let the per-client helper threads finish
+        Thread.sleep(5000);
+        report("idle", pid);
+
+        for (SocketChannel channel: open) {
+            channel.close();
+        }
+    }
+
+    private static void report(String phase, String pid) throws IOException {
+
+        if (pid == null) {
+            return;
+        }
+
+        String threads = "?";
+        String rss = "?";
+
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"))) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+
+                if (line.startsWith("Threads:")) {
+                    threads = line.substring(8).trim();
+                } else if (line.startsWith("VmRSS:")) {
+                    rss = line.substring(6).trim();
+                }
+            }
+        }
+
+        System.out.printf("%s: server threads=%s rss=%s%n", phase, threads, rss);
+    }
+}
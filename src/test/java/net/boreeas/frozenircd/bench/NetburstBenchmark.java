@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import net.boreeas.frozenircd.Channel;
+import net.boreeas.frozenircd.ChannelPool;
+import net.boreeas.frozenircd.connection.EncodedLine;
+import net.boreeas.frozenircd.connection.ConnectionPool;
+import net.boreeas.frozenircd.connection.client.Client;
+import net.boreeas.frozenircd.connection.server.ServerLink;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * Measures a netburst between two servers on this machine. This process
+ * plays the first server: it makes up a number of users and channels, links
+ * to a running second server and bursts them to it. The burst is done when
+ * the second server answers a <code>PING</code> sent right behind it, since
+ * it handles the lines of a link in order.
+ * <p>
+ * Usage: <code>NetburstBenchmark &lt;host&gt; &lt;link port&gt; &lt;password&gt; [users] [channels] [channels per user]</code>
+ * <p>
+ * Run it from a directory with a configuration whose <code>host</code>
+ * differs from the one of the second server. The bytes of the burst are
+ * compared with one <code>JOIN</code> line per membership, the way the
+ * memberships would be sent without <code>NJOIN</code>.
+ * @author Boreeas
+ */
+public class NetburstBenchmark {
+
+    private static final long TIMEOUT_SECONDS = 300;
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 3) {
+            System.err.println("Usage: NetburstBenchmark <host> <link port> <password> [users] [channels] [channels per user]");
+            return;
+        }
+
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String password = args[2];
+        int users = (args.length > 3) ? Integer.parseInt(args[3]) : 50000;
+        int channels = (args.length > 4) ? Integer.parseInt(args[4]) : 10000;
+        int channelsPerUser = (args.length > 5) ? Integer.parseInt(args[5]) : 3;
+
+        Random random = new Random(42);
+
+        Channel[] pool = new Channel[channels];
+        for (int i = 0; i < channels; i++) {
+
+            pool[i] = new Channel("#bench" + i);
+            ChannelPool.addChannel(pool[i]);
+        }
+
+        long memberships = 0;
+        long joinBytes = 0;
+
+        for (int i = 0; i < users; i++) {
+
+            BenchUser user = new BenchUser("u" + i);
+            ConnectionPool.register(user);
+
+            for (int j = 0; j < channelsPerUser; j++) {
+
+                // Skewed towards low numbers, so that there are a few large channels
+                Channel channel = pool[(int) (channels * Math.pow(random.nextDouble(), 2))];
+
+                if (channel.addClient(user)) {
+
+                    if (channel.size() == 1) {
+                        channel.op(user);
+                    }
+
+                    memberships++;
+                    joinBytes += (":" + user.getId() + " JOIN " + channel.getName() + "\r\n").length();
+                }
+            }
+        }
+
+        System.out.printf("%s users, %s channels, %s memberships%n", users, channels, memberships);
+
+        BenchLink link = new BenchLink(host, port, password);
+        ConnectionPool.register(link);
+
+        long start = System.nanoTime();
+        link.start();
+
+        while (!link.isRegistered() || link.isBursting()) {
+
+            if (link.isClosed() || System.nanoTime() - start > TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS)) {
+
+                System.err.println("Link closed or burst not sent in time");
+                System.exit(1);
+            }
+
+            Thread.sleep(1);
+        }
+
+        double queued = (System.nanoTime() - start) / 1e6;
+        link.sendPingRequest(BenchLink.TOKEN);
+
+        if (!link.pong.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+
+            System.err.println("Burst not acknowledged in time");
+            System.exit(1);
+        }
+
+        double applied = (link.pongTime - start) / 1e6;
+        String compression = link.getCompressionSummary();
+
+        System.out.printf("burst queued in %.1f ms, applied by the other server after %.1f ms%n", queued, applied);
+        System.out.printf("%s flushes, %s bytes per flush, peak send queue %s bytes%n",
+                          link.getFlushCount(), link.getBytesPerFlush(), link.getPeakSendQueueBytes());
+        System.out.printf("compression: %s%n", (compression == null) ? "off" : compression);
+        System.out.printf("memberships as JOIN lines would take %s bytes%n", joinBytes);
+
+        System.exit(0);
+    }
+
+    /**
+     * A registered user that isn't connected to anything.
+     */
+    private static class BenchUser extends Client {
+
+        BenchUser(String nickname) {
+
+            setNickname(nickname);
+            setUsername(nickname);
+            setHostname("bench.invalid");
+            setRealname("Netburst benchmark");
+        }
+
+        @Override
+        public void send(String line) {
+        }
+
+        @Override
+        public void send(EncodedLine line) {
+        }
+
+        @Override
+        public boolean registrationCompleted() {
+
+            return true;
+        }
+
+        @Override
+        public boolean rplWelcomeSent() {
+
+            return true;
+        }
+
+        @Override
+        public String getDisplayUsername() {
+
+            return getUsername();
+        }
+    }
+
+    /**
+     * A link that reports when the other server answers the benchmark's ping.
+     */
+    private static class BenchLink extends ServerLink {
+
+        static final String TOKEN = "netburst-benchmark";
+
+        final CountDownLatch pong = new CountDownLatch(1);
+        volatile long pongTime;
+
+        BenchLink(String host, int port, String password) throws IOException {
+
+            super(host, port, password);
+        }
+
+        @Override
+        protected void onInput(byte[] line, int offset, int length) {
+
+            String input = new String(line, offset, length, SharedData.CHARSET);
+
+            if (input.startsWith("PONG ") && input.endsWith(TOKEN)) {
+
+                pongTime = System.nanoTime();
+                pong.countDown();
+            }
+
+            super.onInput(line, offset, length);
+        }
+    }
+}
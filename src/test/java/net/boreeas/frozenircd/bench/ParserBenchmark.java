@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import net.boreeas.frozenircd.command.ParsedMessage;
+
+/**
+ * Compares the old split based parsing of client input with {@link ParsedMessage}.
+ * Both variants start from the raw bytes of a line and produce what the
+ * command handler consumes: the legacy path decodes the line, splits it and
+ * upper-cases the command, the new path parses in place and decodes only the
+ * parameters the handler reads.
+ * <p>
+ * Reports ns/op and, on JVMs that support it, allocated bytes/op. Each case
+ * is warmed up and then measured over several iterations; the best iteration
+ * is reported.
+ * <p>
+ * Usage: <code>ParserBenchmark [iterations] [ops per iteration]</code>
+ * @author Boreeas
+ */
+public class ParserBenchmark {
+
+    private static final byte[] PRIVMSG = bytes("PRIVMSG #frozenircd :did anyone look at the sendq numbers yet?");
+    private static final byte[] JOIN = bytes("JOIN #frozenircd,#java");
+    private static final byte[] MODE = bytes("MODE #frozenircd +ov alice bob");
+
+    /**
+     * Keeps results alive so the JIT cannot drop the work.
+     */
+    private static int sink;
+
+    public static void main(String[] args) {
+
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        int ops = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+
+        System.out.printf("%-8s %-8s %10s %10s%n", "line", "parser", "ns/op", "bytes/op");
+
+        run("PRIVMSG", PRIVMSG, iterations, ops);
+        run("JOIN", JOIN, iterations, ops);
+        run("MODE", MODE, iterations, ops);
+    }
+
+    private static void run(String name, byte[] line, int iterations, int ops) {
+
+        for (int legacy = 1; legacy >= 0; legacy--) {
+
+            // Warmup
+            for (int i = 0; i < iterations; i++) {
+                measure(name, line, legacy == 1, ops);
+            }
+
+            long bestTime = Long.MAX_VALUE;
+            long bestBytes = Long.MAX_VALUE;
+
+            for (int i = 0; i < iterations; i++) {
+
+                long[] result = measure(name, line, legacy == 1, ops);
+                bestTime = Math.min(bestTime, result[0]);
+                bestBytes = Math.min(bestBytes, result[1]);
+            }
+
+            System.out.printf("%-8s %-8s %10.1f %10s%n", name, (legacy == 1) ? "split" : "parsed",
+                              (double) bestTime / ops, (bestBytes < 0) ? "n/a" : Long.toString(bestBytes / ops));
+        }
+    }
+
+    private static long[] measure(String name, byte[] line, boolean legacy, int ops) {
+
+        ParsedMessage message = new ParsedMessage();
+
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ops; i++) {
+            sink += legacy ? legacy(line) : parsed(message, name, line);
+        }
+
+        long time = System.nanoTime() - start;
+        long bytesAfter = allocatedBytes();
+
+        return new long[] { time, (bytesBefore < 0) ? -1 : bytesAfter - bytesBefore };
+    }
+
+    /**
+     * The parsing formerly done in <code>Client.onInput</code> and
+     * <code>ClientCommandParser.parseClientCommand</code>.
+     */
+    private static int legacy(byte[] line) {
+
+        String input = new String(line, StandardCharsets.UTF_8);
+
+        String[] fields = input.split(" ", 2);
+        String[] args;
+
+        if (fields.length >= 2 && fields[1].trim().startsWith(":")) {
+            args = new String[] { fields[1].trim().substring(1) };
+        } else {
+
+            String[] toLastArg = new String[0];
+
+            if (fields.length > 1) {
+
+                toLastArg = fields[1].split(":", 2);
+
+                if (toLastArg.length == 1 && fields[1].contains(":")) {
+                    toLastArg = new String[] { toLastArg[0], "" };
+                }
+            }
+
+            String[] otherArgs = ( toLastArg.length > 0 )
+                                        ? toLastArg[0].split(" ")
+                                        : new String[0];
+
+            args = new String[otherArgs.length + (( toLastArg.length > 1 ) ? 1 : 0 )];
+
+            System.arraycopy(otherArgs, 0, args, 0, otherArgs.length);
+            if (toLastArg.length > 1) {
+                args[args.length - 1] = toLastArg[1];
+            }
+        }
+
+        String command = fields[0].toUpperCase();
+
+        return command.length() + args.length;
+    }
+
+    /**
+     * Parses in place and reads the parameters the way the handler of the command does.
+     */
+    private static int parsed(ParsedMessage message, String name, byte[] line) {
+
+        message.parse(line, 0, line.length);
+
+        switch (name) {
+
+            case "PRIVMSG":
+                // Target and text
+                return (message.commandEquals("PRIVMSG") ? 1 : 0) + message.param(0).length() + message.param(1).length();
+            case "JOIN":
+                // The channel list
+                return (message.commandEquals("JOIN") ? 1 : 0) + message.param(0).length();
+            default:
+                // The mode handler still takes all parameters
+                return (message.commandEquals("MODE") ? 1 : 0) + message.params().length;
+        }
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread so far.
+     * @return The number of bytes, or <code>-1</code> if the JVM does not support it
+     */
+    private static long allocatedBytes() {
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return -1;
+    }
+
+    private static byte[] bytes(String line) {
+
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+}
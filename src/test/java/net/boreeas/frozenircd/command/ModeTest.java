@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.command;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import net.boreeas.frozenircd.Channel;
+import net.boreeas.frozenircd.connection.EncodedLine;
+import net.boreeas.frozenircd.connection.client.Client;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ModeTest extends TestCase {
+
+    public ModeTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Keeps the lines sent to the client instead of sending them.
+     */
+    private static class RecordingClient extends Client {
+
+        final List<String> sent = new ArrayList<>();
+
+        RecordingClient(String nickname) {
+
+            setNickname(nickname);
+            setUsername(nickname);
+            setHostname("example.com");
+        }
+
+        @Override
+        public void send(String line) {
+
+            sent.add(line);
+        }
+
+        @Override
+        public void send(EncodedLine line) {
+
+            sent.add(line.toString());
+        }
+
+        /**
+         * Returns the numerics sent, with the server prefix removed.
+         */
+        List<String> replies(String numeric) {
+
+            List<String> replies = new ArrayList<>();
+
+            for (String line: sent) {
+
+                String reply = line.substring(line.indexOf(' ') + 1);
+                if (reply.startsWith(numeric + " ")) {
+                    replies.add(reply);
+                }
+            }
+
+            return replies;
+        }
+    }
+
+    public void testBanListStreamed() {
+
+        Channel channel = new Channel("#bans");
+        RecordingClient op = new RecordingClient("op");
+        channel.addClient(op);
+        channel.op(op);
+
+        for (int i = 0; i < 120; i++) {
+
+            String[] args = {"#bans", "+b", "user" + i + "!*@*"};
+            assertEquals(3, Mode.handleModeChange(Mode.CMODE_BANNED, op, channel, true, args, 2));
+        }
+
+        assertEquals(120, channel.banList().size());
+        op.sent.clear();
+
+        String[] args = {"#bans", "b"};
+        assertEquals(2, Mode.handleModeChange(Mode.CMODE_BANNED, op, channel, true, args, 2));
+
+        assertEquals(120, op.replies("367").size());
+        assertEquals(1, op.replies("368").size());
+
+        String last = op.sent.get(op.sent.size() - 1);
+        assertTrue(last, last.contains(" 368 op #bans "));
+    }
+
+    public void testBanNeedsOp() {
+
+        Channel channel = new Channel("#nobans");
+        RecordingClient member = new RecordingClient("member");
+        channel.addClient(member);
+
+        String[] args = {"#nobans", "+b", "someone!*@*"};
+        assertEquals(3, Mode.handleModeChange(Mode.CMODE_BANNED, member, channel, true, args, 2));
+
+        assertTrue(channel.banList().isEmpty());
+        assertEquals(1, member.replies("482").size());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.command;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ParsedMessageTest extends TestCase {
+
+    public ParsedMessageTest(String testName) {
+        super(testName);
+    }
+
+    public void testTrailingParameter() {
+
+        ParsedMessage message = parse("privmsg #chan :hello  world ");
+
+        assertTrue(message.commandEquals("PRIVMSG"));
+        assertEquals("PRIVMSG", message.command());
+        assertNull(message.prefix());
+        assertEquals(Arrays.asList("#chan", "hello  world "), Arrays.asList(message.params()));
+    }
+
+    public void testPrefixAndTags() {
+
+        ParsedMessage message = parse("@time=x :nick!u@h MODE #chan +o  nick");
+
+        assertEquals("nick!u@h", message.prefix());
+        assertTrue(message.commandEquals("MODE"));
+        assertEquals(Arrays.asList("#chan", "+o", "nick"), Arrays.asList(message.params()));
+    }
+
+    public void testEmptyTrailingParameter() {
+
+        ParsedMessage message = parse("TOPIC #chan :");
+
+        assertEquals(2, message.paramCount());
+        assertEquals("", message.param(1));
+    }
+
+    public void testParameterLimit() {
+
+        ParsedMessage message = parse("X 1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 16");
+
+        assertEquals(ParsedMessage.MAX_PARAMS, message.paramCount());
+        assertEquals("15 16", message.param(ParsedMessage.MAX_PARAMS - 1));
+    }
+
+    public void testReuse() {
+
+        ParsedMessage message = parse("JOIN #a,#b");
+        assertEquals("#a,#b", message.param(0));
+
+        byte[] line = "PING".getBytes(StandardCharsets.UTF_8);
+        assertTrue(message.parse(line, 0, line.length));
+        assertEquals(0, message.paramCount());
+
+        assertFalse("Blank line parsed as command", message.parse(new byte[] { ' ', ' ' }, 0, 2));
+    }
+
+    private static ParsedMessage parse(String line) {
+
+        // Embed the line in a larger buffer to check that offsets are honoured
+        byte[] raw = ("xx" + line + "yy").getBytes(StandardCharsets.UTF_8);
+
+        ParsedMessage message = new ParsedMessage();
+        assertTrue(message.parse(raw, 2, raw.length - 4));
+
+        return message;
+    }
+}
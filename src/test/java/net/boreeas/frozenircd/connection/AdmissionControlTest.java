@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import junit.framework.TestCase;
+import net.boreeas.frozenircd.connection.AdmissionControl.Verdict;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class AdmissionControlTest extends TestCase {
+
+    private static final long NOW = 1000000;
+
+    public AdmissionControlTest(String testName) {
+        super(testName);
+    }
+
+    public void testRate() throws Exception {
+
+        // 3 at once, then one every 10 seconds
+        AdmissionControl admission = new AdmissionControl(6, 3, 100, 1000, 32, 64, 1024);
+        InetAddress address = ip("192.0.2.1");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Verdict.ADMITTED, admission.admit(address, NOW));
+        }
+
+        assertEquals(Verdict.THROTTLED, admission.admit(address, NOW));
+        assertEquals(Verdict.THROTTLED, admission.admit(address, NOW + 9999));
+        assertEquals(Verdict.ADMITTED, admission.admit(address, NOW + 10000));
+
+        assertEquals("Other sources are not affected", Verdict.ADMITTED, admission.admit(ip("192.0.2.2"), NOW));
+    }
+
+    public void testMaxPerSource() throws Exception {
+
+        AdmissionControl admission = new AdmissionControl(600, 100, 2, 1000, 32, 64, 1024);
+        InetAddress address = ip("192.0.2.1");
+
+        assertEquals(Verdict.ADMITTED, admission.admit(address, NOW));
+        assertEquals(Verdict.ADMITTED, admission.admit(address, NOW));
+        assertEquals(Verdict.TOO_MANY_FROM_HOST, admission.admit(address, NOW));
+
+        admission.release(address);
+
+        assertEquals(1, admission.connectionsFrom(address));
+        assertEquals(Verdict.ADMITTED, admission.admit(address, NOW));
+    }
+
+    public void testServerFull() throws Exception {
+
+        AdmissionControl admission = new AdmissionControl(600, 100, 100, 3, 32, 64, 1024);
+
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(Verdict.ADMITTED, admission.admit(ip("192.0.2." + i), NOW));
+        }
+
+        assertEquals(Verdict.SERVER_FULL, admission.admit(ip("192.0.2.4"), NOW));
+
+        admission.release(ip("192.0.2.2"));
+
+        assertEquals(2, admission.clients());
+        assertEquals(Verdict.ADMITTED, admission.admit(ip("192.0.2.4"), NOW));
+    }
+
+    public void testNetworks() throws Exception {
+
+        AdmissionControl admission = new AdmissionControl(600, 100, 2, 1000, 24, 48, 1024);
+
+        assertEquals(Verdict.ADMITTED, admission.admit(ip("192.0.2.1"), NOW));
+        assertEquals(Verdict.ADMITTED, admission.admit(ip("192.0.2.200"), NOW));
+        assertEquals("Same /24", Verdict.TOO_MANY_FROM_HOST, admission.admit(ip("192.0.2.77"), NOW));
+        assertEquals(Verdict.ADMITTED, admission.admit(ip("192.0.3.1"), NOW));
+
+        assertEquals(Verdict.ADMITTED, admission.admit(ip("2001:db8:1:1::1"), NOW));
+        assertEquals(Verdict.ADMITTED, admission.admit(ip("2001:db8:1:2::1"), NOW));
+        assertEquals("Same /48", Verdict.TOO_MANY_FROM_HOST, admission.admit(ip("2001:db8:1:ffff::1"), NOW));
+        assertEquals(Verdict.ADMITTED, admission.admit(ip("2001:db8:2::1"), NOW));
+    }
+
+    public void testTableStaysBounded() throws Exception {
+
+        // A single bucket of 8 slots
+        AdmissionControl admission = new AdmissionControl(60, 1, 10, 100000, 32, 64, 8);
+
+        // Flood of sources that connect once and leave: each slot is reused
+        for (int i = 0; i < 5000; i++) {
+
+            InetAddress address = ip("10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF));
+
+            assertEquals(Verdict.ADMITTED, admission.admit(address, NOW + i));
+            admission.release(address);
+        }
+
+        // Sources with open connections are never dropped
+        for (int i = 1; i <= 8; i++) {
+            assertEquals(Verdict.ADMITTED, admission.admit(ip("198.51.100." + i), NOW + 10000));
+        }
+
+        assertEquals(Verdict.TABLE_FULL, admission.admit(ip("198.51.100.9"), NOW + 10000));
+        assertEquals(8, admission.clients());
+    }
+
+    private static InetAddress ip(String address) throws UnknownHostException {
+
+        return InetAddress.getByName(address);
+    }
+}
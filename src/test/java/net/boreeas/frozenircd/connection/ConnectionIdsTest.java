@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ConnectionIdsTest extends TestCase {
+
+    public ConnectionIdsTest(String testName) {
+        super(testName);
+    }
+
+    public void testFixedWidth() {
+
+        assertEquals("42XAAAAAA", ConnectionIds.format("42X", 0));
+        assertEquals("42XAAAAAB", ConnectionIds.format("42X", 1));
+        assertEquals("42XAAAABA", ConnectionIds.format("42X", 36));
+        assertEquals("42X999999", ConnectionIds.format("42X", 36L * 36 * 36 * 36 * 36 * 36 - 1));
+    }
+
+    public void testWrapAround() {
+
+        assertEquals(ConnectionIds.format("42X", 5), ConnectionIds.format("42X", 36L * 36 * 36 * 36 * 36 * 36 + 5));
+    }
+
+    public void testNextIsUnique() {
+
+        long number = ConnectionIds.nextNumber();
+        assertTrue(ConnectionIds.nextNumber() > number);
+
+        String first = ConnectionIds.forNumber(number);
+        String second = ConnectionIds.forNumber(number + 1);
+
+        assertTrue(first.startsWith(ConnectionIds.getServerId()));
+        assertEquals(first.length(), second.length());
+        assertFalse(first.equals(second));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import junit.framework.TestCase;
+import net.boreeas.frozenircd.connection.client.Client;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ConnectionPoolTest extends TestCase {
+
+    public ConnectionPoolTest(String testName) {
+        super(testName);
+    }
+
+    public void testReserveIsExclusive() {
+
+        Client first = new Client() {};
+        Client second = new Client() {};
+
+        assertTrue(ConnectionPool.reserveNickname(first, "Reserve[1]"));
+        assertTrue("Owner may reserve again", ConnectionPool.reserveNickname(first, "reserve{1}"));
+        assertFalse("Taken, ignoring case", ConnectionPool.reserveNickname(second, "RESERVE{1}"));
+
+        first.setNickname("Reserve[1]");
+        assertSame(first, ConnectionPool.findByNickname("reserve{1}"));
+
+        ConnectionPool.releaseNickname(first, "Reserve[1]");
+    }
+
+    public void testRenameReleasesOldNickname() {
+
+        Client client = new Client() {};
+
+        assertTrue(ConnectionPool.reserveNickname(client, "rename_old"));
+        client.setNickname("rename_old");
+
+        assertTrue(ConnectionPool.reserveNickname(client, "rename_new"));
+        client.setNickname("rename_new");
+
+        assertNull(ConnectionPool.findByNickname("rename_old"));
+        assertSame(client, ConnectionPool.findByNickname("rename_new"));
+
+        ConnectionPool.releaseNickname(client, "rename_new");
+        assertNull(ConnectionPool.findByNickname("rename_new"));
+    }
+
+    public void testReleaseKeepsOtherOwner() {
+
+        Client owner = new Client() {};
+        Client other = new Client() {};
+
+        assertTrue(ConnectionPool.reserveNickname(owner, "release_other"));
+        ConnectionPool.releaseNickname(other, "release_other");
+
+        assertSame(owner, ConnectionPool.findByNickname("release_other"));
+        ConnectionPool.releaseNickname(owner, "release_other");
+    }
+
+    public void testRegisterAddsToTypedPool() {
+
+        Client client = new Client() {};
+        int all = ConnectionPool.ALL.size();
+        int clients = ConnectionPool.CLIENTS.size();
+
+        ConnectionPool.register(client);
+        ConnectionPool.register(client);
+
+        assertEquals(all + 1, ConnectionPool.ALL.size());
+        assertEquals(clients + 1, ConnectionPool.CLIENTS.size());
+        assertSame(client, ConnectionPool.CLIENTS.getConnection(client.getNumber()));
+        assertTrue(ConnectionPool.CLIENTS.getConnections().contains(client));
+        assertNull(ConnectionPool.LINKS.getConnection(client.getNumber()));
+
+        ConnectionPool.unregister(client);
+        ConnectionPool.unregister(client);
+
+        assertEquals(all, ConnectionPool.ALL.size());
+        assertEquals(clients, ConnectionPool.CLIENTS.size());
+        assertFalse(ConnectionPool.CLIENTS.getConnections().contains(client));
+    }
+}
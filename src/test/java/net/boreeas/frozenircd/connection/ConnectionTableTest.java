@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ConnectionTableTest extends TestCase {
+
+    public ConnectionTableTest(String testName) {
+        super(testName);
+    }
+
+    public void testPutGetRemove() {
+
+        ConnectionTable<String> table = new ConnectionTable<>();
+
+        assertNull(table.put(7, "seven"));
+        assertEquals("seven", table.put(7, "SEVEN"));
+        assertEquals("SEVEN", table.get(7));
+        assertNull(table.get(8));
+        assertEquals(1, table.size());
+
+        assertEquals("SEVEN", table.remove(7));
+        assertNull(table.remove(7));
+        assertNull(table.get(7));
+        assertEquals(0, table.size());
+    }
+
+    public void testGrowsAndReusesRemovedSlots() {
+
+        ConnectionTable<Long> table = new ConnectionTable<>();
+
+        for (long i = 0; i < 10000; i++) {
+
+            table.put(i, i);
+
+            if (i % 3 == 0) {
+                table.remove(i);
+            }
+        }
+
+        assertEquals(10000 - 3334, table.size());
+
+        for (long i = 0; i < 10000; i++) {
+            assertEquals((i % 3 == 0) ? null : Long.valueOf(i), table.get(i));
+        }
+
+        Set<Long> seen = new HashSet<>();
+        for (Long value: table) {
+            assertTrue(seen.add(value));
+        }
+
+        assertEquals(table.size(), seen.size());
+    }
+
+    public void testIteratorSurvivesChanges() {
+
+        ConnectionTable<Long> table = new ConnectionTable<>();
+
+        for (long i = 0; i < 100; i++) {
+            table.put(i, i);
+        }
+
+        Iterator<Long> iterator = table.iterator();
+
+        for (long i = 100; i < 1000; i++) {
+            table.put(i, i);
+        }
+
+        int count = 0;
+        while (iterator.hasNext()) {
+
+            iterator.next();
+            count++;
+        }
+
+        assertTrue(count >= 100);
+    }
+}
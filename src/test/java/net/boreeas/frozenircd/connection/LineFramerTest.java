@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class LineFramerTest extends TestCase {
+
+    public LineFramerTest(String testName) {
+        super(testName);
+    }
+
+    public void testSplitLines() throws IOException {
+
+        LineFramer framer = new LineFramer(16, 0, 64);
+        framer.readFrom(stream("NICK a\r\nUSER b\nPAR"));
+
+        assertLine(framer, "NICK a");
+        assertLine(framer, "USER b");
+        assertEquals(LineFramer.Result.NEED_INPUT, framer.next());
+
+        framer.readFrom(stream("T #c\r\n"));
+        assertLine(framer, "PART #c");
+        assertEquals(LineFramer.Result.NEED_INPUT, framer.next());
+    }
+
+    public void testCarriageReturnOnly() throws IOException {
+
+        LineFramer framer = new LineFramer(16, 0, 64);
+        framer.readFrom(stream("NICK a\rUSER b\rPAR"));
+
+        assertLine(framer, "NICK a");
+        assertLine(framer, "USER b");
+        assertEquals(LineFramer.Result.NEED_INPUT, framer.next());
+
+        framer.readFrom(stream("T #c\r"));
+        assertLine(framer, "PART #c");
+        assertEquals(LineFramer.Result.NEED_INPUT, framer.next());
+    }
+
+    public void testCrLfAcrossReads() throws IOException {
+
+        LineFramer framer = new LineFramer(16, 0, 64);
+        framer.readFrom(stream("NICK a\r"));
+        assertLine(framer, "NICK a");
+
+        // The LF of the pair doesn't end another, empty line
+        framer.readFrom(stream("\nUSER b\r\n"));
+        assertLine(framer, "USER b");
+        assertEquals(LineFramer.Result.NEED_INPUT, framer.next());
+    }
+
+    public void testOversizeLineWithTerminator() throws IOException {
+
+        LineFramer framer = new LineFramer(8, 0, 32);
+        framer.readFrom(stream("123456\r\n1234567\r\nOK\r\n"));
+
+        assertLine(framer, "123456");
+        assertEquals("Line over the limit accepted", LineFramer.Result.OVERSIZE, framer.next());
+        assertLine(framer, "OK");
+    }
+
+    public void testOversizeLineAcrossReads() throws IOException {
+
+        LineFramer framer = new LineFramer(8, 0, 8);
+        char[] garbage = new char[8];
+        Arrays.fill(garbage, 'x');
+
+        framer.readFrom(stream(new String(garbage)));
+        assertEquals(LineFramer.Result.OVERSIZE, framer.next());
+
+        // The rest of the line is skipped without being reported again
+        framer.readFrom(stream(new String(garbage)));
+        assertEquals(LineFramer.Result.NEED_INPUT, framer.next());
+
+        framer.readFrom(stream("xx\r\nOK\r\n"));
+        assertLine(framer, "OK");
+    }
+
+    public void testTagAllowance() throws IOException {
+
+        LineFramer framer = new LineFramer(8, 8, 32);
+        framer.readFrom(stream("@a=bcd PING\r\nPING abcdef\r\n"));
+
+        assertLine(framer, "@a=bcd PING");
+        assertEquals("Tag allowance applied to untagged line", LineFramer.Result.OVERSIZE, framer.next());
+    }
+
+    public void testPushBack() throws IOException {
+
+        LineFramer framer = new LineFramer(16, 0, 64);
+        framer.readFrom(stream("A\r\nB\r\n"));
+
+        assertLine(framer, "A");
+        framer.pushBack();
+        assertLine(framer, "A");
+        assertLine(framer, "B");
+    }
+
+    public void testGrowAndShrink() throws IOException {
+
+        LineFramer framer = new LineFramer(8, 0, 8);
+        framer.readFrom(stream("A\r\nBBBBB"));
+
+        assertLine(framer, "A");
+        framer.pushBack();
+
+        // Held back input fills the buffer
+        assertFalse(framer.hasRoom());
+        assertTrue(framer.grow(20));
+        assertEquals(16, framer.capacity());
+        assertTrue(framer.grow(20));
+        assertEquals(20, framer.capacity());
+        assertFalse("Grown beyond the limit", framer.grow(20));
+
+        framer.readFrom(stream("\r\nBBBBB\r\nC\r\n"));
+        assertEquals(20, framer.buffered());
+
+        assertLine(framer, "A");
+        assertLine(framer, "BBBBB");
+
+        framer.shrink(8);
+        assertEquals("Shrunk while too much is buffered", 20, framer.capacity());
+
+        assertLine(framer, "BBBBB");
+        framer.shrink(8);
+        assertEquals(8, framer.capacity());
+        assertLine(framer, "C");
+    }
+
+    private static ByteArrayInputStream stream(String data) {
+
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertLine(LineFramer framer, String expected) {
+
+        assertEquals(LineFramer.Result.LINE, framer.next());
+        assertEquals(expected, new String(framer.array(), framer.lineStart(), framer.lineLength(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ZipChannelTest extends TestCase {
+
+    public ZipChannelTest(String testName) {
+        super(testName);
+    }
+
+    public void testRoundTrip() throws IOException {
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+        ZipChannel out = new ZipChannel(null, Channels.newChannel(wire));
+        out.startDeflating(6);
+
+        StringBuilder expected = new StringBuilder();
+        ByteBuffer[] batch = new ByteBuffer[10];
+
+        for (int i = 0; i < 100; i++) {
+
+            for (int j = 0; j < batch.length; j++) {
+
+                String line = ":irc.example.org PRIVMSG #channel :message " + i + "/" + j + "\r\n";
+                expected.append(line);
+                batch[j] = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+            }
+
+            out.write(batch);
+        }
+
+        byte[] compressed = wire.toByteArray();
+        assertTrue("Not compressed: " + compressed.length, compressed.length * 5 < expected.length());
+
+        // Plain input before the switch has been taken already, the rest arrives later
+        Pipe pipe = Pipe.open();
+        ZipChannel in = new ZipChannel(pipe.source(), null);
+        in.startInflating(Arrays.copyOfRange(compressed, 0, 100));
+
+        pipe.sink().write(ByteBuffer.wrap(compressed, 100, compressed.length - 100));
+        pipe.sink().close();
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+
+        while (in.read(buffer) >= 0) {
+
+            plain.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+
+        assertEquals(expected.toString(), new String(plain.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    public void testEveryWriteIsFlushed() throws IOException {
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+        ZipChannel out = new ZipChannel(null, Channels.newChannel(wire));
+        out.startDeflating(6);
+        out.write(ByteBuffer.wrap("PING :first\r\n".getBytes(StandardCharsets.UTF_8)));
+
+        // The receiver gets the whole batch without waiting for more output
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+
+        ZipChannel in = new ZipChannel(pipe.source(), null);
+        in.startInflating(wire.toByteArray());
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        in.read(buffer);
+
+        assertEquals("PING :first\r\n", new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+        assertFalse(in.hasBufferedInput());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.client;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import junit.framework.TestCase;
+import net.boreeas.frozenircd.connection.server.ServerProtocol;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ClientTest extends TestCase {
+
+    private ServerSocketChannel listener;
+    private SocketChannel peer;
+    private Client client;
+
+    public ClientTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+
+        listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        peer = SocketChannel.open(new InetSocketAddress("127.0.0.1", listener.socket().getLocalPort()));
+
+        client = new Client(listener.accept(), false);
+        client.setNickname("late");
+        client.setUsername("late");
+        client.setRealname("Late lookup");
+        client.setPassGiven(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        peer.close();
+        listener.close();
+    }
+
+    public void testLookupsCompleteRegistration() {
+
+        client.setIdentResponse(null);
+        client.setHostname("example.com");
+        client.completeRegistration();
+
+        assertTrue(client.rplWelcomeSent());
+        assertSame(client, ServerProtocol.findById(client.getId()));
+
+        client.disconnect();
+        ServerProtocol.quit(client, "done");
+    }
+
+    public void testLookupAfterDisconnect() {
+
+        client.setIdentResponse(null);
+        client.disconnect();
+
+        // The host name lookup finishes late
+        client.setHostname("example.com");
+        client.completeRegistration();
+
+        assertFalse(client.rplWelcomeSent());
+        assertNull(ServerProtocol.findById(client.getId()));
+    }
+}
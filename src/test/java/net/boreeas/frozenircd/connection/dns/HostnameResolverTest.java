@@ -0,0 +1,226 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class HostnameResolverTest extends TestCase {
+
+    private StubResolver stub;
+    private HostnameResolver resolver;
+    private BlockingQueue<String> results;
+
+    public HostnameResolverTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+
+        stub = new StubResolver();
+        stub.ptr("10.0.0.1", "good.example.org");
+        stub.a("good.example.org", "10.0.0.1");
+        stub.ptr("10.0.0.2", "spoofed.example.org");
+        stub.a("spoofed.example.org", "10.9.9.9");
+
+        results = new LinkedBlockingQueue<>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        stub.release.countDown();
+
+        if (resolver != null) {
+            resolver.shutdown();
+        }
+    }
+
+    public void testForwardConfirmedNameIsCached() throws Exception {
+
+        resolver = new HostnameResolver(stub, 2, 16, 60000, 60000, 5000);
+
+        resolver.lookup(ip("10.0.0.1"), listener());
+        assertEquals("good.example.org true", next());
+
+        resolver.lookup(ip("10.0.0.1"), listener());
+        assertEquals("good.example.org true", next());
+        assertEquals("Cached name looked up again", 1, stub.reverseLookups.get());
+    }
+
+    public void testUnconfirmedNameIsRejected() throws Exception {
+
+        resolver = new HostnameResolver(stub, 2, 16, 60000, 60000, 5000);
+
+        resolver.lookup(ip("10.0.0.2"), listener());
+        assertEquals("10.0.0.2 false", next());
+
+        resolver.lookup(ip("10.0.0.3"), listener());
+        assertEquals("10.0.0.3 false", next());
+
+        // Negative results are cached as well
+        resolver.lookup(ip("10.0.0.3"), listener());
+        assertEquals("10.0.0.3 false", next());
+        assertEquals(2, stub.reverseLookups.get());
+    }
+
+    public void testConcurrentLookupsShareQuery() throws Exception {
+
+        stub.block();
+        resolver = new HostnameResolver(stub, 2, 16, 60000, 60000, 5000);
+
+        for (int i = 0; i < 3; i++) {
+            resolver.lookup(ip("10.0.0.1"), listener());
+        }
+
+        stub.release.countDown();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("good.example.org true", next());
+        }
+
+        assertEquals(1, stub.reverseLookups.get());
+    }
+
+    public void testDeadline() throws Exception {
+
+        stub.block();
+        resolver = new HostnameResolver(stub, 2, 16, 60000, 60000, 50);
+
+        resolver.lookup(ip("10.0.0.1"), listener());
+        assertEquals("10.0.0.1 false", next());
+
+        // The query goes on and fills the cache
+        stub.release.countDown();
+        for (int i = 0; i < 100 && resolver.getCached(ip("10.0.0.1")) == null; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("good.example.org", resolver.getCached(ip("10.0.0.1")));
+        assertNull("Listener answered twice", results.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    public void testExpiry() throws Exception {
+
+        resolver = new HostnameResolver(stub, 2, 16, 20, 20, 5000);
+
+        resolver.lookup(ip("10.0.0.1"), listener());
+        next();
+
+        Thread.sleep(50);
+
+        resolver.lookup(ip("10.0.0.1"), listener());
+        next();
+        assertEquals(2, stub.reverseLookups.get());
+    }
+
+    public void testCacheBound() throws Exception {
+
+        stub.ptr("10.0.0.4", "other.example.org");
+        stub.a("other.example.org", "10.0.0.4");
+        resolver = new HostnameResolver(stub, 2, 1, 60000, 60000, 5000);
+
+        resolver.lookup(ip("10.0.0.1"), listener());
+        next();
+        resolver.lookup(ip("10.0.0.4"), listener());
+        next();
+
+        assertNull("Cache exceeded its size", resolver.getCached(ip("10.0.0.1")));
+        assertEquals("other.example.org", resolver.getCached(ip("10.0.0.4")));
+    }
+
+    private HostnameResolver.Listener listener() {
+
+        return new HostnameResolver.Listener() {
+
+            @Override
+            public void onLookupComplete(String hostname, boolean resolved) {
+                results.add(hostname + " " + resolved);
+            }
+        };
+    }
+
+    private String next() throws InterruptedException {
+
+        String result = results.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No answer", result);
+
+        return result;
+    }
+
+    private static InetAddress ip(String address) throws IOException {
+
+        return InetAddress.getByName(address);
+    }
+
+
+    /**
+     * Answers from fixed records, optionally holding every query until released.
+     */
+    private static class StubResolver implements Resolver {
+
+        private final Map<String, String> ptr = new HashMap<>();
+        private final Map<String, String> a = new HashMap<>();
+        private final AtomicInteger reverseLookups = new AtomicInteger();
+        private volatile CountDownLatch release = new CountDownLatch(0);
+
+        private void ptr(String address, String hostname) {
+            ptr.put(address, hostname);
+        }
+
+        private void a(String hostname, String address) {
+            a.put(hostname, address);
+        }
+
+        private void block() {
+            release = new CountDownLatch(1);
+        }
+
+        @Override
+        public String reverse(InetAddress address) throws IOException {
+
+            reverseLookups.incrementAndGet();
+
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+
+            return ptr.get(address.getHostAddress());
+        }
+
+        @Override
+        public InetAddress[] forward(String hostname) throws IOException {
+
+            String address = a.get(hostname);
+            return (address == null) ? new InetAddress[0] : new InetAddress[] { ip(address) };
+        }
+    }
+}
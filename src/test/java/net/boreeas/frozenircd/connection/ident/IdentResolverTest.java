@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.ident;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import net.boreeas.frozenircd.utils.Metrics;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class IdentResolverTest extends TestCase {
+
+    private static final InetAddress LOCALHOST = InetAddress.getLoopbackAddress();
+
+    private static final InetSocketAddress CLIENT = new InetSocketAddress(LOCALHOST, 40000);
+    private static final InetSocketAddress SERVER = new InetSocketAddress(LOCALHOST, 6667);
+
+    private ServerSocket identd;
+    private IdentResolver resolver;
+    private BlockingQueue<String> results;
+
+    public IdentResolverTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+
+        identd = new ServerSocket(0, 50, LOCALHOST);
+        results = new LinkedBlockingQueue<>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        identd.close();
+
+        if (resolver != null) {
+            resolver.requestInterrupt();
+            resolver.join(1000);
+        }
+    }
+
+    public void testParseResponse() {
+
+        assertEquals("alice", IdentResolver.parseResponse("40000 , 6667 : USERID : UNIX : alice", 40000, 6667));
+        assertEquals("alice", IdentResolver.parseResponse("40000,6667:USERID:UNIX,UTF-8:alice", 40000, 6667));
+        assertNull(IdentResolver.parseResponse("40000, 6667 : ERROR : NO-USER", 40000, 6667));
+        assertNull("Wrong port pair", IdentResolver.parseResponse("40001, 6667 : USERID : UNIX : alice", 40000, 6667));
+        assertNull("Illegal user name", IdentResolver.parseResponse("40000, 6667 : USERID : UNIX : a@b", 40000, 6667));
+        assertNull(IdentResolver.parseResponse("garbage", 40000, 6667));
+    }
+
+    public void testSuccess() throws Exception {
+
+        long before = Metrics.IDENT_SUCCESS.count();
+        serve("USERID : UNIX : alice");
+        resolver = new IdentResolver(identd.getLocalPort(), 5000);
+
+        resolver.lookup(CLIENT, SERVER, listener());
+
+        assertEquals("alice", next());
+        assertEquals(before + 1, Metrics.IDENT_SUCCESS.count());
+    }
+
+    public void testErrorResponse() throws Exception {
+
+        long before = Metrics.IDENT_REFUSED.count();
+        serve("ERROR : NO-USER");
+        resolver = new IdentResolver(identd.getLocalPort(), 5000);
+
+        resolver.lookup(CLIENT, SERVER, listener());
+
+        assertEquals("-", next());
+        assertEquals(before + 1, Metrics.IDENT_REFUSED.count());
+    }
+
+    public void testConnectionRefused() throws Exception {
+
+        int port = identd.getLocalPort();
+        identd.close();
+
+        long before = Metrics.IDENT_REFUSED.count();
+        resolver = new IdentResolver(port, 5000);
+
+        long start = System.currentTimeMillis();
+        resolver.lookup(CLIENT, SERVER, listener());
+
+        assertEquals("-", next());
+        assertTrue("Waited for the deadline", System.currentTimeMillis() - start < 5000);
+        assertEquals(before + 1, Metrics.IDENT_REFUSED.count());
+    }
+
+    public void testTimeout() throws Exception {
+
+        long before = Metrics.IDENT_TIMEOUT.count();
+        resolver = new IdentResolver(identd.getLocalPort(), 100);
+
+        // Accepted by the kernel, but never answered
+        for (int i = 0; i < 3; i++) {
+            resolver.lookup(CLIENT, SERVER, listener());
+        }
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("-", next());
+        }
+
+        assertEquals(before + 3, Metrics.IDENT_TIMEOUT.count());
+        assertNull("Answered twice", results.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Answers a single query with the given reply after the port pair.
+     */
+    private void serve(final String reply) {
+
+        Thread server = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try (Socket socket = identd.accept()) {
+
+                    String query = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                                                                            StandardCharsets.US_ASCII)).readLine();
+
+                    OutputStream out = socket.getOutputStream();
+                    out.write((query + " : " + reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                } catch (IOException ex) {
+                    // The test fails on the missing answer
+                }
+            }
+        });
+
+        server.setDaemon(true);
+        server.start();
+    }
+
+    private IdentResolver.Listener listener() {
+
+        return new IdentResolver.Listener() {
+
+            @Override
+            public void onIdentComplete(String username) {
+                results.add((username == null) ? "-" : username);
+            }
+        };
+    }
+
+    private String next() throws InterruptedException {
+
+        String result = results.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No answer", result);
+
+        return result;
+    }
+}
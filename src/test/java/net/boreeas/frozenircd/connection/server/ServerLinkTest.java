@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import net.boreeas.frozenircd.config.ConfigData;
+import net.boreeas.frozenircd.config.ConfigKey;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * Links two servers in this process over loopback.
+ * @author Boreeas
+ */
+public class ServerLinkTest extends TestCase {
+
+    private ServerSocketChannel listener;
+    private RecordingLink outgoing;
+    private RecordingLink incoming;
+
+    public ServerLinkTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+
+        listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+        String password = ConfigData.getFirstConfigOption(ConfigKey.LINK_PASS.getKey(), null);
+        assertNotNull("password.server must be configured", password);
+
+        outgoing = new RecordingLink("127.0.0.1", listener.socket().getLocalPort(), password);
+
+        SocketChannel accepted = listener.accept();
+        incoming = SharedData.nonBlockingIO ? new RecordingLink(accepted) : new RecordingLink(accepted.socket());
+
+        outgoing.start();
+        startIncoming();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        outgoing.disconnect();
+        incoming.disconnect();
+        listener.close();
+    }
+
+    public void testCompressedLink() throws Exception {
+
+        // Both sides switch after the handshake, traffic then goes compressed in both directions
+        outgoing.send("PING :" + SharedData.BUILD_IDENTIFIER);
+        assertEquals("PONG", waitForCommand(outgoing));
+
+        for (int i = 0; i < 2000; i++) {
+            outgoing.send(":" + i + "AAAAAA PRIVMSG #channel :Message number " + i + " of the netburst");
+        }
+
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(":" + i + "AAAAAA PRIVMSG #channel :Message number " + i + " of the netburst",
+                         incoming.received.poll(5, TimeUnit.SECONDS));
+        }
+
+        incoming.send("SQUIT test :done");
+        assertEquals("SQUIT test :done", outgoing.received.poll(5, TimeUnit.SECONDS));
+
+        assertTrue(outgoing.isRegistered());
+        assertTrue(incoming.isRegistered());
+        assertNotNull("Not compressed", outgoing.getCompressionSummary());
+        assertNotNull("Not compressed", incoming.getCompressionSummary());
+    }
+
+    private void startIncoming() {
+
+        if (SharedData.nonBlockingIO) {
+
+            incoming.start();
+        } else {
+
+            Thread thread = new Thread(incoming);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static String waitForCommand(RecordingLink link) throws InterruptedException {
+
+        String line = link.pongs.poll(5, TimeUnit.SECONDS);
+        return (line == null) ? null : line.split(" ")[0];
+    }
+
+    /**
+     * Keeps the lines that arrive after the handshake.
+     */
+    private static class RecordingLink extends ServerLink {
+
+        final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> pongs = new LinkedBlockingQueue<>();
+
+        RecordingLink(String host, int port, String password) throws IOException {
+            super(host, port, password);
+        }
+
+        RecordingLink(SocketChannel channel) throws IOException {
+            super(channel);
+        }
+
+        RecordingLink(Socket socket) throws IOException {
+            super(socket);
+        }
+
+        @Override
+        protected void onInput(byte[] line, int offset, int length) {
+
+            String text = new String(line, offset, length, SharedData.CHARSET);
+
+            if (text.startsWith("PONG")) {
+                pongs.add(text);
+            } else if (isRegistered() && !text.equals("ZIP") && !text.startsWith("PING")) {
+                received.add(text);
+            }
+
+            super.onInput(line, offset, length);
+        }
+    }
+}
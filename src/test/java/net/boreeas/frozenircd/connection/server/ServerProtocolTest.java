@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.connection.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import net.boreeas.frozenircd.command.ParsedMessage;
+import net.boreeas.frozenircd.command.ServerCommandParser;
+import net.boreeas.frozenircd.connection.ConnectionPool;
+import net.boreeas.frozenircd.utils.SharedData;
+
+/**
+ * Feeds server commands to the parser as if they came over a link, and
+ * looks at the lines relayed to the links.
+ * @author Boreeas
+ */
+public class ServerProtocolTest extends TestCase {
+
+    private ServerSocketChannel listener;
+    private final List<SocketChannel> peers = new ArrayList<>();
+    private final List<RecordingLink> links = new ArrayList<>();
+
+    /**
+     * The link the users in the tests are behind.
+     */
+    private RecordingLink link;
+
+    public ServerProtocolTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+
+        listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+        link = open();
+    }
+
+    /**
+     * Opens another link and adds it to the pool of links.
+     */
+    private RecordingLink open() throws IOException {
+
+        peers.add(SocketChannel.open(new InetSocketAddress("127.0.0.1", listener.socket().getLocalPort())));
+
+        RecordingLink opened = new RecordingLink(listener.accept());
+        links.add(opened);
+        ConnectionPool.register(opened);
+
+        return opened;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        for (RemoteClient user: ServerProtocol.getUsers()) {
+
+            if (user.getLink() == link) {
+                ServerProtocol.removeUser(user, "done", link);
+            }
+        }
+
+        for (RecordingLink opened: links) {
+
+            ConnectionPool.unregister(opened);
+            opened.disconnect();
+        }
+
+        for (SocketChannel peer: peers) {
+            peer.close();
+        }
+
+        listener.close();
+    }
+
+    public void testDuplicateIntroductionIgnored() {
+
+        // With the burst, and again as a relay held back during the burst
+        handle("UID dup 1 user host irc.peer +i 9ZZAAAAAB :Real name");
+        RemoteClient user = ServerProtocol.findRemoteById("9ZZAAAAAB");
+        handle("UID dup 1 user host irc.peer +i 9ZZAAAAAB :Real name");
+
+        assertSame(user, ServerProtocol.findRemoteById("9ZZAAAAAB"));
+        assertSame(user, ConnectionPool.findByNickname("dup"));
+        assertTrue(link.relayed.toString(), link.relayed.isEmpty());
+    }
+
+    public void testDuplicateUnderOlderNick() {
+
+        // The burst has the current nick, the held back lines the history
+        handle("UID newnick 1 user host irc.peer +i 9ZZAAAAAC :Real name");
+        handle("UID oldnick 1 user host irc.peer +i 9ZZAAAAAC :Real name");
+        handle(":9ZZAAAAAC NICK newnick");
+
+        RemoteClient user = ServerProtocol.findRemoteById("9ZZAAAAAC");
+        assertNotNull(user);
+        assertEquals("newnick", user.getNickname());
+        assertNull(ConnectionPool.findByNickname("oldnick"));
+        assertTrue(link.relayed.toString(), link.relayed.isEmpty());
+    }
+
+    public void testNickCollisionKillsBoth() {
+
+        handle("UID taken 1 user host irc.peer +i 9ZZAAAAAD :Real name");
+        handle("UID taken 1 user host irc.peer +i 9ZZAAAAAE :Real name");
+
+        assertNull(ServerProtocol.findRemoteById("9ZZAAAAAD"));
+        assertNull(ServerProtocol.findRemoteById("9ZZAAAAAE"));
+        assertTrue(link.relayed.contains("KILL 9ZZAAAAAE :Nick collision"));
+        assertTrue(link.relayed.contains("KILL 9ZZAAAAAD :Nick collision"));
+    }
+
+    public void testKillNotEchoedToSource() throws Exception {
+
+        RecordingLink killer = open();
+        RecordingLink bystander = open();
+
+        handle("UID victim 1 user host irc.peer +i 9ZZAAAAAF :Real name");
+        killer.relayed.clear();
+        bystander.relayed.clear();
+
+        handle(killer, ":9YYAAAAAA KILL 9ZZAAAAAF :Spam");
+
+        assertNull(ServerProtocol.findRemoteById("9ZZAAAAAF"));
+        assertTrue(link.relayed.contains("KILL 9ZZAAAAAF :Spam"));
+        assertTrue(killer.relayed.toString(), killer.relayed.isEmpty());
+        assertTrue(bystander.relayed.contains(":9ZZAAAAAF QUIT :Killed: Spam"));
+    }
+
+    private void handle(String line) {
+
+        handle(link, line);
+    }
+
+    private static void handle(ServerLink from, String line) {
+
+        byte[] raw = line.getBytes(SharedData.CHARSET);
+
+        ParsedMessage message = new ParsedMessage();
+        assertTrue(message.parse(raw, 0, raw.length));
+
+        ServerCommandParser.parseServerCommand(from, message);
+    }
+
+    /**
+     * Keeps the lines relayed to the other server instead of sending them.
+     */
+    private static class RecordingLink extends ServerLink {
+
+        final List<String> relayed = new ArrayList<>();
+
+        RecordingLink(SocketChannel channel) throws IOException {
+            super(channel);
+        }
+
+        @Override
+        public void relay(String line) {
+
+            relayed.add(line);
+        }
+
+        @Override
+        public boolean isRegistered() {
+
+            return true;
+        }
+    }
+}
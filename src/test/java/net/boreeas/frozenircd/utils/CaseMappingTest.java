@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.utils;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class CaseMappingTest extends TestCase {
+
+    public CaseMappingTest(String testName) {
+        super(testName);
+    }
+
+    public void testRfc1459() {
+
+        assertEquals("nick{a}|~", CaseMapping.RFC1459.fold("NiCK[A]\\^"));
+        assertTrue(CaseMapping.RFC1459.equals("Nick^", "nICK~"));
+        assertFalse(CaseMapping.RFC1459.equals("Nick", "Nick_"));
+    }
+
+    public void testStrictRfc1459() {
+
+        assertEquals("{|}^", CaseMapping.STRICT_RFC1459.fold("[\\]^"));
+        assertFalse(CaseMapping.STRICT_RFC1459.equals("a^", "a~"));
+    }
+
+    public void testAscii() {
+
+        assertEquals("[nick]", CaseMapping.ASCII.fold("[NICK]"));
+        assertFalse(CaseMapping.ASCII.equals("{a}", "[a]"));
+    }
+
+    public void testFoldedStringIsNotCopied() {
+
+        String name = "#channel{1}";
+        assertSame(name, CaseMapping.RFC1459.fold(name));
+    }
+
+    public void testNonAsciiIsKept() {
+
+        assertEquals("ÄЖa", CaseMapping.RFC1459.fold("ÄЖA"));
+    }
+
+    public void testForName() {
+
+        assertSame(CaseMapping.STRICT_RFC1459, CaseMapping.forName("strict-rfc1459"));
+
+        try {
+            CaseMapping.forName("unicode");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testNameKey() {
+
+        NameKey key = NameKey.of("Nick[1]", CaseMapping.RFC1459);
+
+        assertEquals(NameKey.of("nick{1}", CaseMapping.RFC1459), key);
+        assertEquals(NameKey.of("NICK{1}", CaseMapping.RFC1459).hashCode(), key.hashCode());
+        assertEquals("Nick[1]", key.getName());
+        assertEquals("nick{1}", key.getFolded());
+    }
+}
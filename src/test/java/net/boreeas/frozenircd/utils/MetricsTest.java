@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.utils;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class MetricsTest extends TestCase {
+
+    public MetricsTest(String testName) {
+        super(testName);
+    }
+
+    public void testNegativeValueRecordedAsZero() {
+
+        long count = Metrics.DNS_LOOKUP_MILLIS.count();
+        long total = Metrics.DNS_LOOKUP_MILLIS.total();
+
+        Metrics.DNS_LOOKUP_MILLIS.record(-1500);
+
+        assertEquals(count + 1, Metrics.DNS_LOOKUP_MILLIS.count());
+        assertEquals(total, Metrics.DNS_LOOKUP_MILLIS.total());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class TimingWheelTest extends TestCase {
+
+    private TimingWheel wheel;
+
+    public TimingWheelTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+
+        // A turn of the wheel takes 40ms, so most delays below take several rounds
+        wheel = new TimingWheel(5, 8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        wheel.requestInterrupt();
+        wheel.join(1000);
+    }
+
+    public void testFiresNotEarly() throws Exception {
+
+        final long[] delays = { 0, 3, 20, 45, 130 };
+        final CountDownLatch latch = new CountDownLatch(delays.length);
+        final AtomicInteger early = new AtomicInteger();
+
+        for (final long delay: delays) {
+
+            final long start = System.nanoTime();
+
+            wheel.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(delay)) {
+                        early.incrementAndGet();
+                    }
+
+                    latch.countDown();
+                }
+            }, delay);
+        }
+
+        assertTrue("Not all timeouts fired", latch.await(5, TimeUnit.SECONDS));
+        assertEquals("Timeouts fired early", 0, early.get());
+    }
+
+    public void testCancel() throws Exception {
+
+        final AtomicInteger fired = new AtomicInteger();
+        Runnable count = new Runnable() {
+
+            @Override
+            public void run() {
+                fired.incrementAndGet();
+            }
+        };
+
+        TimingWheel.Timeout beforeTransfer = wheel.schedule(count, 50);
+        assertTrue(beforeTransfer.cancel());
+
+        TimingWheel.Timeout inWheel = wheel.schedule(count, 100);
+        Thread.sleep(30);
+        assertTrue(inWheel.cancel());
+        assertFalse("Cancelled twice", inWheel.cancel());
+
+        TimingWheel.Timeout kept = wheel.schedule(count, 60);
+
+        Thread.sleep(250);
+
+        assertEquals(1, fired.get());
+        assertTrue(kept.isExpired());
+        assertFalse("Expired timeout cancelled", kept.cancel());
+        assertFalse(inWheel.isExpired());
+    }
+
+    public void testManyTimeoutsInOneSlot() throws Exception {
+
+        final CountDownLatch latch = new CountDownLatch(1000);
+        Runnable countDown = new Runnable() {
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+
+        for (int i = 0; i < 2000; i++) {
+
+            TimingWheel.Timeout timeout = wheel.schedule(countDown, 20 + (i % 4) * 40);
+            if (i % 2 == 1) {
+                timeout.cancel();
+            }
+        }
+
+        assertTrue("Not all timeouts fired", latch.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testClock() throws Exception {
+
+        long before = System.currentTimeMillis();
+        Thread.sleep(50);
+
+        long now = wheel.now();
+        assertTrue("Clock doesn't advance", now >= before);
+        assertTrue("Clock ahead of time", now <= System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Malte Schuetze.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.boreeas.frozenircd.utils;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class TokenBucketTest extends TestCase {
+
+    public TokenBucketTest(String testName) {
+        super(testName);
+    }
+
+    public void testBurst() {
+
+        long now = System.currentTimeMillis();
+        TokenBucket bucket = new TokenBucket(3, 1);
+
+        assertTrue(bucket.tryTake(1, now));
+        assertTrue(bucket.tryTake(2, now));
+        assertFalse("Bucket not empty after burst", bucket.tryTake(1, now));
+    }
+
+    public void testRefill() {
+
+        long now = System.currentTimeMillis();
+        TokenBucket bucket = new TokenBucket(2, 4);
+
+        assertTrue(bucket.tryTake(2, now));
+        assertEquals("Wrong time until refill", 250, bucket.millisUntil(1, now));
+        assertFalse(bucket.tryTake(1, now + 249));
+        assertTrue(bucket.tryTake(1, now + 250));
+    }
+
+    public void testCapacity() {
+
+        long now = System.currentTimeMillis();
+        TokenBucket bucket = new TokenBucket(2, 10);
+
+        assertTrue(bucket.tryTake(2, now));
+        assertTrue(bucket.tryTake(2, now + 60000));
+        assertFalse("Bucket refilled beyond its capacity", bucket.tryTake(1, now + 60000));
+    }
+}